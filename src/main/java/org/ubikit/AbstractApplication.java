@@ -70,6 +70,7 @@ import org.osgi.service.http.HttpService;
 import org.osgi.service.http.NamespaceException;
 import org.slf4j.LoggerFactory;
 import org.ubikit.event.EventGate;
+import org.ubikit.event.EventGateOptions;
 import org.ubikit.event.EventInstanciator;
 import org.ubikit.event.HttpEventGate;
 import org.ubikit.event.impl.EventGateImpl;
@@ -315,7 +316,6 @@ public abstract class AbstractApplication
 	 */
 	protected AbstractApplication(int threadCorePoolSize, BundleContext bundleContext, String[] supportedPhysicalEnvironmentModelUIDs)
 	{
-		executorCorePoolSize = threadCorePoolSize + 1; // +1 because one will be used by the event gate to PEMs
 		appServletHttpContext = new AppServletHttpContext();
 		applicationDidValidate = false;
 		applicationDidStart = false;
@@ -330,6 +330,7 @@ public abstract class AbstractApplication
 		appPackageName = packageName.substring(0, packageName.lastIndexOf("."));
 		
 		physicalEnvironmentModelProxyManager = new PhysicalEnvironmentModelManagerImpl(supportedPhysicalEnvironmentModelUIDs, appPackageName+"_ll");
+		executorCorePoolSize = threadCorePoolSize + (physicalEnvironmentModelProxyManager.getEventGate().isDispatched() ? 0 : 1); // +1 because one will be used by the event gate to PEMs, unless it runs on the shared dispatcher.
 		appCustomEventGates = new ArrayList<EventGateImpl>();
 		
 		webServiceURLs = new ArrayList<String>();
@@ -532,11 +533,25 @@ public abstract class AbstractApplication
 	// ---------------------------------------------------------------------------
 	
 	protected EventGate createNewEventGate()
+	{
+		return createNewEventGate(new EventGateOptions());
+	}
+	
+	// ---------------------------------------------------------------------------
+	
+	/**
+	 * Create an event gate set up by the given options: queue type and capacity, overflow policy,
+	 * delivery mode.
+	 * 
+	 * @param options settings of the new event gate.
+	 * @return a new event gate.
+	 */
+	protected EventGate createNewEventGate(EventGateOptions options)
 	{
 		EventGateImpl eg = null;
 		
 		//if(LC.debugEvent) {
-			eg = new EventGateImpl(appPackageName+"_custom_"+appCustomEventGates.size());
+			eg = new EventGateImpl(appPackageName+"_custom_"+appCustomEventGates.size(), options);
 		/*}
 		else {
 			eg = new EventGateImpl();
@@ -549,10 +564,22 @@ public abstract class AbstractApplication
 // ---------------------------------------------------------------------------
 	
 	protected HttpEventGate createNewHttpEventGate(String eventGateName, EventInstanciator eventInstanciator, HttpEventGate.Mode mode) throws NamespaceException
+	{
+		return createNewHttpEventGate(eventGateName, eventInstanciator, mode, new EventGateOptions());
+	}
+	
+	// ---------------------------------------------------------------------------
+	
+	/**
+	 * Create an HTTP event gate set up by the given options, which include the timeouts and the
+	 * concurrency of the requests it sends to distant gates. An EventTypeRegistry holding the
+	 * event classes the application receives may be given as event instanciator.
+	 */
+	protected HttpEventGate createNewHttpEventGate(String eventGateName, EventInstanciator eventInstanciator, HttpEventGate.Mode mode, EventGateOptions options) throws NamespaceException
 	{
 		HttpEventGateImpl eg = null;
 		
-		eg = new HttpEventGateImpl(httpService, eventInstanciator, eventGateName, mode);
+		eg = new HttpEventGateImpl(httpService, eventInstanciator, eventGateName, mode, options);
 		executorService.execute(eg.getEventDelivererTask());
 		
 		appCustomEventGates.add(eg);
@@ -638,9 +665,11 @@ public abstract class AbstractApplication
 			stopApplication();
 			
 			physicalEnvironmentModelProxyManager.unlinkAll();
+			physicalEnvironmentModelProxyManager.getEventGate().stop();
 			for(EventGateImpl eg : appCustomEventGates)
 			{
 				eg.unlinkAll();
+				eg.stop();
 				if(eg instanceof HttpEventGateImpl) 
 				{
 					((HttpEventGateImpl) eg).terminate();
@@ -46,6 +46,7 @@
 package org.ubikit;
 
 
+import java.io.File;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Collections;
@@ -59,6 +60,7 @@ import org.osgi.framework.BundleContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.ubikit.event.EventGate;
+import org.ubikit.event.EventGateOptions;
 import org.ubikit.event.impl.EventGateImpl;
 import org.ubikit.impl.DatabaseProxyImpl;
 import org.ubikit.impl.PhysicalEnvironmentModelManagerImpl;
@@ -113,6 +115,21 @@ public abstract class AbstractPhysicalEnvironmentModel implements PhysicalEnviro
 	 * @param supportedSourceModelUIDs a list of model unique identifiers.
 	 */
 	public AbstractPhysicalEnvironmentModel(int threadCorePoolSize, BundleContext bundleContext, String[] supportedSourceModelUIDs)
+	{
+		this(threadCorePoolSize, bundleContext, supportedSourceModelUIDs, new EventGateOptions());
+	}
+	
+	/**
+	 * Construct a Model object given a model unique identifier, a list of supported 
+	 * lower abstraction models unique ID and the settings of the model event gates.
+	 * 
+	 * @param supportedSourceModelUIDs a list of model unique identifiers.
+	 * @param eventGateOptions settings of both the event gate toward higher abstraction levels
+	 * and the event gate receiving events from lower abstraction models. For instance, a ring
+	 * buffer queue type suits latency-sensitive actuator loops. If a journal is enabled, the gates
+	 * journal in the "hl" and "ll" subfolders of its folder.
+	 */
+	public AbstractPhysicalEnvironmentModel(int threadCorePoolSize, BundleContext bundleContext, String[] supportedSourceModelUIDs, EventGateOptions eventGateOptions)
 	{
 		pemDidValidate = false;
 		pemDidStart = false;
@@ -123,16 +140,32 @@ public abstract class AbstractPhysicalEnvironmentModel implements PhysicalEnviro
 		String packageName = this.getClass().getPackage().getName();
 		UID = packageName.substring(0, packageName.lastIndexOf("."));
 		
-		physicalEnvironmentModelManager = new PhysicalEnvironmentModelManagerImpl(supportedSourceModelUIDs, UID+"_ll");
+		physicalEnvironmentModelManager = new PhysicalEnvironmentModelManagerImpl(supportedSourceModelUIDs, UID+"_ll", getGateOptions(eventGateOptions, "ll"));
 		
-		higherAbstractionLevels = new EventGateImpl(UID+"_hl");
+		higherAbstractionLevels = new EventGateImpl(UID+"_hl", getGateOptions(eventGateOptions, "hl"));
 		items = Collections.synchronizedMap(new HashMap<String, PhysicalEnvironmentItem>());
-		executorCorePoolSize = threadCorePoolSize + 2; // because higherAbstractionLevels & lowerAbstractionModels eventGate will use one thread each in the executorService.
+		executorCorePoolSize = threadCorePoolSize + (higherAbstractionLevels.isDispatched() ? 0 : 2); // because higherAbstractionLevels & lowerAbstractionModels eventGate will use one thread each in the executorService, unless they run on the shared dispatcher.
 		bundleUID = bundleContext.getBundle().getBundleId();		
 	}
 
 	// ---------------------------------------------------------------------------
 	
+	/**
+	 * Both event gates of the model share the given options, but a journal folder must be used by
+	 * one gate only: each gate journals in its own subfolder of the configured journal folder.
+	 */
+	private static EventGateOptions getGateOptions(EventGateOptions eventGateOptions, String gateName)
+	{
+		File journalFolder = eventGateOptions.getJournalFolder();
+		if(journalFolder == null) {
+			return eventGateOptions;
+		}
+		
+		return new EventGateOptions(eventGateOptions).setJournal(new File(journalFolder, gateName), eventGateOptions.getJournalEventInstanciator());
+	}
+
+	// ---------------------------------------------------------------------------
+	
 	public void validate(PemRegistryService pemRegistryService, HSQLDatabaseService hsqlDatabaseService)
 	{
 		this.pemRegistryService = pemRegistryService;
@@ -193,6 +226,8 @@ public abstract class AbstractPhysicalEnvironmentModel implements PhysicalEnviro
 			
 			physicalEnvironmentModelManager.unlinkAll();
 			higherAbstractionLevels.unlinkAll();
+			physicalEnvironmentModelManager.getEventGate().stop();
+			higherAbstractionLevels.stop();
 			
 			if(executorService != null)
 			{
@@ -50,19 +50,73 @@ import java.util.Date;
 import org.ubikit.event.AbstractEvent;
 
 public abstract class AbstractPhysicalEnvironmentModelEvent extends AbstractEvent {
-	private final String sourceItemUID;
-	private final Date date;
+	// Not final, only because recycled events are reinitialized. See reinitialize().
+	private String sourceItemUID;
+	private long timestamp; // Epoch milliseconds.
+	
+	// System.nanoTime() at creation. Not serialized: 0 if received from another host.
+	private transient long nanoTime;
+	
+	// Lazily created view of timestamp. Serialized under its historical name, for peers that only
+	// know the date field, when getDate() was called before encoding. See getTimestamp().
+	private volatile Date date;
 	
 	public AbstractPhysicalEnvironmentModelEvent(String sourceItemUID)
 	{
-		this(sourceItemUID, new Date());
+		this(sourceItemUID, System.currentTimeMillis());
 	}
 	
 	public AbstractPhysicalEnvironmentModelEvent(String sourceItemUID, Date date)
+	{
+		this(sourceItemUID, (date != null) ? date.getTime() : System.currentTimeMillis());
+		this.date = date;
+	}
+	
+	/**
+	 * Construct an event that occurred at the given time, without allocating anything.
+	 * 
+	 * @param sourceItemUID UID of the item that issued the event.
+	 * @param timestamp occurrence time of the event, in milliseconds since the epoch.
+	 */
+	public AbstractPhysicalEnvironmentModelEvent(String sourceItemUID, long timestamp)
 	{
 		super();
 		this.sourceItemUID = sourceItemUID;
-		this.date = date;
+		this.timestamp = timestamp;
+		this.nanoTime = System.nanoTime();
+		this.date = null;
+	}
+	
+	/**
+	 * Construct an event that derives from another one, such as the result of coalescing two
+	 * events. Both timestamps of the given event are kept, so that delivery lag is measured from
+	 * the original occurrence.
+	 * 
+	 * @param sourceItemUID UID of the item that issued the event.
+	 * @param origin the event whose timestamps are copied.
+	 */
+	protected AbstractPhysicalEnvironmentModelEvent(String sourceItemUID, AbstractPhysicalEnvironmentModelEvent origin)
+	{
+		super();
+		this.sourceItemUID = sourceItemUID;
+		this.timestamp = origin.getTimestamp();
+		this.nanoTime = origin.nanoTime;
+		this.date = null;
+	}
+
+	/**
+	 * Give a recycled event a new identity, as if it was just constructed. Only meant for
+	 * recyclable events, see org.ubikit.event.RecyclableEvent. Other events are immutable.
+	 * 
+	 * @param sourceItemUID UID of the item that issued the event.
+	 * @param timestamp occurrence time of the event, in milliseconds since the epoch.
+	 */
+	protected void reinitialize(String sourceItemUID, long timestamp)
+	{
+		this.sourceItemUID = sourceItemUID;
+		this.timestamp = timestamp;
+		this.nanoTime = System.nanoTime();
+		this.date = null;
 	}
 
 	public String getSourceItemUID() 
@@ -70,8 +124,50 @@ public abstract class AbstractPhysicalEnvironmentModelEvent extends AbstractEven
 		return sourceItemUID;
 	}
 	
+	/**
+	 * Return the occurrence time of this event as a Date. The Date object is created on the first
+	 * call. Prefer getTimestamp() on hot paths.
+	 * 
+	 * @return the occurrence time of this event.
+	 */
 	public Date getDate()
 	{
-		return date;
+		Date d = date;
+		if(d == null) {
+			d = new Date(getTimestamp());
+			date = d;
+		}
+		return d;
+	}
+	
+	/**
+	 * Return the occurrence time of this event. Events decoded from peers that only send the date
+	 * field have no timestamp: their date is used instead.
+	 * 
+	 * @return the occurrence time of this event, in milliseconds since the epoch.
+	 */
+	public long getTimestamp()
+	{
+		long t = timestamp;
+		if(t == 0) {
+			Date d = date;
+			if(d != null) {
+				return d.getTime();
+			}
+		}
+		return t;
+	}
+	
+	/**
+	 * Return the value of System.nanoTime() when this event was created. It is only meaningful
+	 * within the JVM that created the event, to measure elapsed time such as delivery lag:
+	 * <code>System.nanoTime() - event.getNanoTime()</code>.
+	 * 
+	 * @return a monotonic time stamp in nanoseconds, or 0 if this event was received from another
+	 * host.
+	 */
+	public long getNanoTime()
+	{
+		return nanoTime;
 	}
 }
@@ -69,6 +69,7 @@ import org.osgi.service.http.NamespaceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.ubikit.event.EventGate;
+import org.ubikit.event.EventGateOptions;
 import org.ubikit.event.impl.EventGateImpl;
 import org.ubikit.impl.DatabaseProxyImpl;
 import org.ubikit.service.HSQLDatabaseService;
@@ -131,6 +132,18 @@ public abstract class AbstractRootPhysicalEnvironmentModel implements RootPhysic
 	 * @param bundleContext the bundle context object
 	 */
 	public AbstractRootPhysicalEnvironmentModel(int threadCorePoolSize, BundleContext bundleContext)
+	{
+		this(threadCorePoolSize, bundleContext, new EventGateOptions());
+	}
+	
+	/**
+	 * Constructor.
+	 * @param threadCorePoolSize required size of the PEM thread pool.
+	 * @param bundleContext the bundle context object
+	 * @param eventGateOptions settings of the event gate toward higher abstraction levels. For
+	 * instance, a ring buffer queue type suits latency-sensitive actuator loops.
+	 */
+	public AbstractRootPhysicalEnvironmentModel(int threadCorePoolSize, BundleContext bundleContext, EventGateOptions eventGateOptions)
 	{
 		pemDidValidate = false;
 		pemDidStart = false;
@@ -143,10 +156,10 @@ public abstract class AbstractRootPhysicalEnvironmentModel implements RootPhysic
 		UID = packageName.substring(0, packageName.lastIndexOf("."));
 		
 		//this.supportedSourceModelUIDs = supportedSourceModelUIDs;
-		higherAbstractionLevels = new EventGateImpl(UID+"_hl");
+		higherAbstractionLevels = new EventGateImpl(UID+"_hl", eventGateOptions);
 		items = Collections.synchronizedMap(new HashMap<String, PhysicalEnvironmentItem>());
 		
-		executorCorePoolSize = threadCorePoolSize + 1; // +1 because higherAbstractionLevels eventGate will use one thread in the executorService.
+		executorCorePoolSize = threadCorePoolSize + (higherAbstractionLevels.isDispatched() ? 0 : 1); // +1 because higherAbstractionLevels eventGate will use one thread in the executorService, unless it runs on the shared dispatcher.
 		bundleUID = bundleContext.getBundle().getBundleId();
 		
 		String pemFullName = null;
@@ -245,6 +258,7 @@ public abstract class AbstractRootPhysicalEnvironmentModel implements RootPhysic
 			items.clear();
 			
 			higherAbstractionLevels.unlinkAll();
+			higherAbstractionLevels.stop();
 			
 			Iterator<String> url_it = webServiceURLs.iterator();
 			while(url_it.hasNext())
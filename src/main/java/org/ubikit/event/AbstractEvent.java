@@ -49,10 +49,46 @@ import org.ubikit.event.impl.AbstractEventImpl;
 
 public abstract class AbstractEvent extends AbstractEventImpl {
 	
+	private EventPriority priority; // null means the default priority of the event type.
+	
 	protected AbstractEvent() 
 	{
 		super();
+		priority = null;
 	}
 
 	public abstract void deliverTo(EventListener eventListener);
+	
+	/**
+	 * Priority class of this event. It is the priority set on this very event, if any, or else
+	 * the default priority of its type.
+	 * 
+	 * @return the priority of this event.
+	 */
+	public EventPriority getPriority()
+	{
+		return (priority != null) ? priority : getDefaultPriority();
+	}
+	
+	/**
+	 * Set the priority class of this event, overriding the default priority of its type. It must
+	 * be set before the event is posted.
+	 * 
+	 * @param priority a priority, or null to fall back to the default priority of the event type.
+	 */
+	public void setPriority(EventPriority priority)
+	{
+		this.priority = priority;
+	}
+	
+	/**
+	 * Default priority of events of this type. Event types carrying control-plane information
+	 * should override this method to return EventPriority.CONTROL.
+	 * 
+	 * @return EventPriority.NORMAL.
+	 */
+	protected EventPriority getDefaultPriority()
+	{
+		return EventPriority.NORMAL;
+	}
 }
@@ -45,46 +45,469 @@
 
 package org.ubikit.event;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.ubikit.event.impl.LogHistogram;
+import org.ubikit.system.LatencyHistogram;
 
 
+
+/**
+ * Thread that processes, in order, the events pushed by any number of producer threads.
+ * 
+ * Producers never take a lock: events go through a bounded multi-producer single-consumer
+ * queue. pushEvent() waits for room when the queue is full, while tryPush() reports the
+ * back-pressure to the producer instead. The consumer thread drains the queue by batches, given
+ * to process(List), which calls process(T) for each event unless it is overridden.
+ * 
+ * shutdown() stops accepting events and lets the thread process the waiting ones before
+ * terminating. Interrupting the thread terminates it immediately, discarding waiting events.
+ * 
+ * @param <T>
+ *            the type of events.
+ */
 public abstract class AbstractThreadedEventConsumer<T> extends Thread
 {
-	private final BlockingQueue<T> eventStack;
+	/**
+	 * Default number of events that can wait for being processed.
+	 */
+	public static final int DEFAULT_CAPACITY = 20;
+
+	/**
+	 * Maximum number of events given to a single process(List) call.
+	 */
+	public static final int MAX_BATCH_SIZE = 64;
+
+	private static final int CLOSED = 1 << 30; // flag of the entries counter.
+	private static final int COUNT_MASK = CLOSED - 1;
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 100;
+	private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final Queue<T> queue;
+	private final int capacity;
+	// Number of events pushed and not yet drained, plus the CLOSED flag once shut down. Producers
+	// count an event before queuing it, so that the capacity is never exceeded.
+	private final AtomicInteger entries;
+	private final AtomicInteger highWaterMark;
+	private final AtomicLong processedEvents;
+	private final AtomicLong rejectedEvents;
+	private final LogHistogram processingTimes;
+
+	private volatile boolean waiting; // true while the consumer thread is parked.
+
 	final Logger logger = LoggerFactory.getLogger(AbstractThreadedEventConsumer.class);
-	
+
+
+
+
+
+
+	/**
+	 * Create a consumer that can hold DEFAULT_CAPACITY waiting events, and start its thread.
+	 * Since the thread starts before subclass constructors complete, subclasses should prefer
+	 * the other constructor.
+	 */
 	public AbstractThreadedEventConsumer()
 	{
-		eventStack = new ArrayBlockingQueue<T>(20);
+		this(AbstractThreadedEventConsumer.class.getSimpleName(), DEFAULT_CAPACITY);
 		start();
 	}
-	
+
+
+
+
+
+
+	/**
+	 * Create a consumer whose thread must be started with start().
+	 * 
+	 * @param name
+	 *            the name of the thread.
+	 * @param capacity
+	 *            the maximum number of events waiting for being processed.
+	 * @throws IllegalArgumentException
+	 *             if name is null or if capacity is not positive.
+	 */
+	protected AbstractThreadedEventConsumer(String name, int capacity)
+	{
+		super(checkName(name));
+		if (capacity <= 0 || capacity > COUNT_MASK) throw new IllegalArgumentException(
+			"capacity must be positive.");
+
+		this.capacity = capacity;
+		queue = new ConcurrentLinkedQueue<T>();
+		entries = new AtomicInteger();
+		highWaterMark = new AtomicInteger();
+		processedEvents = new AtomicLong();
+		rejectedEvents = new AtomicLong();
+		processingTimes = new LogHistogram();
+	}
+
+
+
+
+
+
+	@Override
 	public void run()
-	{	
-		while(true)
-		{	
-			try {
-				process(eventStack.take());
-			} 
-			catch (InterruptedException e) {
-				break;
+	{
+		List<T> batch = new ArrayList<T>();
+		List<T> readOnlyBatch = Collections.unmodifiableList(batch);
+		while (!isInterrupted())
+		{
+			T event = queue.poll();
+			if (event == null)
+			{
+				if (entries.get() == CLOSED)
+				{
+					break; // Shut down and drained.
+				}
+				awaitEvent();
+				continue;
+			}
+
+			do
+			{
+				batch.add(event);
+			}
+			while (batch.size() < MAX_BATCH_SIZE && (event = queue.poll()) != null);
+			entries.addAndGet(-batch.size());
+
+			long start = System.nanoTime();
+			try
+			{
+				process(readOnlyBatch);
+			}
+			catch (RuntimeException e)
+			{
+				logger.error("{}: ### Exception occurs when processing {} events", getName(), batch
+					.size(), e);
+			}
+			processingTimes.recordNanos(System.nanoTime() - start);
+			processedEvents.addAndGet(batch.size());
+			batch.clear();
+		}
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{} has terminated.", getName());
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Push an event to process, waiting for room if the queue is full. The event is not pushed
+	 * if the consumer is shut down or if the calling thread is interrupted while waiting.
+	 * 
+	 * @param event
+	 *            the event to process.
+	 * @throws IllegalArgumentException
+	 *             if event is null.
+	 */
+	public void pushEvent(T event)
+	{
+		if (event == null) throw new IllegalArgumentException("event cannot be null.");
+
+		int tries = 0;
+		while (!enqueue(event))
+		{
+			if (isShutdown())
+			{
+				logger.error("{}: shut down, an event is discarded.", getName());
+				return;
+			}
+
+			if (Thread.currentThread().isInterrupted())
+			{
+				logger
+					.error("Interrupted while waiting for inserting a new event in the event stack.");
+				return;
+			}
+
+			if (tries < SPIN_TRIES)
+			{
+				tries++;
+			}
+			else if (tries < SPIN_TRIES + YIELD_TRIES)
+			{
+				tries++;
+				Thread.yield();
+			}
+			else
+			{
+				LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+			}
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Push an event to process if there is room for it, without waiting.
+	 * 
+	 * @param event
+	 *            the event to process.
+	 * @return true if the event was pushed, false if the queue is full or if the consumer is
+	 *         shut down.
+	 * @throws IllegalArgumentException
+	 *             if event is null.
+	 */
+	public boolean tryPush(T event)
+	{
+		if (event == null) throw new IllegalArgumentException("event cannot be null.");
+
+		if (!enqueue(event))
+		{
+			if (!isShutdown())
+			{
+				rejectedEvents.incrementAndGet();
+			}
+			return false;
+		}
+
+		return true;
+	}
+
+
+
+
+
+
+	/**
+	 * Queue an event if there is room for it.
+	 * 
+	 * @return false if the queue is full or if the consumer is shut down.
+	 */
+	private boolean enqueue(T event)
+	{
+		int current;
+		do
+		{
+			current = entries.get();
+			if ((current & CLOSED) != 0)
+			{
+				return false;
 			}
+			if (current >= capacity)
+			{
+				return false;
+			}
+		}
+		while (!entries.compareAndSet(current, current + 1));
+
+		queue.offer(event);
+		if (waiting)
+		{
+			LockSupport.unpark(this);
 		}
+
+		int mark;
+		while (current >= (mark = highWaterMark.get())
+			&& !highWaterMark.compareAndSet(mark, current + 1))
+		{}
+
+		return true;
+	}
+
+
+
+
+
+
+	/**
+	 * Stop accepting events. The thread terminates once the events pushed before have been
+	 * processed.
+	 */
+	public void shutdown()
+	{
+		int current;
+		do
+		{
+			current = entries.get();
+		}
+		while ((current & CLOSED) == 0 && !entries.compareAndSet(current, current | CLOSED));
+
+		LockSupport.unpark(this);
+	}
+
+
+
+
+
+
+	public boolean isShutdown()
+	{
+		return (entries.get() & CLOSED) != 0;
+	}
+
+
+
+
+
+
+	/**
+	 * Wait for the thread to terminate, after shutdown().
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait.
+	 * @param unit
+	 *            the unit of timeout.
+	 * @return true if the thread has terminated, false if the timeout elapsed before.
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		join(Math.max(1, unit.toMillis(timeout)));
+		return !isAlive();
+	}
+
+
+
+
+
+
+	/**
+	 * @return the number of events waiting for being processed.
+	 */
+	public int getQueueDepth()
+	{
+		return entries.get() & COUNT_MASK;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the highest number of events that waited for being processed at the same time.
+	 */
+	public int getQueueHighWaterMark()
+	{
+		return highWaterMark.get();
+	}
+
+
+
+
+
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+
+
+
+
+
+	public long getProcessedEventCount()
+	{
+		return processedEvents.get();
 	}
-	
-	public synchronized void pushEvent(T event)
+
+
+
+
+
+
+	/**
+	 * @return the number of events tryPush() rejected because the queue was full.
+	 */
+	public long getRejectedEventCount()
 	{
-		try { 
-			eventStack.put(event); 
-		} 
-		catch (InterruptedException e) { 
-			logger.error( "Interrupted while waiting for inserting a new event in the event stack.");
+		return rejectedEvents.get();
+	}
+
+
+
+
+
+
+	/**
+	 * @return the times spent in process(List) calls, in microseconds. A batch counts as a
+	 *         single call.
+	 */
+	public LatencyHistogram getProcessingTimes()
+	{
+		return processingTimes.snapshot();
+	}
+
+
+
+
+
+
+	/**
+	 * Process a batch of events, in order. Calls process(T) for each event by default.
+	 * Subclasses that benefit from batching can override it.
+	 * 
+	 * @param events
+	 *            a read-only list of at most MAX_BATCH_SIZE events, valid during the call only.
+	 */
+	protected void process(List<T> events)
+	{
+		for (T event : events)
+		{
+			process(event);
 		}
 	}
-	
+
+
+
+
+
+
 	public abstract void process(T event);
+
+
+
+
+
+
+	private static String checkName(String name)
+	{
+		if (name == null) throw new IllegalArgumentException("name cannot be null.");
+
+		return name;
+	}
+
+
+
+
+
+
+	/**
+	 * Park the consumer thread until an event is pushed, the consumer is shut down or the
+	 * thread is interrupted.
+	 */
+	private void awaitEvent()
+	{
+		waiting = true;
+		if (queue.isEmpty() && entries.get() != CLOSED)
+		{
+			LockSupport.park(this);
+		}
+		waiting = false;
+	}
 }
@@ -0,0 +1,697 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+
+/**
+ * Compact binary event codec. Each event type is registered with a numeric identifier and a
+ * marshaller that writes and reads its fields explicitly, so that encoding and decoding involve
+ * no reflection. Peers must register the same types under the same identifiers.
+ * 
+ * An encoded event is made of its type identifier and its priority, both as variable-length
+ * integers, followed by the fields written by the marshaller of its type. Integers are written
+ * with 7 bits per byte, so that small values take a single byte, and strings as UTF-8.
+ * 
+ * Types should be registered before the codec is handed to an event gate. Only events whose
+ * class is registered are encoded: events of other classes, including subclasses of registered
+ * ones, are sent as JSON.
+ */
+public final class BinaryEventCodec implements EventCodec
+{
+	public static final String MEDIA_TYPE = "application/vnd.ubikit.event+binary";
+
+	/**
+	 * Greatest type identifier, so that identifiers take at most 2 bytes.
+	 */
+	public static final int MAX_TYPE_ID = 16383;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final EventPriority[] PRIORITIES = EventPriority.values();
+	private static final int INITIAL_BUFFER_SIZE = 64;
+
+	private final ConcurrentMap<Class<? extends AbstractEvent>, Registration<?>> byClass;
+	private volatile Registration<?>[] byId; // by type identifier, copied on registration.
+
+	/**
+	 * Writes and reads the fields of the events of a type.
+	 * 
+	 * @param <T>
+	 *            the event type.
+	 */
+	public interface Marshaller<T extends AbstractEvent>
+	{
+		/**
+		 * Write the fields of an event.
+		 */
+		public void write(T event, Output output);
+
+		/**
+		 * Create an event from the fields written by write(), in the same order.
+		 * 
+		 * @throws IOException
+		 *             if the fields are malformed.
+		 */
+		public T read(Input input) throws IOException;
+	}
+
+	/**
+	 * Growable buffer an event is encoded into.
+	 */
+	public static final class Output
+	{
+		private byte[] buffer;
+		private int size;
+
+		private Output()
+		{
+			buffer = new byte[INITIAL_BUFFER_SIZE];
+			size = 0;
+		}
+
+
+
+
+
+
+		/**
+		 * Write an integer that is usually small and positive. Negative values take 5 bytes.
+		 */
+		public void writeVarInt(int value)
+		{
+			ensureCapacity(5);
+			while ((value & ~0x7F) != 0)
+			{
+				buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+
+
+
+
+
+		/**
+		 * Write an integer that is usually close to 0, whatever its sign.
+		 */
+		public void writeSignedVarInt(int value)
+		{
+			writeVarInt((value << 1) ^ (value >> 31));
+		}
+
+
+
+
+
+
+		/**
+		 * Write a long that is usually small and positive. Negative values take 10 bytes.
+		 */
+		public void writeVarLong(long value)
+		{
+			ensureCapacity(10);
+			while ((value & ~0x7FL) != 0)
+			{
+				buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+
+
+
+
+
+		/**
+		 * Write a long that is usually close to 0, whatever its sign.
+		 */
+		public void writeSignedVarLong(long value)
+		{
+			writeVarLong((value << 1) ^ (value >> 63));
+		}
+
+
+
+
+
+
+		public void writeBoolean(boolean value)
+		{
+			ensureCapacity(1);
+			buffer[size++] = (byte) (value ? 1 : 0);
+		}
+
+
+
+
+
+
+		public void writeFloat(float value)
+		{
+			writeFixed(Float.floatToIntBits(value), 4);
+		}
+
+
+
+
+
+
+		public void writeDouble(double value)
+		{
+			writeFixed(Double.doubleToLongBits(value), 8);
+		}
+
+
+
+
+
+
+		/**
+		 * @param value
+		 *            a string, or null.
+		 */
+		public void writeString(String value)
+		{
+			if (value == null)
+			{
+				writeVarInt(0);
+				return;
+			}
+
+			int length = value.length();
+			int i = 0;
+			while (i < length && value.charAt(i) < 0x80)
+			{
+				i++;
+			}
+
+			if (i == length) // ASCII only: one byte per character.
+			{
+				writeVarInt(length + 1);
+				ensureCapacity(length);
+				for (i = 0; i < length; i++)
+				{
+					buffer[size++] = (byte) value.charAt(i);
+				}
+			}
+			else
+			{
+				writeBytes(value.getBytes(UTF8));
+			}
+		}
+
+
+
+
+
+
+		/**
+		 * @param value
+		 *            a byte array, or null.
+		 */
+		public void writeBytes(byte[] value)
+		{
+			if (value == null)
+			{
+				writeVarInt(0);
+				return;
+			}
+
+			writeVarInt(value.length + 1);
+			ensureCapacity(value.length);
+			System.arraycopy(value, 0, buffer, size, value.length);
+			size += value.length;
+		}
+
+
+
+
+
+
+		private void writeFixed(long bits, int length)
+		{
+			ensureCapacity(length);
+			for (int shift = (length - 1) * 8; shift >= 0; shift -= 8)
+			{
+				buffer[size++] = (byte) (bits >>> shift);
+			}
+		}
+
+
+
+
+
+
+		private void ensureCapacity(int length)
+		{
+			if (size + length > buffer.length)
+			{
+				byte[] newBuffer = new byte[Math.max(buffer.length * 2, size + length)];
+				System.arraycopy(buffer, 0, newBuffer, 0, size);
+				buffer = newBuffer;
+			}
+		}
+
+
+
+
+
+
+		private byte[] toByteArray()
+		{
+			byte[] bytes = new byte[size];
+			System.arraycopy(buffer, 0, bytes, 0, size);
+			return bytes;
+		}
+	}
+
+	/**
+	 * Encoded event being read.
+	 */
+	public static final class Input
+	{
+		private final byte[] data;
+		private final int limit;
+		private int position;
+
+		private Input(byte[] data, int offset, int length)
+		{
+			this.data = data;
+			limit = offset + length;
+			position = offset;
+		}
+
+
+
+
+
+
+		public int readVarInt() throws IOException
+		{
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7)
+			{
+				byte b = readByte();
+				value |= (b & 0x7F) << shift;
+				if (b >= 0)
+				{
+					return value;
+				}
+			}
+			throw new IOException("malformed variable-length integer.");
+		}
+
+
+
+
+
+
+		public int readSignedVarInt() throws IOException
+		{
+			int value = readVarInt();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+
+
+
+
+
+		public long readVarLong() throws IOException
+		{
+			long value = 0;
+			for (int shift = 0; shift < 70; shift += 7)
+			{
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+				{
+					return value;
+				}
+			}
+			throw new IOException("malformed variable-length long.");
+		}
+
+
+
+
+
+
+		public long readSignedVarLong() throws IOException
+		{
+			long value = readVarLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+
+
+
+
+
+		public boolean readBoolean() throws IOException
+		{
+			return readByte() != 0;
+		}
+
+
+
+
+
+
+		public float readFloat() throws IOException
+		{
+			return Float.intBitsToFloat((int) readFixed(4));
+		}
+
+
+
+
+
+
+		public double readDouble() throws IOException
+		{
+			return Double.longBitsToDouble(readFixed(8));
+		}
+
+
+
+
+
+
+		/**
+		 * @return a string, or null.
+		 */
+		public String readString() throws IOException
+		{
+			int length = readLength();
+			if (length < 0)
+			{
+				return null;
+			}
+
+			String value = new String(data, position, length, UTF8);
+			position += length;
+			return value;
+		}
+
+
+
+
+
+
+		/**
+		 * @return a byte array, or null.
+		 */
+		public byte[] readBytes() throws IOException
+		{
+			int length = readLength();
+			if (length < 0)
+			{
+				return null;
+			}
+
+			byte[] value = new byte[length];
+			System.arraycopy(data, position, value, 0, length);
+			position += length;
+			return value;
+		}
+
+
+
+
+
+
+		/**
+		 * @return the length of the string or byte array that follows, or -1 if it is null.
+		 */
+		private int readLength() throws IOException
+		{
+			int length = readVarInt() - 1;
+			if (length < -1)
+			{
+				throw new IOException("malformed length.");
+			}
+			if (length > limit - position)
+			{
+				throw new EOFException();
+			}
+			return length;
+		}
+
+
+
+
+
+
+		private long readFixed(int length) throws IOException
+		{
+			long bits = 0;
+			for (int i = 0; i < length; i++)
+			{
+				bits = (bits << 8) | (readByte() & 0xFF);
+			}
+			return bits;
+		}
+
+
+
+
+
+
+		private byte readByte() throws IOException
+		{
+			if (position >= limit)
+			{
+				throw new EOFException();
+			}
+			return data[position++];
+		}
+	}
+
+	/**
+	 * A registered event type.
+	 */
+	private static final class Registration<T extends AbstractEvent>
+	{
+		private final int typeId;
+		private final Class<T> type;
+		private final Marshaller<T> marshaller;
+
+		private Registration(int typeId, Class<T> type, Marshaller<T> marshaller)
+		{
+			this.typeId = typeId;
+			this.type = type;
+			this.marshaller = marshaller;
+		}
+
+
+
+
+
+
+		private void write(AbstractEvent event, Output output)
+		{
+			marshaller.write(type.cast(event), output);
+		}
+	}
+
+
+
+
+
+
+	public BinaryEventCodec()
+	{
+		byClass = new ConcurrentHashMap<Class<? extends AbstractEvent>, Registration<?>>();
+		byId = new Registration<?>[0];
+	}
+
+
+
+
+
+
+	/**
+	 * Register an event type.
+	 * 
+	 * @param typeId
+	 *            the identifier of the type, between 0 and MAX_TYPE_ID. Small identifiers take
+	 *            less space: those lower than 128 take a single byte.
+	 * @param type
+	 *            the event class.
+	 * @param marshaller
+	 *            the marshaller of the events of that class.
+	 * @return this codec.
+	 * @throws IllegalArgumentException
+	 *             if typeId is out of range or already registered, if type is already
+	 *             registered, or if an argument is null.
+	 */
+	public synchronized <T extends AbstractEvent> BinaryEventCodec register(
+		int typeId,
+		Class<T> type,
+		Marshaller<T> marshaller)
+	{
+		if (typeId < 0 || typeId > MAX_TYPE_ID) throw new IllegalArgumentException(
+			"typeId must be between 0 and " + MAX_TYPE_ID + ".");
+		if (type == null) throw new IllegalArgumentException("type cannot be null.");
+		if (marshaller == null) throw new IllegalArgumentException(
+			"marshaller cannot be null.");
+		if (typeId < byId.length && byId[typeId] != null)
+			throw new IllegalArgumentException("typeId " + typeId + " is already registered.");
+		if (byClass.containsKey(type)) throw new IllegalArgumentException(
+			type.getName() + " is already registered.");
+
+		Registration<T> registration = new Registration<T>(typeId, type, marshaller);
+		Registration<?>[] newRegistrations = byId;
+		if (typeId >= newRegistrations.length)
+		{
+			newRegistrations = new Registration<?>[typeId + 1];
+			System.arraycopy(byId, 0, newRegistrations, 0, byId.length);
+		}
+		else
+		{
+			newRegistrations = newRegistrations.clone();
+		}
+		newRegistrations[typeId] = registration;
+		byId = newRegistrations;
+		byClass.put(type, registration);
+		return this;
+	}
+
+
+
+
+
+
+	@Override
+	public String getMediaType()
+	{
+		return MEDIA_TYPE;
+	}
+
+
+
+
+
+
+	@Override
+	public boolean canEncode(AbstractEvent event)
+	{
+		return byClass.containsKey(event.getClass());
+	}
+
+
+
+
+
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the class of the event is not registered.
+	 */
+	@Override
+	public byte[] encode(AbstractEvent event)
+	{
+		Registration<?> registration = byClass.get(event.getClass());
+		if (registration == null) throw new IllegalArgumentException(
+			event.getClass().getName() + " is not registered.");
+
+		Output output = new Output();
+		output.writeVarInt(registration.typeId);
+		output.writeVarInt(event.getPriority().ordinal());
+		registration.write(event, output);
+		return output.toByteArray();
+	}
+
+
+
+
+
+
+	@Override
+	public AbstractEvent decode(byte[] data, int offset, int length) throws IOException
+	{
+		Input input = new Input(data, offset, length);
+		int typeId = input.readVarInt();
+		Registration<?>[] registrations = byId;
+		if (typeId < 0 || typeId >= registrations.length || registrations[typeId] == null)
+		{
+			throw new IOException("unknown event type " + typeId + ".");
+		}
+
+		int priority = input.readVarInt();
+		if (priority < 0 || priority >= PRIORITIES.length)
+		{
+			throw new IOException("unknown event priority " + priority + ".");
+		}
+
+		AbstractEvent event = registrations[typeId].marshaller.read(input);
+		if (event == null || event.getClass() != registrations[typeId].type)
+		{
+			throw new IOException("the marshaller of event type " + typeId + " returned "
+				+ ((event == null) ? "null." : "a " + event.getClass().getName() + "."));
+		}
+		if (input.position != input.limit)
+		{
+			throw new IOException("unexpected data after an event of type " + typeId + ".");
+		}
+
+		if (event.getPriority() != PRIORITIES[priority])
+		{
+			event.setPriority(PRIORITIES[priority]);
+		}
+		return event;
+	}
+}
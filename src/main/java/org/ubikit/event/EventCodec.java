@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event;
+
+import java.io.IOException;
+
+
+
+/**
+ * Serialization format of the events exchanged by HTTP event gates, as an alternative to JSON.
+ * A codec may only support some event types: events it cannot encode are sent as JSON.
+ * 
+ * Codecs are used concurrently by the threads that post and receive events, and must be
+ * thread-safe.
+ * 
+ * @see EventGateOptions#setHttpEventCodec(EventCodec)
+ */
+public interface EventCodec
+{
+	/**
+	 * @return the media type of encoded events, such as "application/vnd.ubikit.event+binary".
+	 *         It must have a structured syntax suffix, that is contain a '+', so that it cannot be
+	 *         taken for the media type of a JSON event. It may not have parameters.
+	 */
+	public String getMediaType();
+
+	/**
+	 * @param event
+	 *            an event to post.
+	 * @return true if this codec can encode the event.
+	 */
+	public boolean canEncode(AbstractEvent event);
+
+	/**
+	 * @param event
+	 *            an event this codec can encode.
+	 * @return the encoded event.
+	 */
+	public byte[] encode(AbstractEvent event);
+
+	/**
+	 * @param data
+	 *            a buffer holding an encoded event.
+	 * @param offset
+	 *            the offset of the encoded event in data.
+	 * @param length
+	 *            the length of the encoded event.
+	 * @return the decoded event.
+	 * @throws IOException
+	 *             if the data is malformed, or holds an event of an unknown type.
+	 */
+	public AbstractEvent decode(byte[] data, int offset, int length) throws IOException;
+}
@@ -45,19 +45,154 @@
 
 package org.ubikit.event;
 
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public interface EventGate 
 {
 	public void linkTo(EventGate partner);
+	
+	/**
+	 * Link this gate to a partner, receiving from it only the events the given filter selects.
+	 * The filter is evaluated by the partner before posting, so that other events are never
+	 * enqueued in this gate. Linking again to the same partner replaces the filter.
+	 * 
+	 * A link works in both directions, but the filter only applies to the events this gate
+	 * receives: the partner still receives all the events of this gate, unless it links to this
+	 * gate with a filter of its own.
+	 * 
+	 * @param partner the gate to link to.
+	 * @param filter the events to receive from the partner, or null for all events.
+	 */
+	public void linkTo(EventGate partner, SubscriptionFilter filter);
+	
 	public void unlink(EventGate partner);
 	public void unlinkAll();
 	
 	public void addListener(EventListener listener);
+	
+	/**
+	 * Add a listener that only receives the events the given filter selects. When all the
+	 * listeners of a gate have filters, partners do not even post to the gate the events none of
+	 * them selects.
+	 * 
+	 * @param listener the listener to add.
+	 * @param filter the events the listener receives, or null for all events.
+	 */
+	public void addListener(EventListener listener, SubscriptionFilter filter);
+	
 	public void removeListener(EventListener listener);
 	public void clearAllListeners();
 	
 	public void postEvent(AbstractEvent e);
 	public void postLocalEvent(AbstractEvent e);
 	public void postEvents(List<AbstractEvent> events);
+	
+	/**
+	 * Post a list of events to the listeners of this gate, as a single queue entry.
+	 * 
+	 * @param events the events to post, in order.
+	 */
+	public void postLocalEvents(List<AbstractEvent> events);
+	
+	/**
+	 * Post an event to the partners of this gate at a given date. Scheduled postings of all gates
+	 * share a single timer thread, with a precision of about ten milliseconds. That thread never
+	 * waits for room in a full gate: whatever the overflow policy, the event is then dropped. A
+	 * recyclable event is retained until it is posted or the posting is cancelled.
+	 * 
+	 * @param e the event to post.
+	 * @param date the date to post the event at. Past dates post it as soon as possible.
+	 * @return a handle to cancel the posting.
+	 */
+	public ScheduledPost postEventAt(AbstractEvent e, Date date);
+	
+	/**
+	 * Post an event to the partners of this gate after a delay.
+	 * 
+	 * @param e the event to post.
+	 * @param delay the delay before posting.
+	 * @param unit the unit of delay.
+	 * @return a handle to cancel the posting.
+	 * @see #postEventAt(AbstractEvent, Date)
+	 */
+	public ScheduledPost postEventAfter(AbstractEvent e, long delay, TimeUnit unit);
+	
+	/**
+	 * Post an event to the partners of this gate periodically, at a fixed rate, until the posting
+	 * is cancelled. The same event instance is posted each time: it should be immutable.
+	 * Periods missed because the timer was late are skipped.
+	 * 
+	 * @param e the event to post.
+	 * @param initialDelay the delay before the first posting.
+	 * @param period the period between postings.
+	 * @param unit the unit of initialDelay and period.
+	 * @return a handle to cancel the postings.
+	 * @see #postEventAt(AbstractEvent, Date)
+	 */
+	public ScheduledPost schedulePeriodic(
+		AbstractEvent e,
+		long initialDelay,
+		long period,
+		TimeUnit unit);
+	
+	/**
+	 * Deliver an event to the listeners of this gate at a given date, typically to handle a
+	 * timeout on the delivery thread.
+	 * 
+	 * @see #postEventAt(AbstractEvent, Date)
+	 */
+	public ScheduledPost postLocalEventAt(AbstractEvent e, Date date);
+	
+	/**
+	 * Deliver an event to the listeners of this gate after a delay.
+	 * 
+	 * @see #postEventAfter(AbstractEvent, long, TimeUnit)
+	 */
+	public ScheduledPost postLocalEventAfter(AbstractEvent e, long delay, TimeUnit unit);
+	
+	/**
+	 * Deliver an event to the listeners of this gate periodically, typically to trigger polls.
+	 * 
+	 * @see #schedulePeriodic(AbstractEvent, long, long, TimeUnit)
+	 */
+	public ScheduledPost scheduleLocalPeriodic(
+		AbstractEvent e,
+		long initialDelay,
+		long period,
+		TimeUnit unit);
+	
+	/**
+	 * @return the position following the last event journaled by this gate. It can be saved and
+	 * later given to replayFrom() to catch up with the events received since.
+	 * @throws IllegalStateException if the journal of this gate is not enabled.
+	 * @see EventGateOptions#setJournal(java.io.File, EventInstanciator)
+	 */
+	public long getJournalPosition();
+	
+	/**
+	 * Deliver to a listener, in the calling thread, the events journaled by this gate from a
+	 * position up to the current end of the journal. Events the listener does not care about are
+	 * skipped. If the position is older than the oldest retained event, the replay starts from
+	 * the latter.
+	 * 
+	 * @param position a position returned by getJournalPosition() or replayFrom().
+	 * @param listener the listener to deliver events to.
+	 * @return the position following the last replayed event.
+	 * @throws IllegalStateException if the journal of this gate is not enabled.
+	 */
+	public long replayFrom(long position, EventListener listener);
+	
+	/**
+	 * Deliver to a listener, in the calling thread, the events journaled by this gate since a
+	 * given date, up to the current end of the journal.
+	 * 
+	 * @param since the date of the first event to replay.
+	 * @param listener the listener to deliver events to.
+	 * @return the position following the last replayed event.
+	 * @throws IllegalStateException if the journal of this gate is not enabled.
+	 * @see #replayFrom(long, EventListener)
+	 */
+	public long replayFrom(Date since, EventListener listener);
 }
@@ -0,0 +1,1313 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.BundleContext;
+import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
+
+
+
+/**
+ * Settings of an event gate. An options object is read once, when the gate is created. Setters
+ * return the options object itself so that settings can be chained:
+ * 
+ * <pre>
+ * new EventGateOptions().setCapacity(200).setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+ * </pre>
+ */
+public final class EventGateOptions
+{
+	/**
+	 * Default number of events an event gate can hold while they wait for being delivered, all
+	 * priority classes included. DEFAULT_CONTROL_CAPACITY of them are reserved for CONTROL
+	 * events, and the others are for NORMAL events.
+	 */
+	public static final int DEFAULT_CAPACITY = 20;
+
+	/**
+	 * Default number of CONTROL events an event gate can hold while they wait for being
+	 * delivered, taken out of DEFAULT_CAPACITY.
+	 */
+	public static final int DEFAULT_CONTROL_CAPACITY = 4;
+
+	/**
+	 * Default time a producer waits for room in a full gate, when the BLOCK overflow policy is
+	 * selected.
+	 */
+	public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 1000;
+
+	/**
+	 * Default size of the segment files of an event journal, in bytes.
+	 */
+	public static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Default number of segment files an event journal keeps.
+	 */
+	public static final int DEFAULT_JOURNAL_MAX_SEGMENTS = 16;
+
+	/**
+	 * Sub folder of the database folder (org.ubikit.database.folder framework property) in which
+	 * event journals are stored by default.
+	 */
+	public static final String JOURNAL_SUBFOLDER = "journals";
+
+	/**
+	 * Default number of latency budget overruns after which a listener is quarantined, when slow
+	 * listener detection is enabled.
+	 */
+	public static final int DEFAULT_SLOW_LISTENER_MAX_OVERRUNS = 3;
+
+	/**
+	 * Default time an HTTP event gate waits for a connection to a distant gate, in milliseconds.
+	 */
+	public static final long DEFAULT_HTTP_CONNECT_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * Default time an HTTP event gate waits for the response of a distant gate, in milliseconds.
+	 */
+	public static final long DEFAULT_HTTP_READ_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Default number of requests an HTTP event gate sends at once to a given distant host.
+	 */
+	public static final int DEFAULT_HTTP_MAX_CONNECTIONS = 4;
+
+	/**
+	 * Default number of asynchronous requests that may wait for a connection to a given distant
+	 * host.
+	 */
+	public static final int DEFAULT_HTTP_MAX_PENDING_REQUESTS = 1000;
+
+	/**
+	 * Default number of events an HTTP event gate gathers in a single request to a distant gate,
+	 * for events posted with postBatchedHttpEvent().
+	 */
+	public static final int DEFAULT_HTTP_BATCH_MAX_EVENTS = 100;
+
+	/**
+	 * Default time an HTTP event gate waits for more events before sending an incomplete batch,
+	 * in milliseconds.
+	 */
+	public static final long DEFAULT_HTTP_BATCH_LINGER_MILLIS = 50;
+
+	/**
+	 * Default size of the largest request body an HTTP event gate accepts, in bytes.
+	 */
+	public static final int DEFAULT_HTTP_MAX_BODY_SIZE = 1024 * 1024;
+
+	/**
+	 * What an event gate does with an incoming event when its queue is full.
+	 */
+	public static enum OverflowPolicy
+	{
+		/**
+		 * The producer waits for room in the queue, up to the block timeout. The event is dropped
+		 * if the timeout expires. Scheduled postings never wait: their events are dropped at once.
+		 */
+		BLOCK,
+
+		/**
+		 * The oldest waiting event is dropped to make room for the incoming one.
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * The incoming event is dropped. This is the historical behavior of event gates.
+		 */
+		DROP_NEWEST,
+
+		/**
+		 * The incoming event replaces the waiting event of the same class that was issued by the
+		 * same source item, if any. Otherwise, the incoming event is dropped. Events implementing
+		 * CoalescableEvent are merged with the waiting one instead.
+		 */
+		COALESCE
+	}
+
+	/**
+	 * Default number of events a listener mailbox or a delivery lane can hold, in
+	 * LISTENER_MAILBOXES or PARTITIONED_BY_ITEM delivery mode.
+	 */
+	public static final int DEFAULT_MAILBOX_CAPACITY = 100;
+
+	/**
+	 * Default number of delivery lanes, in PARTITIONED_BY_ITEM delivery mode.
+	 */
+	public static final int DEFAULT_LANE_COUNT = Math.max(2, Runtime
+		.getRuntime()
+		.availableProcessors());
+
+	/**
+	 * How an event gate runs its listeners.
+	 */
+	public static enum DeliveryMode
+	{
+		/**
+		 * Listeners are notified one after another by the gate deliverer thread. This is the
+		 * historical behavior of event gates.
+		 */
+		SEQUENTIAL,
+
+		/**
+		 * Each listener gets its own bounded mailbox, drained on a shared executor. Listeners are
+		 * notified in parallel, and a slow listener only delays itself. Each listener still
+		 * receives events in order. Events that do not fit in a full mailbox are dropped for that
+		 * listener only.
+		 */
+		LISTENER_MAILBOXES,
+
+		/**
+		 * Events are spread over several delivery lanes according to the UID of their source
+		 * item, and lanes are drained in parallel on a shared executor. Events issued by the
+		 * same item are always delivered in order, while events of distinct items may be
+		 * delivered concurrently. Events that have no source item go to the first lane.
+		 * 
+		 * In this mode, listeners may be notified from several threads at once and therefore
+		 * must be thread safe.
+		 * 
+		 * Events that do not fit in a full lane are dropped, unless the overflow policy is BLOCK
+		 * and the gate has a dedicated deliverer thread: the deliverer then waits for room, up to
+		 * the block timeout.
+		 */
+		PARTITIONED_BY_ITEM
+	}
+
+	/**
+	 * Name of the system property that selects the default dispatch mode of event gates. Its
+	 * value "shared" selects SHARED_POOL, any other value DEDICATED_THREAD.
+	 */
+	public static final String DISPATCHER_PROPERTY = "org.ubikit.event.dispatcher";
+
+	/**
+	 * Default maximum number of batches a gate delivers in a row before it yields its thread to
+	 * other gates, in SHARED_POOL dispatch mode.
+	 */
+	public static final int DEFAULT_DISPATCH_QUANTUM = 4;
+
+	/**
+	 * Data structure holding the events that wait for being delivered.
+	 */
+	public static enum QueueType
+	{
+		/**
+		 * A lock-protected queue. It supports every overflow policy and event coalescing. This is
+		 * the historical behavior of event gates.
+		 */
+		LOCKED_QUEUE,
+
+		/**
+		 * A preallocated ring buffer. Producers claim slots with an atomic sequence counter and
+		 * the gate deliverer waits for events according to the wait strategy, so that handing an
+		 * event over takes neither a lock nor an allocation. There is one ring per priority
+		 * class, and capacities are rounded up to the next power of two.
+		 * 
+		 * Only the BLOCK and DROP_NEWEST overflow policies are supported, and events are never
+		 * coalesced.
+		 */
+		RING_BUFFER
+	}
+
+	/**
+	 * How the deliverer of a RING_BUFFER gate waits for incoming events. Strategies trade CPU
+	 * usage against handoff latency. Producers waiting for room in a full ring buffer, under the
+	 * BLOCK overflow policy, always back off to parking.
+	 */
+	public static enum WaitStrategy
+	{
+		/**
+		 * The waiting thread is parked until an event is published. Lowest CPU usage, highest
+		 * latency.
+		 */
+		BLOCKING,
+
+		/**
+		 * The waiting thread spins, then yields, then sleeps for short periods.
+		 */
+		SLEEPING,
+
+		/**
+		 * The waiting thread spins, then yields its processor. Low latency, but keeps a core
+		 * busy while the gate is idle.
+		 */
+		YIELDING,
+
+		/**
+		 * The waiting thread spins. Lowest latency, but burns a whole core for each gate. Only
+		 * suitable when gates are fewer than available cores.
+		 */
+		BUSY_SPIN
+	}
+
+	/**
+	 * What runs the deliverer of an event gate.
+	 */
+	public static enum DispatchMode
+	{
+		/**
+		 * The deliverer owns a thread for the whole life of the gate, waiting for incoming events
+		 * when there are none. This is the historical behavior of event gates.
+		 */
+		DEDICATED_THREAD,
+
+		/**
+		 * The deliverer runs on a fork/join pool shared by all gates and sized according to the
+		 * number of available processors. A gate is only scheduled when it has waiting events,
+		 * and gives its thread back after delivering a few batches in a row, the dispatch
+		 * quantum, so that a busy gate cannot starve the others. Wait strategies are ignored.
+		 * 
+		 * Listeners of a gate are still notified by one thread at a time, in order, but not
+		 * always by the same thread.
+		 */
+		SHARED_POOL
+	}
+
+	private int capacity;
+	private int controlCapacity;
+	private OverflowPolicy overflowPolicy;
+	private long blockTimeoutMillis;
+	private DeliveryMode deliveryMode;
+	private int mailboxCapacity;
+	private int laneCount;
+	private final Set<Class<? extends AbstractPhysicalEnvironmentModelEvent>> coalescedEventClasses;
+	private QueueType queueType;
+	private WaitStrategy waitStrategy;
+	private DispatchMode dispatchMode;
+	private int dispatchQuantum;
+	private File journalFolder; // null if the journal is disabled.
+	private EventInstanciator journalEventInstanciator;
+	private int journalSegmentSize;
+	private int journalMaxSegments;
+	private long journalMaxAgeMillis; // 0 means no age limit.
+	private long listenerBudgetNanos; // 0 means slow listeners are not detected.
+	private int listenerMaxOverruns;
+	private long httpConnectTimeoutMillis;
+	private long httpReadTimeoutMillis;
+	private int httpMaxConnections;
+	private int httpMaxPendingRequests;
+	private int httpBatchMaxEvents;
+	private long httpBatchLingerMillis;
+	private EventCodec httpEventCodec; // null if events are only sent as JSON.
+	private int httpMaxBodySize;
+
+
+
+
+
+
+	public EventGateOptions()
+	{
+		capacity = DEFAULT_CAPACITY - DEFAULT_CONTROL_CAPACITY;
+		controlCapacity = DEFAULT_CONTROL_CAPACITY;
+		overflowPolicy = OverflowPolicy.DROP_NEWEST;
+		blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+		deliveryMode = DeliveryMode.SEQUENTIAL;
+		mailboxCapacity = DEFAULT_MAILBOX_CAPACITY;
+		laneCount = DEFAULT_LANE_COUNT;
+		coalescedEventClasses = new LinkedHashSet<Class<? extends AbstractPhysicalEnvironmentModelEvent>>();
+		queueType = QueueType.LOCKED_QUEUE;
+		waitStrategy = WaitStrategy.BLOCKING;
+		dispatchMode = ("shared".equalsIgnoreCase(System.getProperty(DISPATCHER_PROPERTY)))
+			? DispatchMode.SHARED_POOL
+			: DispatchMode.DEDICATED_THREAD;
+		dispatchQuantum = DEFAULT_DISPATCH_QUANTUM;
+		journalFolder = null;
+		journalEventInstanciator = null;
+		journalSegmentSize = DEFAULT_JOURNAL_SEGMENT_SIZE;
+		journalMaxSegments = DEFAULT_JOURNAL_MAX_SEGMENTS;
+		journalMaxAgeMillis = 0;
+		listenerBudgetNanos = 0;
+		listenerMaxOverruns = DEFAULT_SLOW_LISTENER_MAX_OVERRUNS;
+		httpConnectTimeoutMillis = DEFAULT_HTTP_CONNECT_TIMEOUT_MILLIS;
+		httpReadTimeoutMillis = DEFAULT_HTTP_READ_TIMEOUT_MILLIS;
+		httpMaxConnections = DEFAULT_HTTP_MAX_CONNECTIONS;
+		httpMaxPendingRequests = DEFAULT_HTTP_MAX_PENDING_REQUESTS;
+		httpBatchMaxEvents = DEFAULT_HTTP_BATCH_MAX_EVENTS;
+		httpBatchLingerMillis = DEFAULT_HTTP_BATCH_LINGER_MILLIS;
+		httpEventCodec = null;
+		httpMaxBodySize = DEFAULT_HTTP_MAX_BODY_SIZE;
+	}
+
+
+
+
+
+
+	/**
+	 * Create a copy of the given options, for instance to derive the options of several gates
+	 * from the same settings.
+	 * 
+	 * @param options
+	 *            the options to copy.
+	 * @throws IllegalArgumentException
+	 *             if options is null.
+	 */
+	public EventGateOptions(EventGateOptions options)
+	{
+		if (options == null) throw new IllegalArgumentException("options cannot be null.");
+
+		capacity = options.capacity;
+		controlCapacity = options.controlCapacity;
+		overflowPolicy = options.overflowPolicy;
+		blockTimeoutMillis = options.blockTimeoutMillis;
+		deliveryMode = options.deliveryMode;
+		mailboxCapacity = options.mailboxCapacity;
+		laneCount = options.laneCount;
+		coalescedEventClasses = new LinkedHashSet<Class<? extends AbstractPhysicalEnvironmentModelEvent>>(
+			options.coalescedEventClasses);
+		queueType = options.queueType;
+		waitStrategy = options.waitStrategy;
+		dispatchMode = options.dispatchMode;
+		dispatchQuantum = options.dispatchQuantum;
+		journalFolder = options.journalFolder;
+		journalEventInstanciator = options.journalEventInstanciator;
+		journalSegmentSize = options.journalSegmentSize;
+		journalMaxSegments = options.journalMaxSegments;
+		journalMaxAgeMillis = options.journalMaxAgeMillis;
+		listenerBudgetNanos = options.listenerBudgetNanos;
+		listenerMaxOverruns = options.listenerMaxOverruns;
+		httpConnectTimeoutMillis = options.httpConnectTimeoutMillis;
+		httpReadTimeoutMillis = options.httpReadTimeoutMillis;
+		httpMaxConnections = options.httpMaxConnections;
+		httpMaxPendingRequests = options.httpMaxPendingRequests;
+		httpBatchMaxEvents = options.httpBatchMaxEvents;
+		httpBatchLingerMillis = options.httpBatchLingerMillis;
+		httpEventCodec = options.httpEventCodec;
+		httpMaxBodySize = options.httpMaxBodySize;
+	}
+
+
+
+
+
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the number of NORMAL events the gate can hold while they wait for being delivered. It
+	 * is DEFAULT_CAPACITY - DEFAULT_CONTROL_CAPACITY by default, so that a gate holds
+	 * DEFAULT_CAPACITY events in all, as it did before events had priority classes.
+	 * 
+	 * @param capacity
+	 *            a strictly positive number of events.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if capacity is lower than 1.
+	 */
+	public EventGateOptions setCapacity(int capacity)
+	{
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be greater than 0.");
+
+		this.capacity = capacity;
+		return this;
+	}
+
+
+
+
+
+
+	public int getControlCapacity()
+	{
+		return controlCapacity;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the number of CONTROL events the gate can hold while they wait for being delivered.
+	 * CONTROL events have their own queue, so that they are neither delayed nor dropped because
+	 * of waiting NORMAL events. The overflow policy applies to both queues.
+	 * 
+	 * @param controlCapacity
+	 *            a strictly positive number of events.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if controlCapacity is lower than 1.
+	 */
+	public EventGateOptions setControlCapacity(int controlCapacity)
+	{
+		if (controlCapacity < 1) throw new IllegalArgumentException(
+			"controlCapacity must be greater than 0.");
+
+		this.controlCapacity = controlCapacity;
+		return this;
+	}
+
+
+
+
+
+
+	public OverflowPolicy getOverflowPolicy()
+	{
+		return overflowPolicy;
+	}
+
+
+
+
+
+
+	/**
+	 * Set what the gate does with incoming events when its queue is full.
+	 * 
+	 * @param overflowPolicy
+	 *            an overflow policy.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if overflowPolicy is null.
+	 */
+	public EventGateOptions setOverflowPolicy(OverflowPolicy overflowPolicy)
+	{
+		if (overflowPolicy == null) throw new IllegalArgumentException(
+			"overflowPolicy cannot be null.");
+
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+
+
+
+
+
+	public long getBlockTimeoutMillis()
+	{
+		return blockTimeoutMillis;
+	}
+
+
+
+
+
+
+	/**
+	 * Set how long a producer waits for room in a full gate when the BLOCK overflow policy is
+	 * selected.
+	 * 
+	 * @param timeout
+	 *            a positive or zero duration.
+	 * @param unit
+	 *            the unit of the timeout argument.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if timeout is negative or unit is null.
+	 */
+	public EventGateOptions setBlockTimeout(long timeout, TimeUnit unit)
+	{
+		if (timeout < 0) throw new IllegalArgumentException("timeout cannot be negative.");
+		if (unit == null) throw new IllegalArgumentException("unit cannot be null.");
+
+		this.blockTimeoutMillis = unit.toMillis(timeout);
+		return this;
+	}
+
+
+
+
+
+
+	public DeliveryMode getDeliveryMode()
+	{
+		return deliveryMode;
+	}
+
+
+
+
+
+
+	/**
+	 * Set how the gate runs its listeners.
+	 * 
+	 * @param deliveryMode
+	 *            a delivery mode.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if deliveryMode is null.
+	 */
+	public EventGateOptions setDeliveryMode(DeliveryMode deliveryMode)
+	{
+		if (deliveryMode == null) throw new IllegalArgumentException(
+			"deliveryMode cannot be null.");
+
+		this.deliveryMode = deliveryMode;
+		return this;
+	}
+
+
+
+
+
+
+	public int getMailboxCapacity()
+	{
+		return mailboxCapacity;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the number of events each listener mailbox or each delivery lane can hold, in
+	 * LISTENER_MAILBOXES or PARTITIONED_BY_ITEM delivery mode. When a lane is full, the gate
+	 * deliverer waits for room, so that events of an item are never reordered or lost.
+	 * 
+	 * @param mailboxCapacity
+	 *            a strictly positive number of events.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if mailboxCapacity is lower than 1.
+	 */
+	public EventGateOptions setMailboxCapacity(int mailboxCapacity)
+	{
+		if (mailboxCapacity < 1) throw new IllegalArgumentException(
+			"mailboxCapacity must be greater than 0.");
+
+		this.mailboxCapacity = mailboxCapacity;
+		return this;
+	}
+
+
+
+
+
+
+	public int getLaneCount()
+	{
+		return laneCount;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the number of delivery lanes, in PARTITIONED_BY_ITEM delivery mode.
+	 * 
+	 * @param laneCount
+	 *            a strictly positive number of lanes.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if laneCount is lower than 1.
+	 */
+	public EventGateOptions setLaneCount(int laneCount)
+	{
+		if (laneCount < 1) throw new IllegalArgumentException("laneCount must be greater than 0.");
+
+		this.laneCount = laneCount;
+		return this;
+	}
+
+
+
+
+
+
+	public Set<Class<? extends AbstractPhysicalEnvironmentModelEvent>> getCoalescedEventClasses()
+	{
+		return Collections.unmodifiableSet(coalescedEventClasses);
+	}
+
+
+
+
+
+
+	/**
+	 * Coalesce waiting events of the given class, or of any of its subclasses, whatever the
+	 * queue occupancy. While an event issued by a given source item waits for being delivered,
+	 * an incoming event of the same class and source item takes its place in the queue instead of
+	 * taking another one. Events implementing CoalescableEvent are merged with the waiting one.
+	 * 
+	 * This suits high-rate state updates, for which listeners only care about the latest state.
+	 * Events that have no source item are never coalesced.
+	 * 
+	 * @param eventClass
+	 *            an event class.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if eventClass is null.
+	 */
+	public EventGateOptions addCoalescedEventClass(
+		Class<? extends AbstractPhysicalEnvironmentModelEvent> eventClass)
+	{
+		if (eventClass == null) throw new IllegalArgumentException("eventClass cannot be null.");
+
+		coalescedEventClasses.add(eventClass);
+		return this;
+	}
+
+
+
+
+
+
+	public QueueType getQueueType()
+	{
+		return queueType;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the data structure holding the events that wait for being delivered.
+	 * 
+	 * @param queueType
+	 *            a queue type.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if queueType is null.
+	 */
+	public EventGateOptions setQueueType(QueueType queueType)
+	{
+		if (queueType == null) throw new IllegalArgumentException("queueType cannot be null.");
+
+		this.queueType = queueType;
+		return this;
+	}
+
+
+
+
+
+
+	public WaitStrategy getWaitStrategy()
+	{
+		return waitStrategy;
+	}
+
+
+
+
+
+
+	/**
+	 * Set how waiting threads wait, with the RING_BUFFER queue type. It is ignored otherwise.
+	 * 
+	 * @param waitStrategy
+	 *            a wait strategy.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if waitStrategy is null.
+	 */
+	public EventGateOptions setWaitStrategy(WaitStrategy waitStrategy)
+	{
+		if (waitStrategy == null) throw new IllegalArgumentException(
+			"waitStrategy cannot be null.");
+
+		this.waitStrategy = waitStrategy;
+		return this;
+	}
+
+
+
+
+
+
+	public DispatchMode getDispatchMode()
+	{
+		return dispatchMode;
+	}
+
+
+
+
+
+
+	/**
+	 * Set what runs the gate deliverer. The default mode is DEDICATED_THREAD, unless the
+	 * org.ubikit.event.dispatcher system property is set to "shared".
+	 * 
+	 * @param dispatchMode
+	 *            a dispatch mode.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if dispatchMode is null.
+	 */
+	public EventGateOptions setDispatchMode(DispatchMode dispatchMode)
+	{
+		if (dispatchMode == null) throw new IllegalArgumentException(
+			"dispatchMode cannot be null.");
+
+		this.dispatchMode = dispatchMode;
+		return this;
+	}
+
+
+
+
+
+
+	public int getDispatchQuantum()
+	{
+		return dispatchQuantum;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the maximum number of batches the gate delivers in a row before it yields its thread to
+	 * other gates, in SHARED_POOL dispatch mode. It is ignored otherwise.
+	 * 
+	 * @param dispatchQuantum
+	 *            a number of batches, greater than 0.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if dispatchQuantum is lower than 1.
+	 */
+	public EventGateOptions setDispatchQuantum(int dispatchQuantum)
+	{
+		if (dispatchQuantum < 1) throw new IllegalArgumentException(
+			"dispatchQuantum must be greater than 0.");
+
+		this.dispatchQuantum = dispatchQuantum;
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the folder of the event journal, or null if the journal is disabled.
+	 */
+	public File getJournalFolder()
+	{
+		return journalFolder;
+	}
+
+
+
+
+
+
+	public EventInstanciator getJournalEventInstanciator()
+	{
+		return journalEventInstanciator;
+	}
+
+
+
+
+
+
+	/**
+	 * Enable the event journal of the gate. Every event the gate accepts is appended to memory
+	 * mapped segment files in the given folder, as its class name and JSON representation, once
+	 * it is enqueued. Events the overflow policy drops on arrival are not journaled. Journaled
+	 * events survive a restart of the bundle and can be replayed with EventGate.replayFrom(). A
+	 * folder must be used by one gate only.
+	 * 
+	 * @param folder
+	 *            the folder of the journal. It is created if needed.
+	 * @param eventInstanciator
+	 *            the instanciator used to rebuild events when they are replayed.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if folder or eventInstanciator is null.
+	 */
+	public EventGateOptions setJournal(File folder, EventInstanciator eventInstanciator)
+	{
+		if (folder == null) throw new IllegalArgumentException("folder cannot be null.");
+		if (eventInstanciator == null) throw new IllegalArgumentException(
+			"eventInstanciator cannot be null.");
+
+		journalFolder = folder;
+		journalEventInstanciator = eventInstanciator;
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * Enable the event journal of the gate, in the default journal folder of the given bundle:
+	 * &lt;org.ubikit.database.folder&gt;/journals/&lt;bundle symbolic name&gt;/&lt;journalName&gt;.
+	 * 
+	 * @param bundleContext
+	 *            the context of the bundle that owns the gate.
+	 * @param journalName
+	 *            a name for the journal, unique in the bundle.
+	 * @param eventInstanciator
+	 *            the instanciator used to rebuild events when they are replayed.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if an argument is null or if journalName is empty.
+	 * @see #setJournal(File, EventInstanciator)
+	 */
+	public EventGateOptions setJournal(
+		BundleContext bundleContext,
+		String journalName,
+		EventInstanciator eventInstanciator)
+	{
+		if (bundleContext == null) throw new IllegalArgumentException(
+			"bundleContext cannot be null.");
+		if (journalName == null || journalName.equals("")) throw new IllegalArgumentException(
+			"journalName cannot be null or empty.");
+
+		String databaseFolder = bundleContext.getProperty("org.ubikit.database.folder");
+		if (databaseFolder == null)
+		{
+			databaseFolder = "db";
+		}
+
+		File folder = new File(new File(new File(databaseFolder, JOURNAL_SUBFOLDER), bundleContext
+			.getBundle()
+			.getSymbolicName()), journalName);
+		return setJournal(folder, eventInstanciator);
+	}
+
+
+
+
+
+
+	public int getJournalSegmentSize()
+	{
+		return journalSegmentSize;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the size of the segment files of the journal. Events larger than a segment get a
+	 * segment of their own.
+	 * 
+	 * @param journalSegmentSize
+	 *            a size in bytes, at least 4096.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if journalSegmentSize is lower than 4096.
+	 */
+	public EventGateOptions setJournalSegmentSize(int journalSegmentSize)
+	{
+		if (journalSegmentSize < 4096) throw new IllegalArgumentException(
+			"journalSegmentSize cannot be lower than 4096.");
+
+		this.journalSegmentSize = journalSegmentSize;
+		return this;
+	}
+
+
+
+
+
+
+	public int getJournalMaxSegments()
+	{
+		return journalMaxSegments;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the age beyond which journaled events are discarded, in milliseconds, or 0 if there
+	 *         is no age limit.
+	 */
+	public long getJournalMaxAgeMillis()
+	{
+		return journalMaxAgeMillis;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the retention policy of the journal. It is applied each time a segment is full: the
+	 * oldest segments are deleted while there are more than maxSegments segments or while all
+	 * the events of the oldest one are older than maxAge.
+	 * 
+	 * @param maxSegments
+	 *            the maximum number of segments, at least 2.
+	 * @param maxAge
+	 *            the maximum age of events, or 0 for no age limit.
+	 * @param unit
+	 *            the unit of maxAge.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if maxSegments is lower than 2, if maxAge is negative or if unit is null.
+	 */
+	public EventGateOptions setJournalRetention(int maxSegments, long maxAge, TimeUnit unit)
+	{
+		if (maxSegments < 2) throw new IllegalArgumentException(
+			"maxSegments cannot be lower than 2.");
+		if (maxAge < 0) throw new IllegalArgumentException("maxAge cannot be negative.");
+		if (unit == null) throw new IllegalArgumentException("unit cannot be null.");
+
+		journalMaxSegments = maxSegments;
+		journalMaxAgeMillis = unit.toMillis(maxAge);
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the time a listener may spend handling an event or a batch, in nanoseconds, or 0
+	 *         if slow listeners are not detected.
+	 */
+	public long getListenerBudgetNanos()
+	{
+		return listenerBudgetNanos;
+	}
+
+
+
+
+
+
+	public int getListenerMaxOverruns()
+	{
+		return listenerMaxOverruns;
+	}
+
+
+
+
+
+
+	/**
+	 * Enable slow listener detection. A listener that exceeds its latency budget maxOverruns
+	 * times within a minute is quarantined: from then on, it receives its events through a
+	 * bounded mailbox drained by an executor dedicated to quarantined listeners, so that it no
+	 * longer delays the other listeners of the gate. A SlowListenerEvent is posted, both locally
+	 * and to partners, and a warning is logged.
+	 * 
+	 * The mailbox of a quarantined listener holds up to mailboxCapacity events, and drops the
+	 * incoming ones when full.
+	 * 
+	 * @param budget
+	 *            the time a listener may spend handling an event or a batch, or 0 to disable
+	 *            detection, which is the default.
+	 * @param unit
+	 *            the unit of budget.
+	 * @param maxOverruns
+	 *            the number of overruns within a minute that gets a listener quarantined.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if budget is negative, if unit is null or if maxOverruns is lower than 1.
+	 */
+	public EventGateOptions setListenerBudget(long budget, TimeUnit unit, int maxOverruns)
+	{
+		if (budget < 0) throw new IllegalArgumentException("budget cannot be negative.");
+		if (unit == null) throw new IllegalArgumentException("unit cannot be null.");
+		if (maxOverruns < 1) throw new IllegalArgumentException(
+			"maxOverruns must be greater than 0.");
+
+		listenerBudgetNanos = unit.toNanos(budget);
+		listenerMaxOverruns = maxOverruns;
+		return this;
+	}
+
+
+
+
+
+
+	public long getHttpConnectTimeoutMillis()
+	{
+		return httpConnectTimeoutMillis;
+	}
+
+
+
+
+
+
+	public long getHttpReadTimeoutMillis()
+	{
+		return httpReadTimeoutMillis;
+	}
+
+
+
+
+
+
+	/**
+	 * Set how long an HTTP event gate waits for a connection to a distant gate, and then for its
+	 * response. It is ignored by other gates.
+	 * 
+	 * @param connectTimeout
+	 *            the connection timeout, or 0 to wait forever.
+	 * @param readTimeout
+	 *            the response timeout, or 0 to wait forever.
+	 * @param unit
+	 *            the unit of both timeouts.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if a timeout is negative or does not fit in an int once converted to
+	 *             milliseconds, or if unit is null.
+	 */
+	public EventGateOptions setHttpTimeouts(long connectTimeout, long readTimeout, TimeUnit unit)
+	{
+		if (unit == null) throw new IllegalArgumentException("unit cannot be null.");
+		if (connectTimeout < 0 || unit.toMillis(connectTimeout) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("connectTimeout is out of range.");
+		if (readTimeout < 0 || unit.toMillis(readTimeout) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("readTimeout is out of range.");
+
+		httpConnectTimeoutMillis = unit.toMillis(connectTimeout);
+		httpReadTimeoutMillis = unit.toMillis(readTimeout);
+		return this;
+	}
+
+
+
+
+
+
+	public int getHttpMaxConnections()
+	{
+		return httpMaxConnections;
+	}
+
+
+
+
+
+
+	public int getHttpMaxPendingRequests()
+	{
+		return httpMaxPendingRequests;
+	}
+
+
+
+
+
+
+	/**
+	 * Set how many asynchronous requests an HTTP event gate sends at once to a given distant
+	 * host, and how many more may wait for their turn. Requests beyond that fail at once. It is
+	 * ignored by other gates.
+	 * 
+	 * Connections are kept alive between requests by the HTTP client of the JVM, which keeps up
+	 * to http.maxConnections idle connections per host, 5 by default: maxConnections should not
+	 * exceed that number. Events posted asynchronously to a host are only guaranteed to arrive in
+	 * order if maxConnections is 1.
+	 * 
+	 * @param maxConnections
+	 *            the maximum number of concurrent requests per host, greater than 0.
+	 * @param maxPendingRequests
+	 *            the maximum number of waiting requests per host, greater than 0.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if maxConnections or maxPendingRequests is lower than 1.
+	 */
+	public EventGateOptions setHttpConcurrency(int maxConnections, int maxPendingRequests)
+	{
+		if (maxConnections < 1) throw new IllegalArgumentException(
+			"maxConnections must be greater than 0.");
+		if (maxPendingRequests < 1) throw new IllegalArgumentException(
+			"maxPendingRequests must be greater than 0.");
+
+		httpMaxConnections = maxConnections;
+		httpMaxPendingRequests = maxPendingRequests;
+		return this;
+	}
+
+
+
+
+
+
+	public int getHttpBatchMaxEvents()
+	{
+		return httpBatchMaxEvents;
+	}
+
+
+
+
+
+
+	public long getHttpBatchLingerMillis()
+	{
+		return httpBatchLingerMillis;
+	}
+
+
+
+
+
+
+	/**
+	 * Set when an HTTP event gate sends the events posted with postBatchedHttpEvent(): a batch
+	 * is sent as soon as it holds maxEvents events, or linger after its first event was posted.
+	 * It is ignored by other gates.
+	 * 
+	 * @param maxEvents
+	 *            the maximum number of events per request, greater than 0.
+	 * @param linger
+	 *            the maximum time an event waits for others, or 0 not to wait.
+	 * @param unit
+	 *            the unit of linger.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if maxEvents is lower than 1, if linger is negative or if unit is null.
+	 */
+	public EventGateOptions setHttpBatching(int maxEvents, long linger, TimeUnit unit)
+	{
+		if (maxEvents < 1) throw new IllegalArgumentException("maxEvents must be greater than 0.");
+		if (linger < 0) throw new IllegalArgumentException("linger cannot be negative.");
+		if (unit == null) throw new IllegalArgumentException("unit cannot be null.");
+
+		httpBatchMaxEvents = maxEvents;
+		httpBatchLingerMillis = unit.toMillis(linger);
+		return this;
+	}
+
+
+
+
+
+
+	public EventCodec getHttpEventCodec()
+	{
+		return httpEventCodec;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the codec an HTTP event gate uses, besides JSON, to send and receive single events. It
+	 * is ignored by other gates.
+	 * 
+	 * The gate advertises the media type of its codec in its responses. Events are sent to a
+	 * distant gate with the codec once that gate advertised its media type, as long as the codec
+	 * can encode them, and as JSON otherwise: gates without codec, or with an older version of
+	 * the framework, keep on receiving JSON. Batches are always sent as JSON.
+	 * 
+	 * @param codec
+	 *            a codec, or null to send and receive JSON only.
+	 * @return this options object.
+	 * @see BinaryEventCodec
+	 */
+	public EventGateOptions setHttpEventCodec(EventCodec codec)
+	{
+		httpEventCodec = codec;
+		return this;
+	}
+
+
+
+
+
+
+	public int getHttpMaxBodySize()
+	{
+		return httpMaxBodySize;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the size of the largest request body an HTTP event gate accepts from distant gates.
+	 * Larger requests are answered with a 413 response code. It is ignored by other gates.
+	 * 
+	 * @param maxBodySize
+	 *            a size in bytes, greater than 0.
+	 * @return this options object.
+	 * @throws IllegalArgumentException
+	 *             if maxBodySize is lower than 1.
+	 */
+	public EventGateOptions setHttpMaxBodySize(int maxBodySize)
+	{
+		if (maxBodySize < 1) throw new IllegalArgumentException(
+			"maxBodySize must be greater than 0.");
+
+		httpMaxBodySize = maxBodySize;
+		return this;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * Pool of recyclable events of a given type. Events are acquired from the pool and go back to it
+ * when their last reference is released, see RecyclableEvent. When the pool is empty, a new event
+ * is created, and when it is full, released events are left to the garbage collector.
+ * 
+ * Pool debug mode is enabled by setting the org.ubikit.event.pool.debug system property to true.
+ * In that mode, released events are never reused, so that any later use of them is detected.
+ */
+public final class EventPool<E extends RecyclableEvent>
+{
+	static final boolean DEBUG = Boolean.getBoolean("org.ubikit.event.pool.debug");
+
+	/**
+	 * Creates the events of a pool.
+	 */
+	public static interface Factory<E extends RecyclableEvent>
+	{
+		/**
+		 * @return a new event, never returned before.
+		 */
+		public E newEvent();
+	}
+
+	private final Factory<E> factory;
+	private final RecyclableEvent[] freeEvents; // Guarded by this.
+	private int freeEventCount; // Guarded by this.
+
+	private final AtomicLong createdEvents;
+	private final AtomicLong reusedEvents;
+
+
+
+
+
+
+	/**
+	 * Create an event pool.
+	 * 
+	 * @param factory
+	 *            creates events when the pool is empty.
+	 * @param capacity
+	 *            the maximum number of released events the pool keeps for reuse.
+	 * @throws IllegalArgumentException
+	 *             if factory is null or capacity is lower than 1.
+	 */
+	public EventPool(Factory<E> factory, int capacity)
+	{
+		if (factory == null) throw new IllegalArgumentException("factory cannot be null.");
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be greater than 0.");
+
+		this.factory = factory;
+		freeEvents = new RecyclableEvent[capacity];
+		freeEventCount = 0;
+		createdEvents = new AtomicLong();
+		reusedEvents = new AtomicLong();
+	}
+
+
+
+
+
+
+	/**
+	 * Acquire an event that occurs now.
+	 * 
+	 * @param sourceItemUID
+	 *            UID of the item that issues the event.
+	 * @return an event with a single reference, owned by the caller.
+	 */
+	public E acquire(String sourceItemUID)
+	{
+		return acquire(sourceItemUID, System.currentTimeMillis());
+	}
+
+
+
+
+
+
+	/**
+	 * Acquire an event that occurred at the given time.
+	 * 
+	 * @param sourceItemUID
+	 *            UID of the item that issues the event.
+	 * @param timestamp
+	 *            occurrence time of the event, in milliseconds since the epoch.
+	 * @return an event with a single reference, owned by the caller.
+	 */
+	@SuppressWarnings("unchecked")
+	public E acquire(String sourceItemUID, long timestamp)
+	{
+		E event = null;
+		synchronized (this)
+		{
+			if (freeEventCount > 0)
+			{
+				event = (E) freeEvents[--freeEventCount];
+				freeEvents[freeEventCount] = null;
+			}
+		}
+
+		if (event == null)
+		{
+			event = factory.newEvent();
+			createdEvents.incrementAndGet();
+		}
+		else
+		{
+			reusedEvents.incrementAndGet();
+		}
+
+		event.acquired(this, sourceItemUID, timestamp);
+		return event;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the number of released events waiting for reuse.
+	 */
+	public synchronized int getFreeEventCount()
+	{
+		return freeEventCount;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the number of events the factory created.
+	 */
+	public long getCreatedEventCount()
+	{
+		return createdEvents.get();
+	}
+
+
+
+
+
+
+	/**
+	 * @return the number of acquisitions that reused a released event.
+	 */
+	public long getReusedEventCount()
+	{
+		return reusedEvents.get();
+	}
+
+
+
+
+
+
+	public static boolean isDebugEnabled()
+	{
+		return DEBUG;
+	}
+
+
+
+
+
+
+	void recycle(RecyclableEvent event)
+	{
+		if (DEBUG)
+		{
+			return;
+		}
+
+		synchronized (this)
+		{
+			if (freeEventCount < freeEvents.length)
+			{
+				freeEvents[freeEventCount++] = event;
+			}
+		}
+	}
+}
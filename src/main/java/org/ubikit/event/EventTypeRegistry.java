@@ -0,0 +1,233 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.MalformedJsonException;
+
+
+
+/**
+ * Event instanciator that only instanciates the event classes registered with it. The Gson type
+ * adapter of each class is built once, at registration, so that instanciating an event neither
+ * looks up its class nor inspects it by reflection: the cost of decoding an event only depends
+ * on its data. Events of unregistered classes are rejected before their data is read.
+ * 
+ * It can be handed to HTTP event gates and to event journals. Classes may be registered at any
+ * time, from any thread.
+ */
+public final class EventTypeRegistry implements StreamingEventInstanciator
+{
+	private final Gson gson;
+	private final ConcurrentMap<String, TypeAdapter<? extends AbstractEvent>> adapters;
+
+	final Logger logger = LoggerFactory.getLogger(EventTypeRegistry.class);
+
+
+
+
+
+
+	/**
+	 * Create a registry decoding events with a default Gson instance, as event gates encode them.
+	 */
+	public EventTypeRegistry()
+	{
+		this(new Gson());
+	}
+
+
+
+
+
+
+	/**
+	 * Create a registry decoding events with the given Gson instance, for event classes that need
+	 * custom type adapters.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if gson is null.
+	 */
+	public EventTypeRegistry(Gson gson)
+	{
+		if (gson == null) throw new IllegalArgumentException("gson cannot be null.");
+
+		this.gson = gson;
+		adapters = new ConcurrentHashMap<String, TypeAdapter<? extends AbstractEvent>>();
+	}
+
+
+
+
+
+
+	/**
+	 * Register an event class, building its type adapter.
+	 * 
+	 * @param type
+	 *            an event class.
+	 * @return this registry.
+	 * @throws IllegalArgumentException
+	 *             if type is null or already registered.
+	 */
+	public EventTypeRegistry register(Class<? extends AbstractEvent> type)
+	{
+		if (type == null) throw new IllegalArgumentException("type cannot be null.");
+
+		if (adapters.putIfAbsent(type.getName(), gson.getAdapter(type)) != null)
+			throw new IllegalArgumentException(type.getName() + " is already registered.");
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * @param className
+	 *            the class name of an event.
+	 * @return true if the class is registered.
+	 */
+	public boolean isRegistered(String className)
+	{
+		return adapters.containsKey(className);
+	}
+
+
+
+
+
+
+	/**
+	 * @return the event, or null if its class is not registered or if its data is malformed.
+	 */
+	@Override
+	public AbstractEvent instanciateEvent(String className, String dataAsJSON)
+	{
+		TypeAdapter<? extends AbstractEvent> adapter = getAdapter(className);
+		if (adapter == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			return adapter.fromJson(dataAsJSON);
+		}
+		catch (IOException e) // MalformedJsonException, or EOFException if the data is truncated.
+		{
+			logger.debug("Malformed {} data: {}", className, e.getMessage());
+			return null;
+		}
+		catch (JsonParseException e)
+		{
+			logger.debug("Malformed {} data: {}", className, e.getMessage());
+			return null;
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * @return the event, or null if its class is not registered or if its data is malformed.
+	 *         Its data is not read if its class is not registered.
+	 */
+	@Override
+	public AbstractEvent instanciateEvent(String className, Reader data) throws IOException
+	{
+		TypeAdapter<? extends AbstractEvent> adapter = getAdapter(className);
+		if (adapter == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			return adapter.fromJson(data);
+		}
+		catch (MalformedJsonException e)
+		{
+			logger.debug("Malformed {} data: {}", className, e.getMessage());
+			return null;
+		}
+		catch (JsonParseException e)
+		{
+			logger.debug("Malformed {} data: {}", className, e.getMessage());
+			return null;
+		}
+	}
+
+
+
+
+
+
+	private TypeAdapter<? extends AbstractEvent> getAdapter(String className)
+	{
+		TypeAdapter<? extends AbstractEvent> adapter = (className != null)
+			? adapters.get(className)
+			: null;
+		if (adapter == null)
+		{
+			logger.debug("Unregistered event class {}", className);
+		}
+		return adapter;
+	}
+}
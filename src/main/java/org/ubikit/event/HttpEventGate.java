@@ -47,10 +47,19 @@ package org.ubikit.event;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Future;
 
 public interface HttpEventGate extends EventGate 
 {
 	public static final String eventGateBaseURL = "/eventgate/";
+	
+	/**
+	 * Media type of a request body holding a JSON array of events, each of them being an object
+	 * with a "type" member, the event class name, and an "event" member, the event itself.
+	 */
+	public static final String eventBatchMediaType = "application/vnd.ubikit.events+json";
+	
 	public static enum Mode
 	{
 		IPv4,
@@ -58,5 +67,92 @@ public interface HttpEventGate extends EventGate
 		DNS
 	}
 	
+	
+	/**
+	 * Notified when an asynchronous post completes. Methods are called by the thread that sent
+	 * the request, and must return quickly.
+	 */
+	public interface ResponseListener
+	{
+		/**
+		 * @param eventGateURL the URL the event was posted to.
+		 * @param code the HTTP response code of the distant event gate.
+		 */
+		public void onResponse(URL eventGateURL, int code);
+		
+		/**
+		 * @param eventGateURL the URL the event was posted to.
+		 * @param e the reason why the event could not be posted: connection failure, timeout or
+		 * too many waiting requests to that host.
+		 */
+		public void onFailure(URL eventGateURL, IOException e);
+	}
+	
+	/**
+	 * Post an event to a distant event gate, and wait for its response. Connections to a host
+	 * are kept alive between requests.
+	 * 
+	 * @param eventGateURL the URL of the distant event gate.
+	 * @param event the event to post.
+	 * @return the HTTP response code of the distant event gate.
+	 * @throws IOException if the event could not be posted.
+	 */
 	public int postHttpEvent(URL eventGateURL, AbstractEvent event) throws IOException;
+	
+	/**
+	 * Post an event to a distant event gate without waiting. The event is serialized at once, so
+	 * that it may be modified or recycled as soon as this method returns. Requests to a host are
+	 * sent by a bounded number of threads, according to the gate options.
+	 * 
+	 * @param eventGateURL the URL of the distant event gate.
+	 * @param event the event to post.
+	 * @return the future HTTP response code of the distant event gate. It fails with an
+	 * IOException if the event could not be posted.
+	 */
+	public Future<Integer> postHttpEventAsync(URL eventGateURL, AbstractEvent event);
+	
+	/**
+	 * Same as postHttpEventAsync(URL, AbstractEvent), notifying a listener on completion.
+	 * 
+	 * @param eventGateURL the URL of the distant event gate.
+	 * @param event the event to post.
+	 * @param listener the listener to notify, or null.
+	 * @return the future HTTP response code of the distant event gate.
+	 */
+	public Future<Integer> postHttpEventAsync(URL eventGateURL, AbstractEvent event, ResponseListener listener);
+	
+	/**
+	 * Post events of any types to a distant event gate in a single request, and wait for its
+	 * response. The distant gate delivers them to its listeners as a single batch.
+	 * 
+	 * Events are only batched to a distant gate that advertised eventBatchMediaType in the
+	 * Accept-Post header of a previous response. Otherwise, they are posted one by one, up to the
+	 * first one that is not answered with a 200 response code.
+	 * 
+	 * @param eventGateURL the URL of the distant event gate.
+	 * @param events the events to post, in order.
+	 * @return the HTTP response code of the distant event gate, that is the one of the last
+	 * request if events were posted one by one.
+	 * @throws IOException if the events could not be posted.
+	 * @throws IllegalArgumentException if events is empty.
+	 */
+	public int postHttpEvents(URL eventGateURL, List<AbstractEvent> events) throws IOException;
+	
+	/**
+	 * Post an event to a distant event gate along with other events posted to the same URL. The
+	 * event is serialized at once and added to the pending batch of that URL, which is sent
+	 * asynchronously when it is full or when its linger time has elapsed, according to the gate
+	 * options. Events are sent in order as long as the gate sends one request at a time to that
+	 * host.
+	 * 
+	 * Events are only batched to a distant gate that advertised eventBatchMediaType in the
+	 * Accept-Post header of a previous response. Otherwise, the event is posted at once, as by
+	 * postHttpEventAsync(URL, AbstractEvent).
+	 * 
+	 * @param eventGateURL the URL of the distant event gate.
+	 * @param event the event to post.
+	 * @return the future HTTP response code of the request that carries the event. It fails with
+	 * an IOException if the batch could not be posted.
+	 */
+	public Future<Integer> postBatchedHttpEvent(URL eventGateURL, AbstractEvent event);
 }
@@ -0,0 +1,202 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
+
+
+
+/**
+ * Event that can be reused once every gate and listener is done with it, in order to spare
+ * allocations on high-rate event paths. Recyclable events are obtained from an EventPool, filled,
+ * posted, then released by their producer:
+ * 
+ * <pre>
+ * TelegramEvent event = pool.acquire(itemUID);
+ * event.setTelegram(data);
+ * gate.postEvent(event);
+ * event.release();
+ * </pre>
+ * 
+ * A recyclable event counts references. It is created or acquired with one reference, owned by
+ * the producer. Event gates retain the events they enqueue and release them once delivered. A
+ * listener that keeps an event beyond its onEvent() call must retain it, then release it when
+ * done. When the last reference is released, the event is cleared and goes back to its pool.
+ * 
+ * Using an event after its last release is a bug, since the event may already carry other
+ * data. In debug mode (see EventPool), released events are never reused and the accessors of
+ * subclasses, which call checkNotReleased(), throw an IllegalStateException instead.
+ */
+public abstract class RecyclableEvent extends AbstractPhysicalEnvironmentModelEvent
+{
+	private final transient AtomicInteger references;
+	private transient EventPool<?> pool; // null if the event was not obtained from a pool.
+
+
+
+
+
+
+	protected RecyclableEvent()
+	{
+		super(null, 0L);
+		references = new AtomicInteger(1);
+		pool = null;
+	}
+
+
+
+
+
+
+	/**
+	 * Add a reference to this event, which will not be recycled before a matching call to
+	 * release().
+	 * 
+	 * @throws IllegalStateException
+	 *             if this event was already released.
+	 */
+	public final void retain()
+	{
+		int count;
+		do
+		{
+			count = references.get();
+			if (count <= 0) throw new IllegalStateException(getClass().getName()
+				+ " was retained after being released.");
+		}
+		while (!references.compareAndSet(count, count + 1));
+	}
+
+
+
+
+
+
+	/**
+	 * Remove a reference to this event. Releasing the last reference clears the event and gives
+	 * it back to its pool.
+	 * 
+	 * @throws IllegalStateException
+	 *             if this event was already released.
+	 */
+	public final void release()
+	{
+		int count = references.decrementAndGet();
+		if (count == 0)
+		{
+			clear();
+			setPriority(null);
+			if (pool != null)
+			{
+				pool.recycle(this);
+			}
+		}
+		else if (count < 0)
+		{
+			throw new IllegalStateException(getClass().getName() + " was released too many times.");
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * @return true if the last reference to this event was released.
+	 */
+	public final boolean isReleased()
+	{
+		return references.get() <= 0;
+	}
+
+
+
+
+
+
+	/**
+	 * Check that this event was not released. Accessors of subclasses should call this method,
+	 * which does nothing unless pool debug mode is enabled.
+	 * 
+	 * @throws IllegalStateException
+	 *             in debug mode, if this event was released.
+	 */
+	protected final void checkNotReleased()
+	{
+		if (EventPool.DEBUG && references.get() <= 0) throw new IllegalStateException(getClass()
+			.getName() + " was used after being released.");
+	}
+
+
+
+
+
+
+	/**
+	 * Reset the data of this event when its last reference is released, so that it does not hold
+	 * on to objects while it waits in its pool.
+	 */
+	protected abstract void clear();
+
+
+
+
+
+
+	/**
+	 * Give this event to a pool consumer, with a new identity and a single reference.
+	 */
+	final void acquired(EventPool<?> pool, String sourceItemUID, long timestamp)
+	{
+		this.pool = pool;
+		reinitialize(sourceItemUID, timestamp);
+		references.set(1);
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
+
+
+
+/**
+ * Selects the events an event gate or a listener subscribes to. A filter handed to
+ * EventGate.linkTo() is evaluated by the partner gate before posting, so that events that do not
+ * match are never enqueued. A filter handed to EventGate.addListener() restricts what the
+ * listener receives, and gates only accept events that at least one of their listeners wants.
+ * 
+ * A filter is built by chaining criteria:
+ * 
+ * <pre>
+ * new SubscriptionFilter().addEventClass(ItemPropertiesUpdatedEvent.class).addSourceItemUID(uid);
+ * </pre>
+ * 
+ * An event matches if its class matches the event class criterion and, when it was issued by an
+ * item, if that item matches the item criteria. Item criteria are alternatives: an item matches
+ * if its UID is one of the selected UIDs, starts with one of the selected prefixes, or if the item
+ * has one of the selected capabilities. Missing criteria match everything.
+ * 
+ * Events do not carry the capabilities of their item. A capability criterion therefore needs a
+ * CapabilityResolver, supplied by the PEM that owns the items (see ItemCapabilityResolver). Without
+ * a resolver, capability criteria select no item.
+ * 
+ * A filter must not be modified once it was handed to a gate.
+ */
+public final class SubscriptionFilter
+{
+	/**
+	 * Tells the capabilities of items, usually from the item registry of a PEM.
+	 */
+	public interface CapabilityResolver
+	{
+		/**
+		 * Tell if an item has a capability. This method must be thread safe and should be fast,
+		 * since it is called for every filtered event.
+		 * 
+		 * @param itemUID
+		 *            an item UID.
+		 * @param capability
+		 *            a capability name.
+		 * @return true if the item is known and has the capability.
+		 */
+		public boolean hasCapability(String itemUID, String capability);
+	}
+
+	private final Set<Class<? extends AbstractEvent>> eventClasses;
+	private final Set<String> sourceItemUIDs;
+	private final List<String> sourceItemUIDPrefixes;
+	private final Set<String> capabilities;
+	private CapabilityResolver capabilityResolver; // or null
+
+
+
+
+
+
+	public SubscriptionFilter()
+	{
+		eventClasses = new LinkedHashSet<Class<? extends AbstractEvent>>();
+		sourceItemUIDs = new LinkedHashSet<String>();
+		sourceItemUIDPrefixes = new ArrayList<String>();
+		capabilities = new LinkedHashSet<String>();
+		capabilityResolver = null;
+	}
+
+
+
+
+
+
+	/**
+	 * Select events of the given class, or of any of its subclasses.
+	 * 
+	 * @param eventClass
+	 *            an event class.
+	 * @return this filter.
+	 * @throws IllegalArgumentException
+	 *             if eventClass is null.
+	 */
+	public SubscriptionFilter addEventClass(Class<? extends AbstractEvent> eventClass)
+	{
+		if (eventClass == null) throw new IllegalArgumentException("eventClass cannot be null.");
+
+		eventClasses.add(eventClass);
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * Select events issued by the item of the given UID.
+	 * 
+	 * @param sourceItemUID
+	 *            an item UID.
+	 * @return this filter.
+	 * @throws IllegalArgumentException
+	 *             if sourceItemUID is null.
+	 */
+	public SubscriptionFilter addSourceItemUID(String sourceItemUID)
+	{
+		if (sourceItemUID == null) throw new IllegalArgumentException(
+			"sourceItemUID cannot be null.");
+
+		sourceItemUIDs.add(sourceItemUID);
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * Select events issued by items whose UID starts with the given prefix.
+	 * 
+	 * @param prefix
+	 *            an item UID prefix.
+	 * @return this filter.
+	 * @throws IllegalArgumentException
+	 *             if prefix is null.
+	 */
+	public SubscriptionFilter addSourceItemUIDPrefix(String prefix)
+	{
+		if (prefix == null) throw new IllegalArgumentException("prefix cannot be null.");
+
+		sourceItemUIDPrefixes.add(prefix);
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * Select events issued by items that have the given capability. Capabilities are resolved by
+	 * the capability resolver of this filter.
+	 * 
+	 * @param capability
+	 *            a capability name.
+	 * @return this filter.
+	 * @throws IllegalArgumentException
+	 *             if capability is null.
+	 */
+	public SubscriptionFilter addCapability(String capability)
+	{
+		if (capability == null) throw new IllegalArgumentException("capability cannot be null.");
+
+		capabilities.add(capability);
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * Set the resolver that tells the capabilities of items.
+	 * 
+	 * @param capabilityResolver
+	 *            a capability resolver, usually an ItemCapabilityResolver.
+	 * @return this filter.
+	 * @throws IllegalArgumentException
+	 *             if capabilityResolver is null.
+	 */
+	public SubscriptionFilter setCapabilityResolver(CapabilityResolver capabilityResolver)
+	{
+		if (capabilityResolver == null) throw new IllegalArgumentException(
+			"capabilityResolver cannot be null.");
+
+		this.capabilityResolver = capabilityResolver;
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * Tell if an event matches this filter. This method is thread safe.
+	 * 
+	 * @param event
+	 *            an event.
+	 * @return true if the event matches.
+	 */
+	public boolean accepts(AbstractEvent event)
+	{
+		return acceptsClass(event.getClass()) && acceptsItem(event);
+	}
+
+
+
+
+
+
+	/**
+	 * Tell if events of a class may match this filter, regardless of their source item.
+	 * 
+	 * @param eventClass
+	 *            an event class.
+	 * @return true if events of that class may match.
+	 */
+	public boolean acceptsClass(Class<? extends AbstractEvent> eventClass)
+	{
+		if (eventClasses.isEmpty())
+		{
+			return true;
+		}
+
+		for (Class<? extends AbstractEvent> c : eventClasses)
+		{
+			if (c.isAssignableFrom(eventClass))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+
+
+
+
+
+	private boolean acceptsItem(AbstractEvent event)
+	{
+		if (!(event instanceof AbstractPhysicalEnvironmentModelEvent))
+		{
+			return true;
+		}
+
+		String uid = ((AbstractPhysicalEnvironmentModelEvent) event).getSourceItemUID();
+		if (uid == null
+			|| (sourceItemUIDs.isEmpty() && sourceItemUIDPrefixes.isEmpty() && capabilities
+				.isEmpty()))
+		{
+			return true;
+		}
+
+		if (sourceItemUIDs.contains(uid))
+		{
+			return true;
+		}
+
+		for (String prefix : sourceItemUIDPrefixes)
+		{
+			if (uid.startsWith(prefix))
+			{
+				return true;
+			}
+		}
+
+		if (capabilityResolver != null)
+		{
+			for (String capability : capabilities)
+			{
+				if (capabilityResolver.hasCapability(uid, capability))
+				{
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+}
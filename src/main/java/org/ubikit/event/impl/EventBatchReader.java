@@ -0,0 +1,556 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventInstanciator;
+import org.ubikit.event.EventTypeRegistry;
+import org.ubikit.event.StreamingEventInstanciator;
+
+
+
+/**
+ * Streaming reader of the event batches HTTP event gates post, that is JSON arrays of
+ * {"type": class name, "event": event} objects. Only the envelope of events is scanned here: the
+ * JSON of each event is handed to a streaming instanciator straight from the request body, so
+ * that no tree is built and no event is parsed twice. Other instanciators get the JSON of each
+ * event as a string, which is then the only copy made.
+ * 
+ * An event whose type follows it in its object is copied as a string until its type is known.
+ * When the instanciator is an EventTypeRegistry, the type of each event is looked up in it first,
+ * and events of unregistered types are skipped without being decoded.
+ */
+final class EventBatchReader
+{
+	private static final int BUFFER_SIZE = 4096;
+
+	private final Reader in;
+	private final char[] buffer;
+	private int position;
+	private int limit;
+
+	/**
+	 * Reader of a single JSON value of the batch, which reaches its end right after that value.
+	 * Nested values are tracked by their depth, strings by their quotes.
+	 */
+	private final class ValueReader extends Reader
+	{
+		private boolean started;
+		private int depth;
+		private boolean inString;
+		private boolean escaped;
+		private boolean done;
+
+
+
+
+
+
+		@Override
+		public int read(char[] chars, int offset, int length) throws IOException
+		{
+			if (done)
+			{
+				return -1;
+			}
+
+			int count = 0;
+			while (count < length && !done)
+			{
+				int c = peek();
+				if (c < 0)
+				{
+					throw new MalformedBatchException("unterminated value");
+				}
+
+				if (!started)
+				{
+					if (isWhitespace(c))
+					{
+						position++;
+						continue;
+					}
+					started = true;
+				}
+
+				if (inString)
+				{
+					if (escaped)
+					{
+						escaped = false;
+					}
+					else if (c == '\\')
+					{
+						escaped = true;
+					}
+					else if (c == '"')
+					{
+						inString = false;
+						done = (depth == 0);
+					}
+				}
+				else if (c == '"')
+				{
+					inString = true;
+				}
+				else if (c == '{' || c == '[')
+				{
+					depth++;
+				}
+				else if (c == '}' || c == ']')
+				{
+					if (depth == 0)
+					{
+						// End of a scalar value, which does not belong to it.
+						done = true;
+						break;
+					}
+					depth--;
+					done = (depth == 0);
+				}
+				else if (depth == 0 && (c == ',' || isWhitespace(c)))
+				{
+					done = true;
+					break;
+				}
+
+				position++;
+				chars[offset + count++] = (char) c;
+			}
+
+			return (count == 0 && done) ? -1 : count;
+		}
+
+
+
+
+
+
+		/**
+		 * Read the rest of the value, if any.
+		 */
+		void skip() throws IOException
+		{
+			char[] chars = new char[256];
+			while (read(chars, 0, chars.length) >= 0)
+			{}
+		}
+
+
+
+
+
+
+		/**
+		 * Read the rest of the value as a string.
+		 */
+		String readString() throws IOException
+		{
+			StringBuilder value = new StringBuilder();
+			char[] chars = new char[256];
+			int count;
+			while ((count = read(chars, 0, chars.length)) >= 0)
+			{
+				value.append(chars, 0, count);
+			}
+			return value.toString();
+		}
+
+
+
+
+
+
+		@Override
+		public void close()
+		{
+			// The request body belongs to the batch reader.
+		}
+	}
+
+	/**
+	 * Thrown when a batch is not a JSON array of objects.
+	 */
+	static final class MalformedBatchException extends IOException
+	{
+		private static final long serialVersionUID = 4126703915246874339L;
+
+
+
+
+
+
+		private MalformedBatchException(String message)
+		{
+			super(message);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * @param in
+	 *            the reader of a batch, which belongs to the caller.
+	 */
+	EventBatchReader(Reader in)
+	{
+		this.in = in;
+		buffer = new char[BUFFER_SIZE];
+		position = 0;
+		limit = 0;
+	}
+
+
+
+
+
+
+	/**
+	 * Read a whole batch and instanciate its events.
+	 * 
+	 * @param instanciator
+	 *            the instanciator of events.
+	 * @param events
+	 *            the list that receives the instanciated events, in batch order.
+	 * @return the number of entries of the batch that could not be instanciated.
+	 * @throws MalformedBatchException
+	 *             if the batch is not a JSON array of objects.
+	 * @throws IOException
+	 *             if the batch cannot be read.
+	 */
+	int readEvents(EventInstanciator instanciator, List<AbstractEvent> events) throws IOException
+	{
+		int skipped = 0;
+		expect('[');
+		if (nextNonWhitespace() == ']')
+		{
+			position++;
+		}
+		else
+		{
+			int separator;
+			do
+			{
+				AbstractEvent event = readEntry(instanciator);
+				if (event != null)
+				{
+					events.add(event);
+				}
+				else
+				{
+					skipped++;
+				}
+				separator = nextNonWhitespace();
+				position++;
+			}
+			while (separator == ',');
+
+			if (separator != ']')
+			{
+				throw new MalformedBatchException("',' or ']' expected");
+			}
+		}
+
+		if (nextNonWhitespace() >= 0)
+		{
+			throw new MalformedBatchException("end of batch expected");
+		}
+		return skipped;
+	}
+
+
+
+
+
+
+	/**
+	 * Read a {"type": class name, "event": event} object.
+	 * 
+	 * @return the instanciated event, or null if it cannot be instanciated.
+	 */
+	private AbstractEvent readEntry(EventInstanciator instanciator) throws IOException
+	{
+		expect('{');
+		if (nextNonWhitespace() == '}')
+		{
+			position++;
+			return null;
+		}
+
+		String type = null;
+		String pendingJson = null; // The event, when read before its type.
+		AbstractEvent event = null;
+		int separator;
+		do
+		{
+			String name = readName();
+			expect(':');
+			ValueReader value = new ValueReader();
+			if (name.equals("type") && nextNonWhitespace() == '"')
+			{
+				type = readName();
+			}
+			else if (name.equals("event") && type != null)
+			{
+				if (isKnown(instanciator, type))
+				{
+					event = instanciate(instanciator, type, value);
+				}
+			}
+			else if (name.equals("event"))
+			{
+				pendingJson = value.readString();
+			}
+			value.skip();
+
+			separator = nextNonWhitespace();
+			position++;
+		}
+		while (separator == ',');
+
+		if (separator != '}')
+		{
+			throw new MalformedBatchException("',' or '}' expected");
+		}
+
+		if (event == null && pendingJson != null && type != null && isKnown(instanciator, type))
+		{
+			event = instanciator.instanciateEvent(type, pendingJson);
+		}
+		return event;
+	}
+
+
+
+
+
+
+	/**
+	 * @return false if the instanciator is a registry that does not hold the type, in which case
+	 *         the event is skipped without being decoded.
+	 */
+	private static boolean isKnown(EventInstanciator instanciator, String type)
+	{
+		return !(instanciator instanceof EventTypeRegistry)
+			|| ((EventTypeRegistry) instanciator).isRegistered(type);
+	}
+
+
+
+
+
+
+	private AbstractEvent instanciate(EventInstanciator instanciator, String type, ValueReader value)
+		throws IOException
+	{
+		if (instanciator instanceof StreamingEventInstanciator)
+		{
+			return ((StreamingEventInstanciator) instanciator).instanciateEvent(type, value);
+		}
+
+		return instanciator.instanciateEvent(type, value.readString());
+	}
+
+
+
+
+
+
+	/**
+	 * Read a string, such as the name of a member.
+	 */
+	private String readName() throws IOException
+	{
+		expect('"');
+		StringBuilder name = new StringBuilder();
+		while (true)
+		{
+			int c = read();
+			if (c < 0)
+			{
+				throw new MalformedBatchException("unterminated string");
+			}
+			if (c == '"')
+			{
+				return name.toString();
+			}
+			if (c != '\\')
+			{
+				name.append((char) c);
+				continue;
+			}
+
+			c = read();
+			switch (c)
+			{
+				case 'b':
+					name.append('\b');
+					break;
+				case 'f':
+					name.append('\f');
+					break;
+				case 'n':
+					name.append('\n');
+					break;
+				case 'r':
+					name.append('\r');
+					break;
+				case 't':
+					name.append('\t');
+					break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; i++)
+					{
+						int digit = Character.digit(read(), 16);
+						if (digit < 0)
+						{
+							throw new MalformedBatchException("malformed unicode escape");
+						}
+						code = (code << 4) | digit;
+					}
+					name.append((char) code);
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					name.append((char) c);
+					break;
+				default:
+					throw new MalformedBatchException("malformed escape");
+			}
+		}
+	}
+
+
+
+
+
+
+	private void expect(char expected) throws IOException
+	{
+		if (nextNonWhitespace() != expected)
+		{
+			throw new MalformedBatchException("'" + expected + "' expected");
+		}
+		position++;
+	}
+
+
+
+
+
+
+	/**
+	 * Skip whitespace.
+	 * 
+	 * @return the next character, which is not consumed, or -1 at the end of the batch.
+	 */
+	private int nextNonWhitespace() throws IOException
+	{
+		int c;
+		while (isWhitespace(c = peek()))
+		{
+			position++;
+		}
+		return c;
+	}
+
+
+
+
+
+
+	private int read() throws IOException
+	{
+		int c = peek();
+		if (c >= 0)
+		{
+			position++;
+		}
+		return c;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the next character, which is not consumed, or -1 at the end of the batch.
+	 */
+	private int peek() throws IOException
+	{
+		if (position == limit)
+		{
+			int count = in.read(buffer, 0, buffer.length);
+			if (count <= 0)
+			{
+				return -1;
+			}
+			position = 0;
+			limit = count;
+		}
+		return buffer[position];
+	}
+
+
+
+
+
+
+	private static boolean isWhitespace(int c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+}
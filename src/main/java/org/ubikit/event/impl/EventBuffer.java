@@ -0,0 +1,315 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventPriority;
+
+
+
+/**
+ * Holds the events that wait for being delivered by an event gate. Incoming events are offered
+ * by any number of producer threads, and drained by the deliverer of the gate, one thread at a
+ * time.
+ * 
+ * Each priority class has its own queue, with its own capacity and drop statistics. Waiting
+ * CONTROL events are always drained before waiting NORMAL events.
+ * 
+ * Callers retain recyclable events before offering them. The buffer then owns that reference:
+ * it releases the events it drops, and hands the others over to the deliverer.
+ */
+abstract class EventBuffer
+{
+	/**
+	 * Enqueue an event in the queue of its priority class, applying the overflow policy if that
+	 * queue is full.
+	 * 
+	 * @param event
+	 *            the event to enqueue.
+	 * @return true if the event was enqueued or coalesced with a waiting one, false if it was
+	 *         dropped.
+	 */
+	abstract boolean offer(AbstractEvent event);
+
+	/**
+	 * Same as offer(), but never wait for room: with the BLOCK overflow policy, the event is
+	 * dropped if its queue is full. Meant for threads that must not be stalled by a full gate,
+	 * such as the shared timer thread.
+	 * 
+	 * @param event
+	 *            the event to enqueue.
+	 * @return true if the event was enqueued or coalesced with a waiting one, false if it was
+	 *         dropped.
+	 */
+	abstract boolean tryOffer(AbstractEvent event);
+
+
+
+
+
+
+	/**
+	 * Enqueue a batch of events as a single entry of the NORMAL queue, applying the overflow
+	 * policy if that queue is full.
+	 * 
+	 * @param batch
+	 *            the events to enqueue, none of them having the CONTROL priority. The list must
+	 *            not be modified afterward.
+	 * @return true if the batch was enqueued, false if it was dropped.
+	 */
+	abstract boolean offerBatch(List<AbstractEvent> batch);
+
+
+
+
+
+
+	/**
+	 * Enqueue a batch of events. The CONTROL events of the batch are taken out of it and enqueued
+	 * one by one ahead of the others, which stay together as a single entry.
+	 * 
+	 * @param batch
+	 *            the events to enqueue. The list must not be modified afterward.
+	 * @param accepted
+	 *            a list that receives the events that were enqueued or coalesced, or null.
+	 * @return true if all the events were enqueued, false if some were dropped.
+	 */
+	boolean offerAll(List<AbstractEvent> batch, List<AbstractEvent> accepted)
+	{
+		List<AbstractEvent> normalEvents = batch;
+		for (int i = 0; i < batch.size(); i++)
+		{
+			if (batch.get(i).getPriority() == EventPriority.CONTROL)
+			{
+				normalEvents = new ArrayList<AbstractEvent>(batch.size());
+				break;
+			}
+		}
+
+		if (normalEvents == batch)
+		{
+			return offerBatch(batch, accepted);
+		}
+
+		boolean enqueued = true;
+		for (AbstractEvent event : batch)
+		{
+			if (event.getPriority() != EventPriority.CONTROL)
+			{
+				normalEvents.add(event);
+			}
+			else if (offer(event))
+			{
+				if (accepted != null)
+				{
+					accepted.add(event);
+				}
+			}
+			else
+			{
+				enqueued = false;
+			}
+		}
+		if (!normalEvents.isEmpty())
+		{
+			enqueued &= offerBatch(normalEvents, accepted);
+		}
+
+		return enqueued;
+	}
+
+
+
+
+
+
+	private boolean offerBatch(List<AbstractEvent> batch, List<AbstractEvent> accepted)
+	{
+		if (!offerBatch(batch))
+		{
+			return false;
+		}
+
+		if (accepted != null)
+		{
+			accepted.addAll(batch);
+		}
+		return true;
+	}
+
+
+
+
+
+
+	/**
+	 * Remove up to maxEntries entries from the head of the buffer and append their events to the
+	 * given list, waiting for at least one entry if the buffer is empty. CONTROL entries are
+	 * removed first. Must only be called by the deliverer thread.
+	 * 
+	 * @param events
+	 *            the list that receives drained events, in order.
+	 * @param acceptedTimes
+	 *            the list that receives, for each drained event, the System.nanoTime() at which
+	 *            the buffer accepted it.
+	 * @param maxEntries
+	 *            the maximum number of entries to drain. A batch counts as one entry.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	abstract void drainTo(List<AbstractEvent> events, LongList acceptedTimes, int maxEntries)
+		throws InterruptedException;
+
+
+
+
+
+
+	/**
+	 * Same as drainTo(), but return at once if the buffer is empty. Must only be called by the
+	 * deliverer.
+	 * 
+	 * @param events
+	 *            the list that receives drained events, in order.
+	 * @param acceptedTimes
+	 *            the list that receives, for each drained event, the System.nanoTime() at which
+	 *            the buffer accepted it.
+	 * @param maxEntries
+	 *            the maximum number of entries to drain. A batch counts as one entry.
+	 * @return true if at least one entry was drained.
+	 */
+	abstract boolean poll(List<AbstractEvent> events, LongList acceptedTimes, int maxEntries);
+
+
+
+
+
+
+	/**
+	 * @return true if entries wait for being drained. An entry is counted once the offer call that
+	 *         enqueues it has returned.
+	 */
+	abstract boolean hasWaitingEntries();
+
+
+
+
+
+
+	/**
+	 * @return the number of entries of the given priority class waiting in the buffer.
+	 */
+	abstract int size(EventPriority priority);
+
+
+
+
+
+
+	abstract int getCapacity(EventPriority priority);
+
+
+
+
+
+
+	abstract long getDroppedEventCount(EventPriority priority);
+
+
+
+
+
+
+	abstract long getCoalescedEventCount();
+
+
+
+
+
+
+	/**
+	 * @return the highest number of entries that waited in the buffer at once, all priority
+	 *         classes together.
+	 */
+	abstract int getHighWaterMark();
+
+
+
+
+
+
+	/**
+	 * @return the number of entries waiting in the buffer.
+	 */
+	int size()
+	{
+		return size(EventPriority.CONTROL) + size(EventPriority.NORMAL);
+	}
+
+
+
+
+
+
+	int getCapacity()
+	{
+		return getCapacity(EventPriority.CONTROL) + getCapacity(EventPriority.NORMAL);
+	}
+
+
+
+
+
+
+	long getDroppedEventCount()
+	{
+		return getDroppedEventCount(EventPriority.CONTROL)
+			+ getDroppedEventCount(EventPriority.NORMAL);
+	}
+}
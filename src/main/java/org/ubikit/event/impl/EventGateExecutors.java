@@ -0,0 +1,321 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ * Executors shared by all the event gates of the framework. They are created on first use and
+ * sized according to the number of available processors rather than to the number of installed
+ * extensions. Getters only take the class lock to create an executor, since gates call them for
+ * every scheduling.
+ */
+public final class EventGateExecutors
+{
+	private static final long TIMER_TICK_MILLIS = 10;
+	private static final int TIMER_WHEEL_SIZE = 512;
+	private static final int QUARANTINE_THREADS = 2;
+
+	// Read without locking on the hot paths, written with the class lock held.
+	private static volatile ExecutorService sharedExecutor = null;
+	private static volatile ForkJoinPool sharedDispatcher = null;
+	private static volatile ExecutorService quarantineExecutor = null;
+	private static volatile HashedWheelTimer sharedTimer = null;
+
+	/**
+	 * Create daemon threads with a recognizable name.
+	 */
+	static final class NamedThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger counter = new AtomicInteger();
+
+
+
+
+
+
+		NamedThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+
+
+
+
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Create the worker threads of the shared dispatcher, with a recognizable name. They are
+	 * daemon threads.
+	 */
+	static final class NamedWorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger counter = new AtomicInteger();
+
+
+
+
+
+
+		NamedWorkerThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+
+
+
+
+
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+		{
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+				.newThread(pool);
+			t.setName(prefix + "-" + counter.incrementAndGet());
+			return t;
+		}
+	}
+
+
+
+
+
+
+	private EventGateExecutors()
+	{}
+
+
+
+
+
+
+	/**
+	 * Return the executor that drains event gate mailboxes.
+	 * 
+	 * @return the shared executor.
+	 */
+	static ExecutorService getSharedExecutor()
+	{
+		ExecutorService executor = sharedExecutor;
+		if (executor == null)
+		{
+			synchronized (EventGateExecutors.class)
+			{
+				executor = sharedExecutor;
+				if (executor == null)
+				{
+					int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+					executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory(
+						"ubikit-event-mailbox"));
+					sharedExecutor = executor;
+				}
+			}
+		}
+
+		return executor;
+	}
+
+
+
+
+
+
+	/**
+	 * Return the pool that runs the deliverers of the gates in SHARED_POOL dispatch mode. It has
+	 * one thread per available processor, and runs submitted deliverers in FIFO order so that
+	 * each gate takes its turn.
+	 * 
+	 * @return the shared dispatcher.
+	 */
+	static ForkJoinPool getSharedDispatcher()
+	{
+		ForkJoinPool dispatcher = sharedDispatcher;
+		if (dispatcher == null)
+		{
+			synchronized (EventGateExecutors.class)
+			{
+				dispatcher = sharedDispatcher;
+				if (dispatcher == null)
+				{
+					dispatcher = new ForkJoinPool(
+						Runtime.getRuntime().availableProcessors(),
+						new NamedWorkerThreadFactory("ubikit-event-dispatcher"),
+						null,
+						true);
+					sharedDispatcher = dispatcher;
+				}
+			}
+		}
+
+		return dispatcher;
+	}
+
+
+
+
+
+
+	/**
+	 * Return the executor that drains the mailboxes of quarantined listeners, that is listeners
+	 * that repeatedly exceeded their latency budget. It is kept apart from the other executors so
+	 * that slow listeners only delay each other.
+	 * 
+	 * @return the quarantine executor.
+	 */
+	static ExecutorService getQuarantineExecutor()
+	{
+		ExecutorService executor = quarantineExecutor;
+		if (executor == null)
+		{
+			synchronized (EventGateExecutors.class)
+			{
+				executor = quarantineExecutor;
+				if (executor == null)
+				{
+					executor = Executors.newFixedThreadPool(
+						QUARANTINE_THREADS,
+						new NamedThreadFactory("ubikit-event-quarantine"));
+					quarantineExecutor = executor;
+				}
+			}
+		}
+
+		return executor;
+	}
+
+
+
+
+
+
+	/**
+	 * Return the timer that posts the scheduled events of all event gates.
+	 * 
+	 * @return the shared timer.
+	 */
+	static HashedWheelTimer getSharedTimer()
+	{
+		HashedWheelTimer timer = sharedTimer;
+		if (timer == null)
+		{
+			synchronized (EventGateExecutors.class)
+			{
+				timer = sharedTimer;
+				if (timer == null)
+				{
+					timer = new HashedWheelTimer(
+						"ubikit-event-timer",
+						TIMER_TICK_MILLIS,
+						TimeUnit.MILLISECONDS,
+						TIMER_WHEEL_SIZE);
+					sharedTimer = timer;
+				}
+			}
+		}
+
+		return timer;
+	}
+
+
+
+
+
+
+	/**
+	 * Stop the shared executors. This must only be called when the framework stops.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (sharedExecutor != null)
+		{
+			sharedExecutor.shutdownNow();
+			sharedExecutor = null;
+		}
+
+		if (sharedDispatcher != null)
+		{
+			sharedDispatcher.shutdownNow();
+			sharedDispatcher = null;
+		}
+
+		if (quarantineExecutor != null)
+		{
+			quarantineExecutor.shutdownNow();
+			quarantineExecutor = null;
+		}
+
+		if (sharedTimer != null)
+		{
+			sharedTimer.stop();
+			sharedTimer = null;
+		}
+	}
+}
@@ -45,46 +45,126 @@
 
 package org.ubikit.event.impl;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.locks.ReentrantLock;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
 import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.BatchEventListener;
 import org.ubikit.event.EventGate;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventGateOptions.DispatchMode;
+import org.ubikit.event.EventGateOptions.OverflowPolicy;
 import org.ubikit.event.EventListener;
+import org.ubikit.event.EventPriority;
+import org.ubikit.event.ScheduledPost;
+import org.ubikit.event.SubscriptionFilter;
+import org.ubikit.system.EventGateStatistics;
+import org.ubikit.system.SlowListenerEvent;
 
 
 
 public class EventGateImpl implements EventGate
 {
-	private static final int INCOMING_MESSAGE_QUEUE_SIZE = 20;
-	private final List<EventGateImpl> linkPartners;
-	private final BlockingQueue<AbstractEvent> incomingEvents;
-	private final List<EventListener> listeners;
-	private final List<EventListener> listenerAddingTemporaryList;
-	private final List<EventListener> listenerRemovingTemporaryList;
-	private final ReentrantLock listenersLock;
+	/**
+	 * Maximum number of queue entries the deliverer drains at once. A batch posted through
+	 * postEvents() counts as a single entry.
+	 */
+	private static final int MAX_DRAINED_ENTRIES = 64;
+
+	// States of a deliverer dispatched on the shared pool.
+	private static final int IDLE = 0;
+	private static final int SCHEDULED = 1;
+	private static final int STOPPED = 2;
+
+	/**
+	 * Period over which the latency budget overruns of a listener are counted.
+	 */
+	private static final long OVERRUN_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	// Changes of the link topology of all gates are serialized by this lock, so that links
+	// always are bidirectional and that two gates linking to each other cannot deadlock. Posting
+	// does not take it.
+	private static final Object linkLock = new Object();
+
+	private final AtomicReference<Link[]> links; // immutable arrays, replaced on change.
+	private final EventBuffer incomingEvents;
+	private final AtomicReference<ListenerSnapshot> listeners;
+	private final ConcurrentMap<EventListener, ListenerMailbox> mailboxes; // or null
+	private final DeliveryLane[] lanes; // or null
+	private final int mailboxCapacity;
+	private final long laneBlockTimeoutNanos; // 0 if full delivery lanes drop incoming events.
 	private final Runnable eventDelivererTask;
+	private final DispatchedDeliverer dispatchedDeliverer; // or null, with a dedicated thread.
 	private final String name; // USAGE : for debugging purpose only.
+	private final EventGateMetrics metrics;
+	private final EventJournal journal; // or null
+	private final long listenerBudgetNanos; // 0 if slow listeners are not detected.
+	private final int listenerMaxOverruns;
+	private final ConcurrentMap<EventListener, Overruns> overruns; // or null
+	private final ConcurrentMap<EventListener, ListenerMailbox> quarantine; // or null
 
 	private volatile boolean running;
+	private volatile Thread delivererThread; // or null
 
 	final Logger logger = LoggerFactory.getLogger(EventGateImpl.class);
 
+	/**
+	 * Link to a partner gate, with the filter that partner sets on the events it receives from
+	 * this gate.
+	 */
+	private static final class Link
+	{
+		private final EventGateImpl partner;
+		private final SubscriptionFilter filter; // or null
+
+		private Link(EventGateImpl partner, SubscriptionFilter filter)
+		{
+			this.partner = partner;
+			this.filter = filter;
+		}
+	}
+
+	/**
+	 * Latency budget overruns of a listener, counted since the start of the current window.
+	 */
+	private static final class Overruns
+	{
+		private long windowStart;
+		private int count;
+	}
+
 	private class EventDeliverer implements Runnable
 	{
 
 		@Override
 		public void run()
 		{
-			running = true;
+			List<AbstractEvent> batch = new ArrayList<AbstractEvent>();
+			List<AbstractEvent> readOnlyBatch = Collections.unmodifiableList(batch);
+			LongList acceptedTimes = new LongList();
+
+			delivererThread = Thread.currentThread();
+			String registeredName = startDelivery();
 			while (!Thread.currentThread().isInterrupted())
 			{
 				try
@@ -94,118 +174,8 @@ public class EventGateImpl implements EventGate
 						logger.debug("{}: ....Waiting for events....", name);
 					}
 
-					AbstractEvent event = incomingEvents.take();
-
-					if (logger.isDebugEnabled())
-					{
-						logger.debug(
-							"{}: ---- Delivering {} IS ON GOING... [{} listeners]",
-							name,
-							event.getClass().getName(),
-							listeners.size());
-						
-						logger.debug(
-							"{}: ----   * event date: {}",
-							name,
-							((AbstractPhysicalEnvironmentModelEvent) event).getDate());
-					}
-
-					listenersLock.lock(); // ### LOCKING access to listeners list.
-					try
-					{
-						if (logger.isDebugEnabled())
-						{
-							logger.debug("{}: Lock acquired ", name);
-						}
-						int lcount = 0;
-						for (EventListener eventListener : listeners)
-						{
-							if (logger.isDebugEnabled())
-							{
-								lcount++;
-								
-								logger.debug(
-									"{}: * Notifying listener {}: {}",
-									name,
-									lcount,
-									eventListener.getClass().getName());
-							}
-
-							try
-							{
-								if (logger.isDebugEnabled())
-								{
-									logger.debug("{}: --> {} delivering to {}", name, event
-										.getClass()
-										.getName(), eventListener.getClass().getName());
-								}
-								event.deliverTo(eventListener);
-							}
-							catch (ClassCastException exception)
-							{}
-							catch (Exception e)
-							{
-								logger.error(
-									"{}: ### Exception occurs when {} received {}",
-									name,
-									eventListener.getClass().getName(),
-									event.getClass().getName(),
-									e);
-							}
-						}
-
-						if (logger.isDebugEnabled())
-						{
-							logger.debug("{}: ---- Delivering {} IS DONE.", name, event
-								.getClass()
-								.getName());
-						}
-
-						if (!listenerAddingTemporaryList.isEmpty())
-						{
-							synchronized (listenerAddingTemporaryList)
-							{
-								for (EventListener eventListener : listenerAddingTemporaryList)
-								{
-									listeners.add(eventListener);
-									if (logger.isDebugEnabled())
-									{
-										logger.debug(
-											"{}: {} finally added.",
-											((name.equals("")) ? this : name),
-											eventListener.getClass().getName());
-									}
-								}
-
-								listenerAddingTemporaryList.clear();
-							}
-						}
-
-						if (!listenerRemovingTemporaryList.isEmpty())
-						{
-							synchronized (listenerRemovingTemporaryList)
-							{
-								for (EventListener eventListener : listenerRemovingTemporaryList)
-								{
-									listeners.remove(eventListener);
-									if (logger.isDebugEnabled())
-									{
-										logger.debug(
-											"{}: {} finally removed.",
-											((name.equals("")) ? this : name),
-											eventListener.getClass().getName());
-									}
-								}
-
-								listenerRemovingTemporaryList.clear();
-							}
-						}
-					}
-					finally
-					{
-						listenersLock.unlock(); // ### UNLOCKING access to listeners list.
-						logger.debug("{}: Lock released ", name);
-					}
+					incomingEvents.drainTo(batch, acceptedTimes, MAX_DRAINED_ENTRIES);
+					deliverDrained(batch, readOnlyBatch, acceptedTimes);
 				}
 				catch (InterruptedException e)
 				{
@@ -217,170 +187,268 @@ public class EventGateImpl implements EventGate
 				}
 			}
 
-			running = false;
-			if (logger.isDebugEnabled())
-			{
-				logger.debug("{} has terminated.", name);
-			}
+			delivererThread = null;
+			terminateDelivery(registeredName);
 		}
 	}
 
+	/**
+	 * Deliverer of a gate in SHARED_POOL dispatch mode. It is submitted to the shared dispatcher
+	 * when the gate goes from idle to having waiting events, and delivers at most a quantum of
+	 * batches before submitting itself again, behind the gates scheduled meanwhile.
+	 * 
+	 * While the deliverer is SCHEDULED, producers do not submit it: it goes back to IDLE only
+	 * when the buffer looks empty, and then checks the buffer again so that the events offered
+	 * in between are not left behind. Once the gate is stopped, the deliverer runs a last time
+	 * to terminate and goes STOPPED.
+	 */
+	private final class DispatchedDeliverer implements Runnable
+	{
+		private final int quantum;
+		private final AtomicInteger state;
+		private final List<AbstractEvent> batch;
+		private final List<AbstractEvent> readOnlyBatch;
+		private final LongList acceptedTimes;
+		private volatile String registeredName;
+
 
 
 
 
 
-	private boolean removePartner(EventGateImpl partner)
-	{
-		if (logger.isDebugEnabled())
+		DispatchedDeliverer(int quantum)
 		{
-			logger.debug("{} REMOVE LINK WITH {}", partner, ((name.equals("")) ? this : name));
+			this.quantum = quantum;
+			state = new AtomicInteger(STOPPED);
+			batch = new ArrayList<AbstractEvent>();
+			readOnlyBatch = Collections.unmodifiableList(batch);
+			acceptedTimes = new LongList();
 		}
-		return linkPartners.remove(partner);
-	}
 
 
 
 
 
 
-	protected String getName()
-	{
-		return this.name;
-	}
+		/**
+		 * Start accepting events. If the gate was just stopped, wait for the deliverer to
+		 * terminate first.
+		 */
+		synchronized void start()
+		{
+			try
+			{
+				while (!running && state.get() != STOPPED)
+				{
+					wait();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
 
+			if (!running)
+			{
+				registeredName = startDelivery();
+				state.set(IDLE);
+				if (incomingEvents.hasWaitingEntries())
+				{
+					schedule();
+				}
+			}
+		}
 
 
 
 
 
-	public EventGateImpl()
-	{
-		this("");
-	}
 
+		/**
+		 * Stop accepting events. The deliverer terminates on the shared dispatcher.
+		 */
+		synchronized void stop()
+		{
+			if (running)
+			{
+				running = false;
+				schedule();
+			}
+		}
 
 
 
 
 
-	public EventGateImpl(String name)
-	{
-		this.name = (name == null) ? "" : name;
-		running = false;
-		linkPartners = Collections.synchronizedList(new ArrayList<EventGateImpl>());
-		incomingEvents = new ArrayBlockingQueue<AbstractEvent>(INCOMING_MESSAGE_QUEUE_SIZE);
-		listeners = new ArrayList<EventListener>();
-		listenerAddingTemporaryList = new ArrayList<EventListener>();
-		listenerRemovingTemporaryList = new ArrayList<EventListener>();
-		listenersLock = new ReentrantLock();
-		eventDelivererTask = new EventDeliverer();
-	}
 
+		private synchronized void terminate()
+		{
+			terminateDelivery(registeredName);
+			state.set(STOPPED);
+			notifyAll();
+		}
 
 
 
 
 
-	public Runnable getEventDelivererTask()
-	{
-		return eventDelivererTask;
-	}
+
+		/**
+		 * Submit the deliverer unless it is already scheduled. Called after offering events, and
+		 * for stopping.
+		 */
+		void schedule()
+		{
+			if (state.get() == IDLE && state.compareAndSet(IDLE, SCHEDULED))
+			{
+				submit();
+			}
+		}
 
 
 
 
 
 
-	@Override
-	public void linkTo(EventGate partner)
-	{
-		if (!linkPartners.contains(partner))
+		private void submit()
 		{
-			if (logger.isDebugEnabled())
+			try
 			{
-				logger.debug("{} LINK TO {}", ((name.equals("")) ? this : name), ((partner
-					.equals("")) ? partner : ((EventGateImpl) partner).name));
+				EventGateExecutors.getSharedDispatcher().execute(this);
+			}
+			catch (RejectedExecutionException e)
+			{
+				logger.error("{}: the shared dispatcher rejected the gate deliverer.", name, e);
+				state.set(IDLE);
 			}
-			linkPartners.add((EventGateImpl) partner);
-			partner.linkTo(this);
 		}
-	}
 
 
 
 
 
 
-	@Override
-	public void unlink(EventGate partner)
-	{
-		if (logger.isDebugEnabled())
+		@Override
+		public void run()
 		{
-			logger.debug("{} UNLINK FROM {}", ((name.equals("")) ? this : name), ((partner
-				.equals("")) ? partner : ((EventGateImpl) partner).name));
+			int batches = 0;
+			try
+			{
+				while (running
+					&& batches < quantum
+					&& incomingEvents.poll(batch, acceptedTimes, MAX_DRAINED_ENTRIES))
+				{
+					batches++;
+					deliverDrained(batch, readOnlyBatch, acceptedTimes);
+				}
+			}
+			finally
+			{
+				if (!running)
+				{
+					terminate();
+				}
+				else if (batches == quantum)
+				{
+					submit();
+				}
+				else
+				{
+					state.set(IDLE);
+					if ((!running || incomingEvents.hasWaitingEntries())
+						&& state.compareAndSet(IDLE, SCHEDULED))
+					{
+						submit();
+					}
+				}
+			}
 		}
-		if (removePartner((EventGateImpl) partner))
+	}
+
+	/**
+	 * Delivery lane, in PARTITIONED_BY_ITEM delivery mode. Each lane delivers its events to all
+	 * interested listeners, in order.
+	 */
+	private final class DeliveryLane extends Mailbox
+	{
+		DeliveryLane()
 		{
-			((EventGateImpl) partner).removePartner(this);
+			super(mailboxCapacity, EventGateExecutors.getSharedExecutor(), metrics);
 		}
-	}
 
 
 
 
 
 
-	@Override
-	public void unlinkAll()
-	{
-		if (logger.isDebugEnabled())
-		{
-			logger.debug("{} UNLINK ALL ", ((name.equals("")) ? this : name));
-		}
-		synchronized (linkPartners)
+		@Override
+		void process(List<AbstractEvent> events)
 		{
-			Iterator<EventGateImpl> it = linkPartners.iterator();
-			while (it.hasNext())
+			ListenerSnapshot snapshot = listeners.get();
+			for (AbstractEvent event : events)
+			{
+				deliver(event, snapshot);
+			}
+
+			if (snapshot.getBatchListeners().length != 0)
 			{
-				it.next().removePartner(this);
-				it.remove();
+				List<AbstractEvent> readOnlyEvents = Collections.unmodifiableList(events);
+				for (BatchEventListener batchListener : snapshot.getBatchListeners())
+				{
+					deliverTo(readOnlyEvents, batchListener, snapshot);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Mailbox of a listener, in LISTENER_MAILBOXES delivery mode.
+	 */
+	private final class ListenerMailbox extends Mailbox
+	{
+		private final EventListener listener;
+
 
 
 
 
 
-	@Override
-	public void postEvent(AbstractEvent e)
-	{
-		synchronized (linkPartners)
+		ListenerMailbox(EventListener listener)
 		{
-			for (EventGateImpl gate : linkPartners)
-			{
-				gate.onIncomingEvent(e);
-			}
+			this(listener, EventGateExecutors.getSharedExecutor());
 		}
-	}
 
 
 
 
 
 
-	@Override
-	public void postLocalEvent(AbstractEvent e)
-	{
-		if (logger.isDebugEnabled())
+		ListenerMailbox(EventListener listener, Executor executor)
 		{
-			logger.debug("{}: Dispatching local event {}", ((name.equals("")) ? this : name), e
-				.getClass()
-				.getName());
+			super(mailboxCapacity, executor, metrics);
+			this.listener = listener;
+		}
+
+
+
+
+
+
+		@Override
+		void process(List<AbstractEvent> events)
+		{
+			if (listener instanceof BatchEventListener)
+			{
+				deliverTo(Collections.unmodifiableList(events), (BatchEventListener) listener);
+				return;
+			}
+
+			for (AbstractEvent event : events)
+			{
+				deliverTo(event, listener, listeners.get().lookup(event.getClass()).isTyped());
+			}
 		}
-		onIncomingEvent(e);
 	}
 
 
@@ -388,19 +456,37 @@ public class EventGateImpl implements EventGate
 
 
 
-	@Override
-	public void postEvents(List<AbstractEvent> events)
+	/**
+	 * Add a link to a partner, or update its filter if the link exists. Must be called with the
+	 * link lock held.
+	 * 
+	 * @param partner
+	 *            the partner gate.
+	 * @param filter
+	 *            the filter the partner sets on the events it receives from this gate, or null.
+	 * @param replaceFilter
+	 *            true to replace the filter of an existing link, false to keep it.
+	 */
+	private void putPartner(EventGateImpl partner, SubscriptionFilter filter, boolean replaceFilter)
 	{
-		synchronized (linkPartners)
+		Link[] current = links.get();
+		for (int i = 0; i < current.length; i++)
 		{
-			for (EventGateImpl gate : linkPartners)
+			if (current[i].partner == partner)
 			{
-				for (AbstractEvent e : events)
+				if (replaceFilter && current[i].filter != filter)
 				{
-					gate.onIncomingEvent(e);
+					Link[] updated = current.clone();
+					updated[i] = new Link(partner, filter);
+					links.set(updated);
 				}
+				return;
 			}
 		}
+
+		Link[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = new Link(partner, filter);
+		links.set(updated);
 	}
 
 
@@ -408,48 +494,58 @@ public class EventGateImpl implements EventGate
 
 
 
-	@Override
-	public void addListener(EventListener listener)
+	/**
+	 * Remove the link to a partner, if any. Must be called with the link lock held.
+	 * 
+	 * @param partner
+	 *            the partner gate.
+	 */
+	private void removePartner(EventGateImpl partner)
 	{
-		if (logger.isDebugEnabled())
-		{
-			logger.debug(
-				"{}: Adding an event listener: {}",
-				((name.equals("")) ? this : name),
-				listener.getClass().getName());
-		}
-		listenersLock.lock();
-		try
+		Link[] current = links.get();
+		for (int i = 0; i < current.length; i++)
 		{
-			if (listenersLock.getHoldCount() < 2)
+			if (current[i].partner == partner)
 			{
-				listeners.add(listener);
 				if (logger.isDebugEnabled())
 				{
-					logger.debug("{}: {} is a new listener (now {} are listening)", ((name
-						.equals("")) ? this : name), listener.getClass().getName(), listeners
-						.size());
-				}
-			}
-			else
-			{
-				synchronized (listenerAddingTemporaryList)
-				{
-					listenerAddingTemporaryList.add(listener);
-					if (logger.isDebugEnabled())
-					{
-						logger.debug(
-							"{}: {} is a new listener (adding delayed to avoid a deadlock)",
-							((name.equals("")) ? this : name),
-							listener.getClass().getName());
-					}
+					logger.debug("{} REMOVE LINK WITH {}", partner, ((name.equals(""))
+						? this
+						: name));
 				}
+
+				Link[] updated = new Link[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, updated.length - i);
+				links.set(updated);
+				return;
 			}
 		}
-		finally
+	}
+
+
+
+
+
+
+	/**
+	 * Tell if this gate posts its events to a partner.
+	 * 
+	 * @param partner
+	 *            a gate.
+	 * @return true if this gate is linked to the partner.
+	 */
+	boolean isLinkedTo(EventGateImpl partner)
+	{
+		for (Link link : links.get())
 		{
-			listenersLock.unlock();
+			if (link.partner == partner)
+			{
+				return true;
+			}
 		}
+
+		return false;
 	}
 
 
@@ -457,47 +553,130 @@ public class EventGateImpl implements EventGate
 
 
 
-	@Override
-	public void removeListener(EventListener listener)
+	protected String getName()
 	{
-		if (logger.isDebugEnabled())
+		return this.name;
+	}
+
+
+
+
+
+
+	public EventGateImpl()
+	{
+		this("");
+	}
+
+
+
+
+
+
+	public EventGateImpl(String name)
+	{
+		this(name, new EventGateOptions());
+	}
+
+
+
+
+
+
+	public EventGateImpl(String name, EventGateOptions options)
+	{
+		if (options == null) throw new IllegalArgumentException("options cannot be null.");
+
+		this.name = (name == null) ? "" : name;
+		metrics = new EventGateMetrics();
+		running = false;
+		links = new AtomicReference<Link[]>(new Link[0]);
+		switch (options.getQueueType())
 		{
-			logger.debug(
-				"{}: Removing an event listener: {}",
-				((name.equals("")) ? this : name),
-				listener.getClass().getName());
+			case RING_BUFFER:
+				incomingEvents = new EventRingBuffer(this.name, options);
+				break;
+
+			case LOCKED_QUEUE:
+			default:
+				incomingEvents = new EventQueue(this.name, options);
+				break;
 		}
-		listenersLock.lock();
-		try
+		listeners = new AtomicReference<ListenerSnapshot>(ListenerSnapshot.empty());
+		mailboxCapacity = options.getMailboxCapacity();
+		// Only a dedicated deliverer thread may wait for room: pool threads must not be parked.
+		laneBlockTimeoutNanos = (options.getOverflowPolicy() == OverflowPolicy.BLOCK
+			&& options.getDispatchMode() == DispatchMode.DEDICATED_THREAD)
+			? TimeUnit.MILLISECONDS.toNanos(options.getBlockTimeoutMillis())
+			: 0;
+		switch (options.getDeliveryMode())
 		{
-			if (listenersLock.getHoldCount() < 2)
-			{
-				listeners.remove(listener);
-				if (logger.isDebugEnabled())
+			case LISTENER_MAILBOXES:
+				mailboxes = new ConcurrentHashMap<EventListener, ListenerMailbox>();
+				lanes = null;
+				break;
+
+			case PARTITIONED_BY_ITEM:
+				mailboxes = null;
+				lanes = new DeliveryLane[options.getLaneCount()];
+				for (int i = 0; i < lanes.length; i++)
 				{
-					logger.debug("{}: {} is NO MORE a listener (now {} are listening)", ((name
-						.equals("")) ? this : name), listener.getClass().getName(), listeners
-						.size());
+					lanes[i] = new DeliveryLane();
 				}
-			}
-			else
-			{
-				synchronized (listenerRemovingTemporaryList)
+				break;
+
+			case SEQUENTIAL:
+			default:
+				mailboxes = null;
+				lanes = null;
+				break;
+		}
+		switch (options.getDispatchMode())
+		{
+			case SHARED_POOL:
+				dispatchedDeliverer = new DispatchedDeliverer(options.getDispatchQuantum());
+				eventDelivererTask = new Runnable()
 				{
-					listenerRemovingTemporaryList.add(listener);
-					if (logger.isDebugEnabled())
+					@Override
+					public void run()
 					{
-						logger.debug(
-							"{}: {} is NO MORE a listener (removing delayed to avoid a deadlock)",
-							((name.equals("")) ? this : name),
-							listener.getClass().getName());
+						dispatchedDeliverer.start();
 					}
-				}
+				};
+				break;
+
+			case DEDICATED_THREAD:
+			default:
+				dispatchedDeliverer = null;
+				eventDelivererTask = new EventDeliverer();
+				break;
+		}
+
+		EventJournal eventJournal = null;
+		if (options.getJournalFolder() != null)
+		{
+			try
+			{
+				eventJournal = new EventJournal(this.name, options);
+			}
+			catch (IOException e)
+			{
+				logger.error("{}: the event journal cannot be opened, it is disabled.", name, e);
 			}
 		}
-		finally
+		journal = eventJournal;
+
+		listenerBudgetNanos = options.getListenerBudgetNanos();
+		listenerMaxOverruns = options.getListenerMaxOverruns();
+		if (listenerBudgetNanos > 0)
 		{
-			listenersLock.unlock();
+			overruns = new ConcurrentHashMap<EventListener, Overruns>();
+			quarantine = new ConcurrentHashMap<EventListener, ListenerMailbox>();
+		}
+		else
+		{
+			overruns = null;
+			quarantine = null;
 		}
 	}
 
@@ -506,18 +685,16 @@ public class EventGateImpl implements EventGate
 
 
 
-	@Override
-	public void clearAllListeners()
+	/**
+	 * Return the task that delivers the events of this gate. In DEDICATED_THREAD dispatch mode,
+	 * the task runs until its thread is interrupted. In SHARED_POOL dispatch mode, the task only
+	 * starts the gate and returns at once: delivery then happens on the shared dispatcher.
+	 * 
+	 * @return the deliverer task of this gate.
+	 */
+	public Runnable getEventDelivererTask()
 	{
-		listenersLock.lock();
-		try
-		{
-			listeners.clear();
-		}
-		finally
-		{
-			listenersLock.unlock();
-		}
+		return eventDelivererTask;
 	}
 
 
@@ -525,11 +702,1665 @@ public class EventGateImpl implements EventGate
 
 
 
-	private void onIncomingEvent(AbstractEvent event)
+	/**
+	 * Tell if this gate accepts events. Events posted before its deliverer starts are dropped.
+	 * 
+	 * @return true if the deliverer of this gate has started and the gate is not stopped.
+	 */
+	boolean isRunning()
 	{
-		if (running)
-		{
-			incomingEvents.offer(event);
+		return running;
+	}
+
+
+
+
+
+
+	/**
+	 * Tell if the deliverer of this gate runs on the shared dispatcher, in which case it does
+	 * not need a thread of its own.
+	 * 
+	 * @return true in SHARED_POOL dispatch mode.
+	 */
+	public boolean isDispatched()
+	{
+		return dispatchedDeliverer != null;
+	}
+
+
+
+
+
+
+	/**
+	 * Stop delivering events. A dedicated deliverer thread is interrupted, and a dispatched
+	 * deliverer is not scheduled any more. Events still waiting are not delivered. The gate can
+	 * be started again by running its deliverer task.
+	 */
+	public void stop()
+	{
+		if (dispatchedDeliverer != null)
+		{
+			dispatchedDeliverer.stop();
+		}
+		else
+		{
+			Thread thread = delivererThread;
+			if (thread != null)
+			{
+				thread.interrupt();
+			}
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Return the number of events that were dropped because the gate queue was full.
+	 * 
+	 * @return a number of dropped events since the gate creation.
+	 */
+	public long getDroppedEventCount()
+	{
+		return incomingEvents.getDroppedEventCount();
+	}
+
+
+
+
+
+
+	/**
+	 * Return the number of events of a priority class that were dropped because the gate queue
+	 * of that class was full.
+	 * 
+	 * @param priority
+	 *            a priority class.
+	 * @return a number of dropped events since the gate creation.
+	 */
+	public long getDroppedEventCount(EventPriority priority)
+	{
+		return incomingEvents.getDroppedEventCount(priority);
+	}
+
+
+
+
+
+
+	/**
+	 * Return the number of entries of a priority class waiting for being delivered. A batch of
+	 * events counts as a single entry.
+	 * 
+	 * @param priority
+	 *            a priority class.
+	 * @return a number of waiting entries.
+	 */
+	public int getWaitingEntryCount(EventPriority priority)
+	{
+		return incomingEvents.size(priority);
+	}
+
+
+
+
+
+
+	/**
+	 * Return the number of incoming events that replaced a waiting event of the same class and
+	 * source item instead of taking another place in the gate queue.
+	 * 
+	 * @return a number of coalesced events since the gate creation.
+	 */
+	public long getCoalescedEventCount()
+	{
+		return incomingEvents.getCoalescedEventCount();
+	}
+
+
+
+
+
+
+	@Override
+	public void linkTo(EventGate partner)
+	{
+		link((EventGateImpl) partner, null, false);
+	}
+
+
+
+
+
+
+	@Override
+	public void linkTo(EventGate partner, SubscriptionFilter filter)
+	{
+		link((EventGateImpl) partner, filter, true);
+	}
+
+
+
+
+
+
+	/**
+	 * Link this gate and a partner in both directions. The filter only applies to the events this
+	 * gate receives from the partner: the partner receives all the events of this gate, unless it
+	 * sets a filter of its own by linking to this gate.
+	 * 
+	 * @param partner
+	 *            the partner gate.
+	 * @param filter
+	 *            the filter of the events this gate receives from the partner, or null.
+	 * @param replaceFilter
+	 *            true to replace the filter of an existing link, false to keep it.
+	 */
+	private void link(EventGateImpl partner, SubscriptionFilter filter, boolean replaceFilter)
+	{
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{} LINK TO {}", ((name.equals("")) ? this : name), ((partner.name
+				.equals("")) ? partner : partner.name));
+		}
+
+		synchronized (linkLock)
+		{
+			partner.putPartner(this, filter, replaceFilter);
+			putPartner(partner, null, false);
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void unlink(EventGate partner)
+	{
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{} UNLINK FROM {}", ((name.equals("")) ? this : name), ((partner
+				.equals("")) ? partner : ((EventGateImpl) partner).name));
+		}
+		synchronized (linkLock)
+		{
+			removePartner((EventGateImpl) partner);
+			((EventGateImpl) partner).removePartner(this);
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void unlinkAll()
+	{
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{} UNLINK ALL ", ((name.equals("")) ? this : name));
+		}
+		synchronized (linkLock)
+		{
+			for (Link link : links.get())
+			{
+				link.partner.removePartner(this);
+			}
+			links.set(new Link[0]);
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void postEvent(AbstractEvent e)
+	{
+		postEvent(e, true);
+	}
+
+
+
+
+
+
+	/**
+	 * @param mayBlock
+	 *            false to drop the event rather than wait for room in a full partner, whatever
+	 *            the overflow policy of that partner.
+	 */
+	private void postEvent(AbstractEvent e, boolean mayBlock)
+	{
+		// Partners linked or unlinked during the loop may or may not receive the event.
+		for (Link link : links.get())
+		{
+			if (link.partner.wants(e, link.filter))
+			{
+				link.partner.onIncomingEvent(e, mayBlock);
+			}
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void postLocalEvent(AbstractEvent e)
+	{
+		postLocalEvent(e, true);
+	}
+
+
+
+
+
+
+	/**
+	 * @param mayBlock
+	 *            false to drop the event rather than wait for room if this gate is full, whatever
+	 *            its overflow policy.
+	 */
+	private void postLocalEvent(AbstractEvent e, boolean mayBlock)
+	{
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{}: Dispatching local event {}", ((name.equals("")) ? this : name), e
+				.getClass()
+				.getName());
+		}
+		onIncomingEvent(e, mayBlock);
+	}
+
+
+
+
+
+
+	@Override
+	public ScheduledPost postEventAt(AbstractEvent e, Date date)
+	{
+		if (date == null) throw new IllegalArgumentException("date cannot be null.");
+
+		long delay = date.getTime() - System.currentTimeMillis();
+		return schedule(e, delay, 0, TimeUnit.MILLISECONDS, false);
+	}
+
+
+
+
+
+
+	@Override
+	public ScheduledPost postEventAfter(AbstractEvent e, long delay, TimeUnit unit)
+	{
+		return schedule(e, delay, 0, unit, false);
+	}
+
+
+
+
+
+
+	@Override
+	public ScheduledPost schedulePeriodic(
+		AbstractEvent e,
+		long initialDelay,
+		long period,
+		TimeUnit unit)
+	{
+		if (period <= 0) throw new IllegalArgumentException("period must be positive.");
+
+		return schedule(e, initialDelay, period, unit, false);
+	}
+
+
+
+
+
+
+	@Override
+	public ScheduledPost postLocalEventAt(AbstractEvent e, Date date)
+	{
+		if (date == null) throw new IllegalArgumentException("date cannot be null.");
+
+		long delay = date.getTime() - System.currentTimeMillis();
+		return schedule(e, delay, 0, TimeUnit.MILLISECONDS, true);
+	}
+
+
+
+
+
+
+	@Override
+	public ScheduledPost postLocalEventAfter(AbstractEvent e, long delay, TimeUnit unit)
+	{
+		return schedule(e, delay, 0, unit, true);
+	}
+
+
+
+
+
+
+	@Override
+	public ScheduledPost scheduleLocalPeriodic(
+		AbstractEvent e,
+		long initialDelay,
+		long period,
+		TimeUnit unit)
+	{
+		if (period <= 0) throw new IllegalArgumentException("period must be positive.");
+
+		return schedule(e, initialDelay, period, unit, true);
+	}
+
+
+
+
+
+
+	@Override
+	public void postEvents(List<AbstractEvent> events)
+	{
+		if (events.isEmpty())
+		{
+			return;
+		}
+
+		// The same read-only copy is handed to every partner as a single queue entry.
+		List<AbstractEvent> batch = Collections.unmodifiableList(new ArrayList<AbstractEvent>(
+			events));
+		for (Link link : links.get())
+		{
+			List<AbstractEvent> wanted = link.partner.selectWanted(batch, link.filter);
+			if (!wanted.isEmpty())
+			{
+				link.partner.onIncomingEvents(wanted);
+			}
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void postLocalEvents(List<AbstractEvent> events)
+	{
+		if (events.isEmpty())
+		{
+			return;
+		}
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(
+				"{}: Dispatching {} local events",
+				((name.equals("")) ? this : name),
+				events.size());
+		}
+		onIncomingEvents(Collections.unmodifiableList(new ArrayList<AbstractEvent>(events)));
+	}
+
+
+
+
+
+
+	@Override
+	public long getJournalPosition()
+	{
+		return getJournal().getPosition();
+	}
+
+
+
+
+
+
+	@Override
+	public long replayFrom(long position, EventListener listener)
+	{
+		if (listener == null) throw new IllegalArgumentException("listener cannot be null.");
+
+		return getJournal().replay(position, Long.MIN_VALUE, listener);
+	}
+
+
+
+
+
+
+	@Override
+	public long replayFrom(Date since, EventListener listener)
+	{
+		if (since == null) throw new IllegalArgumentException("since cannot be null.");
+		if (listener == null) throw new IllegalArgumentException("listener cannot be null.");
+
+		EventJournal eventJournal = getJournal();
+		return eventJournal.replay(
+			eventJournal.findPosition(since.getTime()),
+			since.getTime(),
+			listener);
+	}
+
+
+
+
+
+
+	@Override
+	public void addListener(EventListener listener)
+	{
+		addListener(listener, null);
+	}
+
+
+
+
+
+
+	@Override
+	public void addListener(EventListener listener, SubscriptionFilter filter)
+	{
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(
+				"{}: Adding an event listener: {}",
+				((name.equals("")) ? this : name),
+				listener.getClass().getName());
+		}
+
+		ListenerSnapshot current;
+		ListenerSnapshot updated;
+		do
+		{
+			current = listeners.get();
+			updated = current.with(listener, filter);
+		}
+		while (!listeners.compareAndSet(current, updated));
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{}: {} is a new listener (now {} are listening)", ((name.equals(""))
+				? this : name), listener.getClass().getName(), updated.size());
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void removeListener(EventListener listener)
+	{
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(
+				"{}: Removing an event listener: {}",
+				((name.equals("")) ? this : name),
+				listener.getClass().getName());
+		}
+
+		ListenerSnapshot current;
+		ListenerSnapshot updated;
+		do
+		{
+			current = listeners.get();
+			updated = current.without(listener);
+		}
+		while (updated != current && !listeners.compareAndSet(current, updated));
+
+		if (mailboxes != null && !updated.contains(listener))
+		{
+			ListenerMailbox mailbox = mailboxes.remove(listener);
+			if (mailbox != null)
+			{
+				mailbox.close();
+			}
+		}
+
+		if (quarantine != null && !updated.contains(listener))
+		{
+			overruns.remove(listener);
+			ListenerMailbox mailbox = quarantine.remove(listener);
+			if (mailbox != null)
+			{
+				mailbox.close();
+			}
+		}
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{}: {} is NO MORE a listener (now {} are listening)", ((name
+				.equals("")) ? this : name), listener.getClass().getName(), updated.size());
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void clearAllListeners()
+	{
+		listeners.set(ListenerSnapshot.empty());
+		closeMailboxes();
+	}
+
+
+
+
+
+
+	/**
+	 * Return the number of events waiting in the mailbox of each listener, in LISTENER_MAILBOXES
+	 * delivery mode.
+	 * 
+	 * @return listener mailbox depths, or an empty map in SEQUENTIAL delivery mode.
+	 */
+	public Map<EventListener, Integer> getListenerMailboxDepths()
+	{
+		Map<EventListener, Integer> depths = new HashMap<EventListener, Integer>();
+		if (mailboxes != null)
+		{
+			for (Map.Entry<EventListener, ListenerMailbox> e : mailboxes.entrySet())
+			{
+				depths.put(e.getKey(), e.getValue().depth());
+			}
+		}
+
+		return depths;
+	}
+
+
+
+
+
+
+	/**
+	 * Return the number of events waiting in each delivery lane, in PARTITIONED_BY_ITEM delivery
+	 * mode. A lane that stays deeper than the others reveals a hot item.
+	 * 
+	 * @return lane depths, or an empty array in other delivery modes.
+	 */
+	public int[] getLaneDepths()
+	{
+		if (lanes == null)
+		{
+			return new int[0];
+		}
+
+		int[] depths = new int[lanes.length];
+		for (int i = 0; i < lanes.length; i++)
+		{
+			depths[i] = lanes[i].depth();
+		}
+
+		return depths;
+	}
+
+
+
+
+
+
+	/**
+	 * Return the number of events that were dropped because a listener mailbox was full, in
+	 * LISTENER_MAILBOXES delivery mode, because a delivery lane was full or discarded, in
+	 * PARTITIONED_BY_ITEM delivery mode, or because the mailbox of a quarantined listener was
+	 * full.
+	 * 
+	 * @return a number of events dropped by the mailboxes of current listeners.
+	 */
+	public long getMailboxDroppedEventCount()
+	{
+		long count = 0;
+		if (mailboxes != null)
+		{
+			for (ListenerMailbox mailbox : mailboxes.values())
+			{
+				count += mailbox.getDroppedEventCount();
+			}
+		}
+		if (quarantine != null)
+		{
+			for (Map.Entry<EventListener, ListenerMailbox> entry : quarantine.entrySet())
+			{
+				// In LISTENER_MAILBOXES mode, a quarantined listener keeps its mailbox.
+				if (mailboxes == null || mailboxes.get(entry.getKey()) != entry.getValue())
+				{
+					count += entry.getValue().getDroppedEventCount();
+				}
+			}
+		}
+
+		if (lanes != null)
+		{
+			for (DeliveryLane lane : lanes)
+			{
+				count += lane.getDroppedEventCount();
+			}
+		}
+
+		return count;
+	}
+
+
+
+
+
+
+	/**
+	 * Return the listeners that were quarantined because they repeatedly exceeded their latency
+	 * budget. They stay quarantined until they are removed from the gate.
+	 * 
+	 * @return quarantined listeners, or an empty set if slow listeners are not detected.
+	 */
+	public Set<EventListener> getQuarantinedListeners()
+	{
+		if (quarantine == null)
+		{
+			return Collections.emptySet();
+		}
+
+		return new HashSet<EventListener>(quarantine.keySet());
+	}
+
+
+
+
+
+
+	/**
+	 * @param registeredName
+	 *            the name the gate is registered under in the EventGateRegistry.
+	 * @return the current delivery statistics of this gate.
+	 */
+	EventGateStatistics getStatistics(String registeredName)
+	{
+		List<String> quarantinedListeners = new ArrayList<String>();
+		for (EventListener listener : getQuarantinedListeners())
+		{
+			quarantinedListeners.add(listener.getClass().getName());
+		}
+
+		return metrics.snapshot(
+			registeredName,
+			incomingEvents,
+			getMailboxDroppedEventCount(),
+			quarantinedListeners);
+	}
+
+
+
+
+
+
+	/**
+	 * Arm a timeout of the shared timer that posts an event. Recyclable events are retained
+	 * until the timeout is done. The timer thread is shared by all gates, so it never waits for
+	 * room in a full gate: with the BLOCK overflow policy, the event is dropped and counted as
+	 * such instead.
+	 * 
+	 * @param local
+	 *            true to deliver the event to the listeners of this gate, false to post it to
+	 *            partners.
+	 */
+	private ScheduledPost schedule(
+		final AbstractEvent event,
+		long delay,
+		long period,
+		TimeUnit unit,
+		final boolean local)
+	{
+		if (event == null) throw new IllegalArgumentException("event cannot be null.");
+		if (unit == null) throw new IllegalArgumentException("unit cannot be null.");
+
+		EventReferences.retain(event);
+		try
+		{
+			return EventGateExecutors.getSharedTimer().schedule(new HashedWheelTimer.Task()
+			{
+				@Override
+				public void run()
+				{
+					if (local)
+					{
+						postLocalEvent(event, false);
+					}
+					else
+					{
+						postEvent(event, false);
+					}
+				}
+
+
+
+				@Override
+				public void done()
+				{
+					EventReferences.release(event);
+				}
+			}, delay, period, unit);
+		}
+		catch (IllegalStateException e)
+		{
+			EventReferences.release(event);
+			throw e;
+		}
+	}
+
+
+
+
+
+
+	private EventJournal getJournal()
+	{
+		if (journal == null)
+		{
+			throw new IllegalStateException("The event journal of " + name + " is not enabled.");
+		}
+
+		return journal;
+	}
+
+
+
+
+
+
+	/**
+	 * Register this gate and start accepting events.
+	 * 
+	 * @return the name under which the gate statistics are registered.
+	 */
+	private String startDelivery()
+	{
+		String registeredName = EventGateRegistry.register(this, name);
+		running = true;
+		return registeredName;
+	}
+
+
+
+
+
+
+	/**
+	 * Stop accepting events, and release what the deliverer holds.
+	 * 
+	 * @param registeredName
+	 *            the name returned by startDelivery().
+	 */
+	private void terminateDelivery(String registeredName)
+	{
+		running = false;
+		EventGateRegistry.unregister(this, registeredName);
+		if (journal != null)
+		{
+			journal.flush();
+		}
+		closeMailboxes();
+		discardLanes();
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{} has terminated.", name);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Deliver a batch drained from the incoming event buffer, then release and clear it.
+	 * 
+	 * @param batch
+	 *            the drained events.
+	 * @param readOnlyBatch
+	 *            a read-only view of batch, handed to listeners.
+	 * @param acceptedTimes
+	 *            the times the drained events were accepted by the gate, cleared as well.
+	 */
+	private void deliverDrained(
+		List<AbstractEvent> batch,
+		List<AbstractEvent> readOnlyBatch,
+		LongList acceptedTimes)
+	{
+		// Listeners added or removed while this batch is being delivered will only be taken into
+		// account for the next one.
+		try
+		{
+			deliver(readOnlyBatch, acceptedTimes, listeners.get());
+		}
+		finally
+		{
+			EventReferences.releaseAll(batch);
+			batch.clear();
+			acceptedTimes.clear();
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Record the delivery lag of the events of a batch about to be delivered, that is the time
+	 * elapsed since the gate accepted them.
+	 * 
+	 * @param acceptedTimes
+	 *            the times the events were accepted by the gate.
+	 */
+	private void recordDeliveryLag(LongList acceptedTimes)
+	{
+		long now = System.nanoTime();
+		for (int i = 0; i < acceptedTimes.size(); i++)
+		{
+			metrics.deliveryLag(now - acceptedTimes.get(i));
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Deliver a batch of events to the listeners of the given snapshot. Each event is delivered
+	 * to the listeners that care about it, then batch listeners receive the whole batch. In
+	 * LISTENER_MAILBOXES and PARTITIONED_BY_ITEM delivery modes, events are only dispatched to
+	 * listener mailboxes or delivery lanes, which count them as delivered once processed.
+	 * 
+	 * @param batch
+	 *            the events to deliver, in reception order.
+	 * @param acceptedTimes
+	 *            the times the events were accepted by the gate.
+	 * @param snapshot
+	 *            the listeners that were registered when the delivery began.
+	 */
+	private void deliver(
+		List<AbstractEvent> batch,
+		LongList acceptedTimes,
+		ListenerSnapshot snapshot)
+	{
+		if (mailboxes != null)
+		{
+			dispatchToMailboxes(batch, acceptedTimes, snapshot);
+			return;
+		}
+
+		if (lanes != null)
+		{
+			dispatchToLanes(batch, acceptedTimes);
+			return;
+		}
+
+		recordDeliveryLag(acceptedTimes);
+
+		for (AbstractEvent event : batch)
+		{
+			deliver(event, snapshot);
+		}
+
+		for (BatchEventListener batchListener : snapshot.getBatchListeners())
+		{
+			deliverTo(batch, batchListener, snapshot);
+		}
+		metrics.deliveredEvents(batch.size());
+	}
+
+
+
+
+
+
+	/**
+	 * Deliver to a batch listener the events of a batch its subscription filter selects, if any.
+	 * 
+	 * @param batch
+	 *            the events to deliver.
+	 * @param batchListener
+	 *            the listener to notify.
+	 * @param snapshot
+	 *            the listeners that were registered when the delivery began.
+	 */
+	private void deliverTo(
+		List<AbstractEvent> batch,
+		BatchEventListener batchListener,
+		ListenerSnapshot snapshot)
+	{
+		SubscriptionFilter filter = snapshot.getFilter(batchListener);
+		if (filter != null)
+		{
+			batch = select(batch, filter, null);
+			if (batch.isEmpty())
+			{
+				return;
+			}
+		}
+
+		ListenerMailbox quarantineMailbox = getQuarantineMailbox(batchListener);
+		if (quarantineMailbox != null)
+		{
+			for (AbstractEvent event : batch)
+			{
+				offerToMailbox(Mailbox.Entry.delivered(event), batchListener, quarantineMailbox);
+			}
+			return;
+		}
+		deliverTo(batch, batchListener);
+	}
+
+
+
+
+
+
+	/**
+	 * Deliver a batch of events to a batch listener, logging any exception the listener could
+	 * raise.
+	 * 
+	 * @param batch
+	 *            the events to deliver.
+	 * @param batchListener
+	 *            the listener to notify.
+	 */
+	private void deliverTo(List<AbstractEvent> batch, BatchEventListener batchListener)
+	{
+		try
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(
+					"{}: --> {} events delivering to {}",
+					name,
+					batch.size(),
+					batchListener.getClass().getName());
+			}
+			long start = System.nanoTime();
+			batchListener.onEvents(batch);
+			long elapsed = System.nanoTime() - start;
+			metrics.listenerExecutionTime(batchListener.getClass(), elapsed);
+			if (listenerBudgetNanos > 0 && elapsed > listenerBudgetNanos)
+			{
+				onBudgetOverrun(batchListener, elapsed);
+			}
+		}
+		catch (Exception e)
+		{
+			logger.error(
+				"{}: ### Exception occurs when {} received a batch of {} events",
+				name,
+				batchListener.getClass().getName(),
+				batch.size(),
+				e);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Deliver an event to the listeners of the given snapshot that care about it, batch
+	 * listeners excepted.
+	 * 
+	 * @param event
+	 *            the event to deliver.
+	 * @param snapshot
+	 *            the listeners that were registered when the delivery began.
+	 */
+	private void deliver(AbstractEvent event, ListenerSnapshot snapshot)
+	{
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(
+				"{}: ---- Delivering {} IS ON GOING... [{} listeners]",
+				name,
+				event.getClass().getName(),
+				snapshot.size());
+
+			if (event instanceof AbstractPhysicalEnvironmentModelEvent)
+			{
+				AbstractPhysicalEnvironmentModelEvent pemEvent =
+					(AbstractPhysicalEnvironmentModelEvent) event;
+				logger.debug(
+					"{}: ----   * event date: {}, delivery lag: {} us",
+					name,
+					pemEvent.getDate(),
+					(pemEvent.getNanoTime() != 0) ? TimeUnit.NANOSECONDS.toMicros(System
+						.nanoTime()
+						- pemEvent.getNanoTime()) : "unknown");
+			}
+		}
+
+		ListenerSnapshot.Entry dispatchEntry = snapshot.lookup(event.getClass());
+		boolean filtered = snapshot.hasFilters();
+		int lcount = 0;
+		for (EventListener eventListener : dispatchEntry.getListeners())
+		{
+			if (filtered && !isSelected(event, snapshot.getFilter(eventListener)))
+			{
+				continue;
+			}
+
+			if (logger.isDebugEnabled())
+			{
+				lcount++;
+
+				logger.debug(
+					"{}: * Notifying listener {}: {}",
+					name,
+					lcount,
+					eventListener.getClass().getName());
+			}
+
+			ListenerMailbox quarantineMailbox = getQuarantineMailbox(eventListener);
+			if (quarantineMailbox != null)
+			{
+				offerToMailbox(Mailbox.Entry.delivered(event), eventListener, quarantineMailbox);
+			}
+			else
+			{
+				deliverTo(event, eventListener, dispatchEntry.isTyped());
+			}
+		}
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{}: ---- Delivering {} IS DONE.", name, event.getClass().getName());
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Deliver an event to a listener, logging any exception the listener could raise.
+	 * 
+	 * @param event
+	 *            the event to deliver.
+	 * @param eventListener
+	 *            the listener to notify.
+	 * @param typed
+	 *            true if the listener is known to implement the listener interface of the event.
+	 */
+	private void deliverTo(AbstractEvent event, EventListener eventListener, boolean typed)
+	{
+		try
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(
+					"{}: --> {} delivering to {}",
+					name,
+					event.getClass().getName(),
+					eventListener.getClass().getName());
+			}
+			long start = System.nanoTime();
+			event.deliverTo(eventListener);
+			long elapsed = System.nanoTime() - start;
+			metrics.listenerExecutionTime(eventListener.getClass(), elapsed);
+			if (listenerBudgetNanos > 0 && elapsed > listenerBudgetNanos)
+			{
+				onBudgetOverrun(eventListener, elapsed);
+			}
+		}
+		catch (ClassCastException exception)
+		{
+			// Only expected when the listener interface of the event class could not be
+			// resolved: the listener simply does not care.
+			if (typed)
+			{
+				logger.error(
+					"{}: ### Exception occurs when {} received {}",
+					name,
+					eventListener.getClass().getName(),
+					event.getClass().getName(),
+					exception);
+			}
+		}
+		catch (Exception e)
+		{
+			logger.error(
+				"{}: ### Exception occurs when {} received {}",
+				name,
+				eventListener.getClass().getName(),
+				event.getClass().getName(),
+				e);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Dispatch a batch of events to the mailboxes of the listeners that care about them. Batch
+	 * listeners receive every event.
+	 * 
+	 * @param batch
+	 *            the events to dispatch, in reception order.
+	 * @param acceptedTimes
+	 *            the times the events were accepted by the gate.
+	 * @param snapshot
+	 *            the listeners that were registered when the dispatch began.
+	 */
+	private void dispatchToMailboxes(
+		List<AbstractEvent> batch,
+		LongList acceptedTimes,
+		ListenerSnapshot snapshot)
+	{
+		boolean filtered = snapshot.hasFilters();
+		for (int i = 0; i < batch.size(); i++)
+		{
+			AbstractEvent event = batch.get(i);
+			Mailbox.Entry entry = null; // Shared by the mailboxes of the event.
+			for (EventListener eventListener : snapshot.lookup(event.getClass()).getListeners())
+			{
+				if (!filtered || isSelected(event, snapshot.getFilter(eventListener)))
+				{
+					if (entry == null)
+					{
+						entry = new Mailbox.Entry(event, acceptedTimes.get(i));
+					}
+					offerToMailbox(entry, eventListener);
+				}
+			}
+
+			for (BatchEventListener batchListener : snapshot.getBatchListeners())
+			{
+				if (!filtered || isSelected(event, snapshot.getFilter(batchListener)))
+				{
+					if (entry == null)
+					{
+						entry = new Mailbox.Entry(event, acceptedTimes.get(i));
+					}
+					offerToMailbox(entry, batchListener);
+				}
+			}
+		}
+	}
+
+
+
+
+
+
+	private void offerToMailbox(Mailbox.Entry entry, EventListener eventListener)
+	{
+		ListenerMailbox mailbox = mailboxes.get(eventListener);
+		if (mailbox == null)
+		{
+			// Mailboxes are created on first use, unless the listener was removed meanwhile.
+			if (!listeners.get().contains(eventListener))
+			{
+				return;
+			}
+
+			ListenerMailbox newMailbox = new ListenerMailbox(eventListener);
+			mailbox = mailboxes.putIfAbsent(eventListener, newMailbox);
+			if (mailbox == null)
+			{
+				mailbox = newMailbox;
+			}
+		}
+
+		offerToMailbox(entry, eventListener, mailbox);
+	}
+
+
+
+
+
+
+	private void offerToMailbox(
+		Mailbox.Entry entry,
+		EventListener eventListener,
+		ListenerMailbox mailbox)
+	{
+		if (!mailbox.offer(entry))
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(
+					"{}: mailbox of {} is full, {} was dropped.",
+					name,
+					eventListener.getClass().getName(),
+					entry.getEvent().getClass().getName());
+			}
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * @return the quarantine mailbox of a listener, or null if the listener is not quarantined or
+	 *         already has a mailbox, in LISTENER_MAILBOXES delivery mode.
+	 */
+	private ListenerMailbox getQuarantineMailbox(EventListener eventListener)
+	{
+		if (quarantine == null || mailboxes != null || quarantine.isEmpty())
+		{
+			return null;
+		}
+
+		return quarantine.get(eventListener);
+	}
+
+
+
+
+
+
+	/**
+	 * Count a latency budget overrun of a listener, and quarantine the listener if it overran its
+	 * budget too often within the current window.
+	 * 
+	 * @param eventListener
+	 *            the listener.
+	 * @param elapsed
+	 *            the time the listener spent handling its last event or batch, in nanoseconds.
+	 */
+	private void onBudgetOverrun(EventListener eventListener, long elapsed)
+	{
+		if (quarantine.containsKey(eventListener))
+		{
+			return;
+		}
+
+		Overruns listenerOverruns = overruns.get(eventListener);
+		if (listenerOverruns == null)
+		{
+			Overruns newOverruns = new Overruns();
+			listenerOverruns = overruns.putIfAbsent(eventListener, newOverruns);
+			if (listenerOverruns == null)
+			{
+				listenerOverruns = newOverruns;
+			}
+		}
+
+		synchronized (listenerOverruns)
+		{
+			long now = System.nanoTime();
+			if (listenerOverruns.count == 0
+				|| now - listenerOverruns.windowStart > OVERRUN_WINDOW_NANOS)
+			{
+				listenerOverruns.windowStart = now;
+				listenerOverruns.count = 0;
+			}
+			if (++listenerOverruns.count < listenerMaxOverruns)
+			{
+				return;
+			}
+		}
+
+		quarantine(eventListener, elapsed);
+	}
+
+
+
+
+
+
+	/**
+	 * Have a listener receive its events through a mailbox drained by the quarantine executor,
+	 * then notify the gate listeners and partners.
+	 * 
+	 * @param eventListener
+	 *            a registered listener.
+	 * @param elapsed
+	 *            the time the listener spent handling its last event or batch, in nanoseconds.
+	 */
+	private void quarantine(EventListener eventListener, long elapsed)
+	{
+		Executor quarantineExecutor = EventGateExecutors.getQuarantineExecutor();
+		ListenerMailbox mailbox;
+		if (mailboxes != null)
+		{
+			mailbox = mailboxes.get(eventListener);
+		}
+		else
+		{
+			mailbox = new ListenerMailbox(eventListener, quarantineExecutor);
+		}
+
+		if (mailbox == null
+			|| !listeners.get().contains(eventListener)
+			|| quarantine.putIfAbsent(eventListener, mailbox) != null)
+		{
+			return;
+		}
+		mailbox.moveTo(quarantineExecutor);
+		overruns.remove(eventListener);
+
+		Bundle bundle = FrameworkUtil.getBundle(eventListener.getClass());
+		String bundleName = (bundle == null) ? null : bundle.getSymbolicName();
+		long budget = TimeUnit.NANOSECONDS.toMicros(listenerBudgetNanos);
+		long latency = TimeUnit.NANOSECONDS.toMicros(elapsed);
+		logger.warn(
+			"{}: {} from bundle {} exceeded its {} us latency budget {} times, last time with"
+				+ " {} us. It is quarantined.",
+			name,
+			eventListener.getClass().getName(),
+			(bundleName == null) ? "unknown" : bundleName,
+			budget,
+			listenerMaxOverruns,
+			latency);
+
+		SlowListenerEvent event = new SlowListenerEvent(
+			name,
+			eventListener.getClass().getName(),
+			bundleName,
+			budget,
+			latency);
+		// Dropped rather than waited for if a queue is full, so that the deliverer never blocks.
+		postLocalEvent(event, false);
+		postEvent(event, false);
+	}
+
+
+
+
+
+
+	/**
+	 * Dispatch a batch of events to delivery lanes according to their source item. When a lane is
+	 * full, the event is dropped, unless the gate has a dedicated deliverer thread and the BLOCK
+	 * overflow policy: this method then waits for room, up to the block timeout.
+	 * 
+	 * @param batch
+	 *            the events to dispatch, in reception order.
+	 * @param acceptedTimes
+	 *            the times the events were accepted by the gate.
+	 */
+	private void dispatchToLanes(List<AbstractEvent> batch, LongList acceptedTimes)
+	{
+		if (laneBlockTimeoutNanos == 0)
+		{
+			for (int i = 0; i < batch.size(); i++)
+			{
+				AbstractEvent event = batch.get(i);
+				lanes[laneIndex(event)].offer(new Mailbox.Entry(event, acceptedTimes.get(i)));
+			}
+			return;
+		}
+
+		try
+		{
+			for (int i = 0; i < batch.size(); i++)
+			{
+				AbstractEvent event = batch.get(i);
+				lanes[laneIndex(event)].offer(
+					new Mailbox.Entry(event, acceptedTimes.get(i)),
+					laneBlockTimeoutNanos);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+
+
+
+	private int laneIndex(AbstractEvent event)
+	{
+		if (event instanceof AbstractPhysicalEnvironmentModelEvent)
+		{
+			String sourceItemUID = ((AbstractPhysicalEnvironmentModelEvent) event)
+				.getSourceItemUID();
+			if (sourceItemUID != null)
+			{
+				return (sourceItemUID.hashCode() & Integer.MAX_VALUE) % lanes.length;
+			}
+		}
+
+		return 0;
+	}
+
+
+
+
+
+
+	private void discardLanes()
+	{
+		if (lanes != null)
+		{
+			for (DeliveryLane lane : lanes)
+			{
+				lane.discard();
+			}
+		}
+	}
+
+
+
+
+
+
+	private void closeMailboxes()
+	{
+		if (mailboxes != null)
+		{
+			for (ListenerMailbox mailbox : mailboxes.values())
+			{
+				mailbox.close();
+			}
+			mailboxes.clear();
+		}
+
+		if (quarantine != null)
+		{
+			for (ListenerMailbox mailbox : quarantine.values())
+			{
+				mailbox.close();
+			}
+			quarantine.clear();
+			overruns.clear();
+		}
+	}
+
+
+
+
+
+
+	private static boolean isSelected(AbstractEvent event, SubscriptionFilter filter)
+	{
+		return filter == null || filter.accepts(event);
+	}
+
+
+
+
+
+
+	/**
+	 * Return the events of a batch that a filter selects and, if a snapshot is given, that at
+	 * least one of its listeners may want.
+	 * 
+	 * @param batch
+	 *            a batch of events.
+	 * @param filter
+	 *            a filter, or null.
+	 * @param snapshot
+	 *            a listener snapshot, or null.
+	 * @return the batch itself if all its events are selected, a new read-only list otherwise.
+	 */
+	private static List<AbstractEvent> select(
+		List<AbstractEvent> batch,
+		SubscriptionFilter filter,
+		ListenerSnapshot snapshot)
+	{
+		List<AbstractEvent> selected = null;
+		for (int i = 0; i < batch.size(); i++)
+		{
+			AbstractEvent event = batch.get(i);
+			if (isSelected(event, filter) && (snapshot == null || snapshot.accepts(event)))
+			{
+				if (selected != null)
+				{
+					selected.add(event);
+				}
+			}
+			else if (selected == null)
+			{
+				selected = new ArrayList<AbstractEvent>(batch.subList(0, i));
+			}
+		}
+
+		return (selected == null) ? batch : Collections.unmodifiableList(selected);
+	}
+
+
+
+
+
+
+	/**
+	 * Tell if this gate wants an event a partner is about to post to it. Evaluated by the posting
+	 * partner, so that unwanted events are never enqueued.
+	 * 
+	 * @param event
+	 *            the event to post.
+	 * @param linkFilter
+	 *            the filter this gate set on its link with the partner, or null.
+	 * @return true if the event matches the link filter and at least one listener may want it.
+	 */
+	private boolean wants(AbstractEvent event, SubscriptionFilter linkFilter)
+	{
+		return isSelected(event, linkFilter) && listeners.get().accepts(event);
+	}
+
+
+
+
+
+
+	/**
+	 * Return the events of a batch this gate wants, see wants().
+	 */
+	private List<AbstractEvent> selectWanted(
+		List<AbstractEvent> batch,
+		SubscriptionFilter linkFilter)
+	{
+		ListenerSnapshot snapshot = listeners.get();
+		if (linkFilter == null && !snapshot.hasFilters())
+		{
+			return batch;
+		}
+
+		return select(batch, linkFilter, snapshot);
+	}
+
+
+
+
+
+
+	/**
+	 * @param mayBlock
+	 *            false to drop the event rather than wait for room if the incoming event buffer
+	 *            is full, whatever the overflow policy.
+	 */
+	private void onIncomingEvent(AbstractEvent event, boolean mayBlock)
+	{
+		if (running)
+		{
+			EventReferences.retain(event);
+			if (journal != null)
+			{
+				EventReferences.retain(event); // Not recycled before being journaled.
+			}
+			metrics.incomingEvents(1);
+			boolean accepted = mayBlock ? incomingEvents.offer(event) : incomingEvents.tryOffer(event);
+			if (dispatchedDeliverer != null)
+			{
+				dispatchedDeliverer.schedule();
+			}
+			if (journal != null)
+			{
+				// Only accepted events are journaled, so that replay does not resurrect drops.
+				if (accepted)
+				{
+					journal.append(event);
+				}
+				EventReferences.release(event);
+			}
+		}
+		else
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(
+					"{}: EventDeliverer is not runnging: Cannot deliver anything !",
+					((name.equals("")) ? this : name));
+			}
+		}
+	}
+
+
+
+
+
+
+	private void onIncomingEvents(List<AbstractEvent> batch)
+	{
+		if (running)
+		{
+			EventReferences.retainAll(batch);
+			List<AbstractEvent> accepted = null;
+			if (journal != null)
+			{
+				EventReferences.retainAll(batch); // Not recycled before being journaled.
+				accepted = new ArrayList<AbstractEvent>(batch.size());
+			}
+			metrics.incomingEvents(batch.size());
+			incomingEvents.offerAll(batch, accepted);
+			if (dispatchedDeliverer != null)
+			{
+				dispatchedDeliverer.schedule();
+			}
+			if (journal != null)
+			{
+				for (AbstractEvent event : accepted)
+				{
+					journal.append(event);
+				}
+				EventReferences.releaseAll(batch);
+			}
 		}
 		else
 		{
@@ -0,0 +1,405 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ubikit.system.EventGateStatistics;
+import org.ubikit.system.LatencyHistogram;
+
+
+
+/**
+ * Delivery metrics of an event gate. Recording only updates atomic counters and histograms, so
+ * that gates can be instrumented permanently. Statistics are computed when queried.
+ */
+final class EventGateMetrics
+{
+	private static final long MIN_RATE_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final AtomicLong incomingEvents;
+	private final AtomicLong deliveredEvents;
+	private final LogHistogram deliveryLag;
+	private final ConcurrentMap<Class<?>, LogHistogram> listenerExecutionTimes;
+
+	// Rate computation state, guarded by this.
+	private long lastSampleTime;
+	private long lastIncomingEvents;
+	private long lastDeliveredEvents;
+	private double incomingEventRate;
+	private double deliveredEventRate;
+
+
+
+
+
+
+	EventGateMetrics()
+	{
+		incomingEvents = new AtomicLong();
+		deliveredEvents = new AtomicLong();
+		deliveryLag = new LogHistogram();
+		listenerExecutionTimes = new ConcurrentHashMap<Class<?>, LogHistogram>();
+		lastSampleTime = System.nanoTime();
+		lastIncomingEvents = 0;
+		lastDeliveredEvents = 0;
+		incomingEventRate = 0;
+		deliveredEventRate = 0;
+	}
+
+
+
+
+
+
+	void incomingEvents(int count)
+	{
+		incomingEvents.addAndGet(count);
+	}
+
+
+
+
+
+
+	void deliveredEvents(int count)
+	{
+		deliveredEvents.addAndGet(count);
+	}
+
+
+
+
+
+
+	void deliveryLag(long nanos)
+	{
+		deliveryLag.recordNanos(nanos);
+	}
+
+
+
+
+
+
+	void listenerExecutionTime(Class<?> listenerClass, long nanos)
+	{
+		LogHistogram histogram = listenerExecutionTimes.get(listenerClass);
+		if (histogram == null)
+		{
+			LogHistogram newHistogram = new LogHistogram();
+			histogram = listenerExecutionTimes.putIfAbsent(listenerClass, newHistogram);
+			if (histogram == null)
+			{
+				histogram = newHistogram;
+			}
+		}
+
+		histogram.recordNanos(nanos);
+	}
+
+
+
+
+
+
+	/**
+	 * Compute the statistics of a gate.
+	 * 
+	 * @param gateName
+	 *            the name of the gate.
+	 * @param buffer
+	 *            the buffer of the gate.
+	 * @param mailboxDroppedEvents
+	 *            the number of events dropped by listener mailboxes of the gate.
+	 * @param quarantinedListeners
+	 *            the class names of the quarantined listeners of the gate.
+	 * @return an immutable statistics object.
+	 */
+	synchronized EventGateStatistics snapshot(
+		String gateName,
+		EventBuffer buffer,
+		long mailboxDroppedEvents,
+		List<String> quarantinedListeners)
+	{
+		long now = System.nanoTime();
+		long incoming = incomingEvents.get();
+		long delivered = deliveredEvents.get();
+		long elapsed = now - lastSampleTime;
+		if (elapsed >= MIN_RATE_PERIOD_NANOS)
+		{
+			double seconds = (double) elapsed / TimeUnit.SECONDS.toNanos(1);
+			incomingEventRate = (incoming - lastIncomingEvents) / seconds;
+			deliveredEventRate = (delivered - lastDeliveredEvents) / seconds;
+			lastSampleTime = now;
+			lastIncomingEvents = incoming;
+			lastDeliveredEvents = delivered;
+		}
+
+		Map<String, LatencyHistogram> executionTimes = new HashMap<String, LatencyHistogram>();
+		for (Map.Entry<Class<?>, LogHistogram> e : listenerExecutionTimes.entrySet())
+		{
+			executionTimes.put(e.getKey().getName(), e.getValue().snapshot());
+		}
+
+		return new Statistics(
+			gateName,
+			buffer.size(),
+			buffer.getHighWaterMark(),
+			buffer.getCapacity(),
+			incoming,
+			delivered,
+			incomingEventRate,
+			deliveredEventRate,
+			buffer.getDroppedEventCount() + mailboxDroppedEvents,
+			buffer.getCoalescedEventCount(),
+			deliveryLag.snapshot(),
+			Collections.unmodifiableMap(executionTimes),
+			Collections.unmodifiableList(quarantinedListeners));
+	}
+
+	private static final class Statistics implements EventGateStatistics
+	{
+		private final String gateName;
+		private final int queueDepth;
+		private final int queueHighWaterMark;
+		private final int queueCapacity;
+		private final long incomingEventCount;
+		private final long deliveredEventCount;
+		private final double incomingEventRate;
+		private final double deliveredEventRate;
+		private final long droppedEventCount;
+		private final long coalescedEventCount;
+		private final LatencyHistogram deliveryLag;
+		private final Map<String, LatencyHistogram> listenerExecutionTimes;
+		private final List<String> quarantinedListeners;
+
+
+
+
+
+
+		private Statistics(
+			String gateName,
+			int queueDepth,
+			int queueHighWaterMark,
+			int queueCapacity,
+			long incomingEventCount,
+			long deliveredEventCount,
+			double incomingEventRate,
+			double deliveredEventRate,
+			long droppedEventCount,
+			long coalescedEventCount,
+			LatencyHistogram deliveryLag,
+			Map<String, LatencyHistogram> listenerExecutionTimes,
+			List<String> quarantinedListeners)
+		{
+			this.gateName = gateName;
+			this.queueDepth = queueDepth;
+			this.queueHighWaterMark = queueHighWaterMark;
+			this.queueCapacity = queueCapacity;
+			this.incomingEventCount = incomingEventCount;
+			this.deliveredEventCount = deliveredEventCount;
+			this.incomingEventRate = incomingEventRate;
+			this.deliveredEventRate = deliveredEventRate;
+			this.droppedEventCount = droppedEventCount;
+			this.coalescedEventCount = coalescedEventCount;
+			this.deliveryLag = deliveryLag;
+			this.listenerExecutionTimes = listenerExecutionTimes;
+			this.quarantinedListeners = quarantinedListeners;
+		}
+
+
+
+
+
+
+		@Override
+		public String getGateName()
+		{
+			return gateName;
+		}
+
+
+
+
+
+
+		@Override
+		public int getQueueDepth()
+		{
+			return queueDepth;
+		}
+
+
+
+
+
+
+		@Override
+		public int getQueueHighWaterMark()
+		{
+			return queueHighWaterMark;
+		}
+
+
+
+
+
+
+		@Override
+		public int getQueueCapacity()
+		{
+			return queueCapacity;
+		}
+
+
+
+
+
+
+		@Override
+		public long getIncomingEventCount()
+		{
+			return incomingEventCount;
+		}
+
+
+
+
+
+
+		@Override
+		public long getDeliveredEventCount()
+		{
+			return deliveredEventCount;
+		}
+
+
+
+
+
+
+		@Override
+		public double getIncomingEventRate()
+		{
+			return incomingEventRate;
+		}
+
+
+
+
+
+
+		@Override
+		public double getDeliveredEventRate()
+		{
+			return deliveredEventRate;
+		}
+
+
+
+
+
+
+		@Override
+		public long getDroppedEventCount()
+		{
+			return droppedEventCount;
+		}
+
+
+
+
+
+
+		@Override
+		public long getCoalescedEventCount()
+		{
+			return coalescedEventCount;
+		}
+
+
+
+
+
+
+		@Override
+		public LatencyHistogram getDeliveryLag()
+		{
+			return deliveryLag;
+		}
+
+
+
+
+
+
+		@Override
+		public Map<String, LatencyHistogram> getListenerExecutionTimes()
+		{
+			return listenerExecutionTimes;
+		}
+
+
+
+
+
+
+		@Override
+		public List<String> getQuarantinedListeners()
+		{
+			return quarantinedListeners;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ubikit.system.EventGateStatistics;
+
+
+
+/**
+ * Registry of the running event gates of the framework, keyed by gate name, for inspection
+ * purpose. Gates register themselves when their deliverer starts and unregister when it stops.
+ * Unnamed gates, and gates whose name is already taken, are registered under a name derived
+ * from their identity.
+ */
+public final class EventGateRegistry
+{
+	private static final ConcurrentMap<String, EventGateImpl> gates = new ConcurrentHashMap<String, EventGateImpl>();
+
+
+
+
+
+
+	private EventGateRegistry()
+	{}
+
+
+
+
+
+
+	/**
+	 * @return the statistics of all running gates, by gate name.
+	 */
+	public static Map<String, EventGateStatistics> getStatistics()
+	{
+		Map<String, EventGateStatistics> statistics = new HashMap<String, EventGateStatistics>();
+		for (Map.Entry<String, EventGateImpl> e : gates.entrySet())
+		{
+			statistics.put(e.getKey(), e.getValue().getStatistics(e.getKey()));
+		}
+
+		return statistics;
+	}
+
+
+
+
+
+
+	/**
+	 * @param gateName
+	 *            the name of a gate.
+	 * @return the statistics of the given gate, or null if no running gate has that name.
+	 */
+	public static EventGateStatistics getStatistics(String gateName)
+	{
+		EventGateImpl gate = gates.get(gateName);
+		return (gate == null) ? null : gate.getStatistics(gateName);
+	}
+
+
+
+
+
+
+	/**
+	 * @return the name the gate was registered under.
+	 */
+	static String register(EventGateImpl gate, String name)
+	{
+		String key = name;
+		if (key.equals("") || gates.putIfAbsent(key, gate) != null)
+		{
+			key = ((key.equals("")) ? "gate" : key) + "@"
+				+ Integer.toHexString(System.identityHashCode(gate));
+			gates.put(key, gate);
+		}
+
+		return key;
+	}
+
+
+
+
+
+
+	static void unregister(EventGateImpl gate, String registeredName)
+	{
+		gates.remove(registeredName, gate);
+	}
+}
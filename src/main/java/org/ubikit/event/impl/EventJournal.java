@@ -0,0 +1,653 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventInstanciator;
+import org.ubikit.event.EventListener;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+
+
+
+/**
+ * Append-only journal of the events received by an event gate, stored in memory mapped segment
+ * files. A segment is named after its base position, the journal position of its first byte, so
+ * that positions keep growing across segments and restarts.
+ * 
+ * Each record is made of a header (payload length, payload CRC32 and event timestamp) followed
+ * by the payload, the event class name and its JSON representation separated by a new line. The
+ * length is written last, so that a record interrupted by a crash is detected by its checksum or
+ * is simply not seen. Unused space at the end of a segment is left zeroed and marks its end.
+ * 
+ * Events are converted to JSON by the posting threads, with type adapters cached per event class,
+ * so that concurrent producers only contend for the copy of their record into the segment.
+ * 
+ * Records reach the page cache as soon as they are written: they survive a restart of the
+ * bundle or of the JVM. Segments are only forced to the storage device when they are full and
+ * when the gate stops.
+ */
+final class EventJournal
+{
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final int HEADER_SIZE = 16; // length (4), checksum (4), timestamp (8).
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String name; // USAGE : for debugging purpose only.
+	private final File folder;
+	private final EventInstanciator eventInstanciator;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final long maxAgeMillis;
+	private final Gson gson;
+	private final ConcurrentMap<Class<?>, TypeAdapter<AbstractEvent>> adapters;
+
+	private final NavigableMap<Long, File> segments; // by base position, guarded by this.
+	private long activeBase; // guarded by this.
+	private MappedByteBuffer active; // guarded by this, its position is the write offset.
+
+	final Logger logger = LoggerFactory.getLogger(EventJournal.class);
+
+
+
+
+
+
+	/**
+	 * Open the journal configured by the given options, recovering the segments a previous run
+	 * left in its folder.
+	 * 
+	 * @param name
+	 *            the name of the gate.
+	 * @param options
+	 *            options that enable the journal.
+	 * @throws IOException
+	 *             if the journal folder or its segments cannot be created or read.
+	 */
+	EventJournal(String name, EventGateOptions options) throws IOException
+	{
+		this.name = name;
+		folder = options.getJournalFolder();
+		eventInstanciator = options.getJournalEventInstanciator();
+		segmentSize = options.getJournalSegmentSize();
+		maxSegments = options.getJournalMaxSegments();
+		maxAgeMillis = options.getJournalMaxAgeMillis();
+		gson = new Gson();
+		adapters = new ConcurrentHashMap<Class<?>, TypeAdapter<AbstractEvent>>();
+		segments = new TreeMap<Long, File>();
+
+		if (!folder.isDirectory() && !folder.mkdirs())
+		{
+			throw new IOException("Journal folder " + folder + " cannot be created.");
+		}
+
+		File[] files = folder.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				String fileName = file.getName();
+				if (fileName.endsWith(SEGMENT_SUFFIX))
+				{
+					try
+					{
+						segments.put(Long.parseLong(fileName.substring(0, fileName.length()
+							- SEGMENT_SUFFIX.length())), file);
+					}
+					catch (NumberFormatException e)
+					{
+						logger.warn("{}: {} is not a journal segment, ignored.", name, file);
+					}
+				}
+			}
+		}
+
+		if (segments.isEmpty())
+		{
+			openSegment(0, segmentSize);
+		}
+		else
+		{
+			recover(segments.lastEntry());
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * @return the position following the last journaled event.
+	 */
+	synchronized long getPosition()
+	{
+		return activeBase + active.position();
+	}
+
+
+
+
+
+
+	/**
+	 * Append an event to the journal. Events that cannot be converted to JSON are not journaled.
+	 * 
+	 * @param event
+	 *            the event to append.
+	 */
+	void append(AbstractEvent event)
+	{
+		byte[] payload;
+		try
+		{
+			payload = (event.getClass().getName() + "\n" + toJson(event)).getBytes(UTF8);
+		}
+		catch (IOException e)
+		{
+			logger.warn("{}: {} cannot be journaled.", name, event.getClass().getName(), e);
+			return;
+		}
+		catch (RuntimeException e)
+		{
+			logger.warn("{}: {} cannot be journaled.", name, event.getClass().getName(), e);
+			return;
+		}
+
+		CRC32 checksum = new CRC32();
+		checksum.update(payload);
+		long timestamp = (event instanceof AbstractPhysicalEnvironmentModelEvent)
+			? ((AbstractPhysicalEnvironmentModelEvent) event).getTimestamp()
+			: System.currentTimeMillis();
+
+		synchronized (this)
+		{
+			try
+			{
+				if (active.remaining() < HEADER_SIZE + payload.length)
+				{
+					roll(HEADER_SIZE + payload.length);
+				}
+			}
+			catch (IOException e)
+			{
+				logger.error("{}: cannot roll the journal, {} not journaled.", name, event
+					.getClass()
+					.getName(), e);
+				return;
+			}
+
+			int offset = active.position();
+			active.putInt(offset + 4, (int) checksum.getValue());
+			active.putLong(offset + 8, timestamp);
+			active.position(offset + HEADER_SIZE);
+			active.put(payload);
+			active.putInt(offset, payload.length);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Convert an event to JSON as Gson.toJson() does, without going through the adapter cache of
+	 * Gson, which is a synchronized map in the Gson versions the bundle supports.
+	 */
+	@SuppressWarnings("unchecked")
+	private String toJson(AbstractEvent event) throws IOException
+	{
+		TypeAdapter<AbstractEvent> adapter = adapters.get(event.getClass());
+		if (adapter == null)
+		{
+			adapter = (TypeAdapter<AbstractEvent>) gson.getAdapter(event.getClass());
+			adapters.putIfAbsent(event.getClass(), adapter);
+		}
+
+		StringWriter json = new StringWriter();
+		JsonWriter writer = new JsonWriter(json);
+		writer.setSerializeNulls(false);
+		writer.setLenient(true);
+		adapter.write(writer, event);
+		writer.flush();
+		return json.toString();
+	}
+
+
+
+
+
+
+	/**
+	 * Force the active segment to the storage device.
+	 */
+	synchronized void flush()
+	{
+		active.force();
+	}
+
+
+
+
+
+
+	/**
+	 * Deliver to a listener the journaled events found from a position, up to the current end of
+	 * the journal, in the calling thread. Events the listener does not care about are skipped.
+	 * 
+	 * @param position
+	 *            a position returned by getPosition() or replay(). Older positions than the
+	 *            oldest retained event start from the latter.
+	 * @param since
+	 *            the time in milliseconds before which events are skipped.
+	 * @param listener
+	 *            the listener to deliver events to.
+	 * @return the position following the last replayed event.
+	 */
+	long replay(long position, long since, EventListener listener)
+	{
+		long end;
+		NavigableMap<Long, File> view;
+		synchronized (this)
+		{
+			end = activeBase + active.position();
+			view = new TreeMap<Long, File>(segments);
+		}
+
+		Long first = view.floorKey(position);
+		if (first == null)
+		{
+			first = view.firstKey();
+			position = first;
+		}
+
+		for (Map.Entry<Long, File> segment : view.tailMap(first, true).entrySet())
+		{
+			long base = segment.getKey();
+			if (base >= end)
+			{
+				break;
+			}
+
+			Long next = view.higherKey(base);
+			position = Math.max(position, base);
+			ByteBuffer buffer;
+			try
+			{
+				buffer = map(segment.getValue(), FileChannel.MapMode.READ_ONLY, 0);
+			}
+			catch (FileNotFoundException e)
+			{
+				// Deleted by the retention policy in the meantime.
+				continue;
+			}
+			catch (IOException e)
+			{
+				logger.error("{}: cannot read journal segment {}.", name, segment.getValue(), e);
+				continue;
+			}
+
+			int limit = (int) Math.min(buffer.capacity(), end - base);
+			int offset = (int) (position - base);
+			int length;
+			while ((length = readRecord(buffer, offset, limit)) >= 0)
+			{
+				if (buffer.getLong(offset + 8) >= since)
+				{
+					deliver(buffer, offset, length, listener);
+				}
+				offset += HEADER_SIZE + length;
+			}
+
+			position = (next == null || next > end) ? base + offset : next;
+		}
+
+		return Math.min(position, end);
+	}
+
+
+
+
+
+
+	/**
+	 * @return the position of the first event journaled at or after the given time, or of the
+	 *         end of the journal if there is none. Timestamps are assumed to grow with positions.
+	 */
+	long findPosition(long since)
+	{
+		NavigableMap<Long, File> view;
+		synchronized (this)
+		{
+			view = new TreeMap<Long, File>(segments);
+		}
+
+		long position = view.firstKey();
+		for (Map.Entry<Long, File> segment : view.entrySet())
+		{
+			long timestamp = readFirstTimestamp(segment.getValue());
+			if (timestamp >= 0 && timestamp <= since)
+			{
+				position = segment.getKey();
+			}
+			else if (timestamp > since)
+			{
+				break;
+			}
+		}
+
+		return position;
+	}
+
+
+
+
+
+
+	/**
+	 * Read the header of the record found at an offset of a segment.
+	 * 
+	 * @return the payload length of the record, or -1 if there is no valid record at that
+	 *         offset.
+	 */
+	private static int readRecord(ByteBuffer buffer, int offset, int limit)
+	{
+		if (offset < 0 || offset + HEADER_SIZE > limit)
+		{
+			return -1;
+		}
+
+		int length = buffer.getInt(offset);
+		if (length <= 0 || length > limit - offset - HEADER_SIZE)
+		{
+			return -1;
+		}
+
+		CRC32 checksum = new CRC32();
+		for (int i = offset + HEADER_SIZE; i < offset + HEADER_SIZE + length; i++)
+		{
+			checksum.update(buffer.get(i));
+		}
+
+		return ((int) checksum.getValue() == buffer.getInt(offset + 4)) ? length : -1;
+	}
+
+
+
+
+
+
+	private void deliver(ByteBuffer buffer, int offset, int length, EventListener listener)
+	{
+		byte[] payload = new byte[length];
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset + HEADER_SIZE);
+		record.get(payload);
+
+		String data = new String(payload, UTF8);
+		int separator = data.indexOf('\n');
+		String className = data.substring(0, separator);
+		AbstractEvent event;
+		try
+		{
+			event = eventInstanciator.instanciateEvent(className, data.substring(separator + 1));
+		}
+		catch (RuntimeException e)
+		{
+			logger.warn("{}: journaled {} cannot be instanciated.", name, className, e);
+			return;
+		}
+
+		if (event == null)
+		{
+			return;
+		}
+
+		try
+		{
+			event.deliverTo(listener);
+		}
+		catch (ClassCastException e)
+		{
+			// The listener does not care about this type of event.
+		}
+		catch (Exception e)
+		{
+			logger.error(
+				"{}: ### Exception occurs when {} replayed {}",
+				name,
+				listener.getClass().getName(),
+				className,
+				e);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Reopen the last segment of a previous run, placing the write offset after its last valid
+	 * record. What follows, a record interrupted by a crash, is zeroed.
+	 */
+	private void recover(Map.Entry<Long, File> last) throws IOException
+	{
+		activeBase = last.getKey();
+		active = map(last.getValue(), FileChannel.MapMode.READ_WRITE, 0);
+
+		int offset = 0;
+		int length;
+		while ((length = readRecord(active, offset, active.capacity())) >= 0)
+		{
+			offset += HEADER_SIZE + length;
+		}
+
+		for (int i = offset; i < active.capacity(); i++)
+		{
+			if (active.get(i) != 0)
+			{
+				active.put(i, (byte) 0);
+			}
+		}
+		active.position(offset);
+	}
+
+
+
+
+
+
+	/**
+	 * Close the active segment and open a new one, then apply the retention policy.
+	 * 
+	 * @param needed
+	 *            the room needed in the new segment.
+	 */
+	private void roll(int needed) throws IOException
+	{
+		active.force();
+		openSegment(activeBase + active.capacity(), Math.max(segmentSize, needed));
+
+		while (segments.size() > maxSegments)
+		{
+			delete(segments.firstEntry());
+		}
+
+		if (maxAgeMillis > 0)
+		{
+			long oldest = System.currentTimeMillis() - maxAgeMillis;
+			while (segments.size() > 1)
+			{
+				// All the events of a segment are older than the first one of the next segment.
+				long timestamp = readFirstTimestamp(segments.higherEntry(segments.firstKey())
+					.getValue());
+				if (timestamp < 0 || timestamp >= oldest)
+				{
+					break;
+				}
+				delete(segments.firstEntry());
+			}
+		}
+	}
+
+
+
+
+
+
+	private void openSegment(long base, int size) throws IOException
+	{
+		File file = new File(folder, String.format("%020d%s", base, SEGMENT_SUFFIX));
+		active = map(file, FileChannel.MapMode.READ_WRITE, size);
+		activeBase = base;
+		segments.put(base, file);
+	}
+
+
+
+
+
+
+	private void delete(Map.Entry<Long, File> segment)
+	{
+		segments.remove(segment.getKey());
+		if (!segment.getValue().delete())
+		{
+			logger.warn("{}: journal segment {} cannot be deleted.", name, segment.getValue());
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * @return the timestamp of the first record of a segment, or -1 if it has none.
+	 */
+	private long readFirstTimestamp(File file)
+	{
+		RandomAccessFile raf = null;
+		try
+		{
+			raf = new RandomAccessFile(file, "r");
+			if (raf.length() < HEADER_SIZE || raf.readInt() <= 0)
+			{
+				return -1;
+			}
+			raf.readInt();
+			return raf.readLong();
+		}
+		catch (IOException e)
+		{
+			return -1;
+		}
+		finally
+		{
+			if (raf != null) try
+			{
+				raf.close();
+			}
+			catch (IOException e)
+			{}
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Map a segment file. The mapping remains valid once the file is closed.
+	 * 
+	 * @param size
+	 *            the size of the file to create, or 0 to map an existing file entirely.
+	 */
+	private static MappedByteBuffer map(File file, FileChannel.MapMode mode, int size)
+		throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, (mode == FileChannel.MapMode.READ_ONLY)
+			? "r"
+			: "rw");
+		try
+		{
+			if (size > 0)
+			{
+				raf.setLength(size);
+			}
+			return raf.getChannel().map(mode, 0, raf.length());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,732 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.CoalescableEvent;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventGateOptions.OverflowPolicy;
+import org.ubikit.event.EventPriority;
+
+
+
+/**
+ * Bounded queues of the events waiting for being delivered by an event gate, one per priority
+ * class. When the queue of an incoming event is full, the event is handled according to the
+ * overflow policy of the gate. Dropped and coalesced events are counted.
+ * 
+ * Waiting events of the classes selected for coalescing are replaced by newer ones from the same
+ * source item whatever the queue occupancy. With the COALESCE overflow policy, any event issued by
+ * an item may be replaced this way once its queue is full.
+ * 
+ * Waiting events are held in slots. A slot keeps its position in the queue while its event is
+ * replaced by a newer one from the same source item, which is how coalescing preserves ordering.
+ * A slot may also hold a whole batch of events, posted at once. Such a slot counts as a single
+ * entry against the queue capacity.
+ * 
+ * The queue owns a reference to the recyclable events it holds, and releases the ones it drops
+ * or replaces.
+ */
+final class EventQueue extends EventBuffer
+{
+	private static final int DROP_LOG_PERIOD = 100;
+
+	private final String name; // USAGE : for logging purpose only.
+	private final OverflowPolicy overflowPolicy;
+	private final long blockTimeoutNanos;
+	private final Class<?>[] coalescedEventClasses;
+
+	private final Lane controlLane;
+	private final Lane normalLane;
+	private final Map<CoalescingKey, Slot> coalescableSlots;
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+
+	private final AtomicLong coalescedEvents;
+	private volatile int highWaterMark; // Written with the lock held.
+
+	final Logger logger = LoggerFactory.getLogger(EventQueue.class);
+
+	/**
+	 * Queue of the waiting events of a priority class. Guarded by the queue lock.
+	 */
+	private static final class Lane
+	{
+		private final EventPriority priority;
+		private final int capacity;
+		private final ArrayDeque<Slot> slots;
+		private final Condition notFull;
+		private final AtomicLong droppedEvents;
+
+
+
+
+
+
+		private Lane(EventPriority priority, int capacity, Condition notFull)
+		{
+			this.priority = priority;
+			this.capacity = capacity;
+			this.slots = new ArrayDeque<Slot>(capacity);
+			this.notFull = notFull;
+			this.droppedEvents = new AtomicLong();
+		}
+
+
+
+
+
+
+		private boolean isFull()
+		{
+			return slots.size() >= capacity;
+		}
+	}
+
+	private static final class Slot
+	{
+		private AbstractEvent event;
+		private final List<AbstractEvent> batch;
+		private final CoalescingKey key;
+		private final Lane lane;
+		private final long acceptedTime; // Kept when the event is replaced by a newer one.
+
+
+
+
+
+
+		private Slot(AbstractEvent event, CoalescingKey key, Lane lane)
+		{
+			this.event = event;
+			this.batch = null;
+			this.key = key;
+			this.lane = lane;
+			this.acceptedTime = System.nanoTime();
+		}
+
+
+
+
+
+
+		private Slot(List<AbstractEvent> batch, Lane lane)
+		{
+			this.event = null;
+			this.batch = batch;
+			this.key = null;
+			this.lane = lane;
+			this.acceptedTime = System.nanoTime();
+		}
+
+
+
+
+
+
+		private void moveEventsTo(List<AbstractEvent> events, LongList acceptedTimes)
+		{
+			if (batch == null)
+			{
+				events.add(event);
+				acceptedTimes.add(acceptedTime);
+			}
+			else
+			{
+				events.addAll(batch);
+				acceptedTimes.add(acceptedTime, batch.size());
+			}
+		}
+	}
+
+	/**
+	 * Identify events that may replace each other: same event class, same source item.
+	 */
+	private static final class CoalescingKey
+	{
+		private final Class<?> eventClass;
+		private final String sourceItemUID;
+
+
+
+
+
+
+		private CoalescingKey(Class<?> eventClass, String sourceItemUID)
+		{
+			this.eventClass = eventClass;
+			this.sourceItemUID = sourceItemUID;
+		}
+
+
+
+
+
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * eventClass.hashCode() + sourceItemUID.hashCode();
+		}
+
+
+
+
+
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof CoalescingKey))
+			{
+				return false;
+			}
+
+			CoalescingKey k = (CoalescingKey) o;
+			return eventClass == k.eventClass && sourceItemUID.equals(k.sourceItemUID);
+		}
+	}
+
+
+
+
+
+
+	EventQueue(String name, EventGateOptions options)
+	{
+		this.name = name;
+		overflowPolicy = options.getOverflowPolicy();
+		blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.getBlockTimeoutMillis());
+		coalescedEventClasses = options.getCoalescedEventClasses().toArray(new Class<?>[0]);
+		coalescableSlots = new HashMap<CoalescingKey, Slot>();
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		controlLane = new Lane(EventPriority.CONTROL, options.getControlCapacity(), lock
+			.newCondition());
+		normalLane = new Lane(EventPriority.NORMAL, options.getCapacity(), lock.newCondition());
+		coalescedEvents = new AtomicLong();
+		highWaterMark = 0;
+	}
+
+
+
+
+
+
+	/**
+	 * Enqueue an event in the queue of its priority class, applying the overflow policy if that
+	 * queue is full.
+	 * 
+	 * @param event
+	 *            the event to enqueue.
+	 * @return true if the event was enqueued or coalesced with a waiting one, false if it was
+	 *         dropped.
+	 */
+	@Override
+	boolean offer(AbstractEvent event)
+	{
+		return offer(event, true);
+	}
+
+
+
+
+
+
+	@Override
+	boolean tryOffer(AbstractEvent event)
+	{
+		return offer(event, false);
+	}
+
+
+
+
+
+
+	private boolean offer(AbstractEvent event, boolean mayBlock)
+	{
+		CoalescingKey key = coalescingKey(event);
+		return offer(
+			new Slot(event, key, lane(event.getPriority())),
+			key != null && isAlwaysCoalesced(event.getClass()),
+			mayBlock);
+	}
+
+
+
+
+
+
+	/**
+	 * Enqueue a batch of events as a single entry of the NORMAL queue, applying the overflow
+	 * policy if that queue is full. A batch is never coalesced.
+	 * 
+	 * @param batch
+	 *            the events to enqueue. The list must not be modified afterward.
+	 * @return true if the batch was enqueued, false if it was dropped.
+	 */
+	@Override
+	boolean offerBatch(List<AbstractEvent> batch)
+	{
+		return offer(new Slot(batch, normalLane), false, true);
+	}
+
+
+
+
+
+
+	/**
+	 * @param alwaysCoalesced
+	 *            true if the event of the slot is coalesced with a waiting event of the same key
+	 *            even when its queue is not full. Looking for that event and enqueuing the slot
+	 *            are done in the same critical section, so that two events of the same key
+	 *            cannot both be enqueued.
+	 * @param mayBlock
+	 *            false to drop the slot rather than wait when its lane is full, whatever the
+	 *            overflow policy.
+	 */
+	private boolean offer(Slot slot, boolean alwaysCoalesced, boolean mayBlock)
+	{
+		CoalescingKey key = slot.key;
+		Lane lane = slot.lane;
+
+		lock.lock();
+		try
+		{
+			if (alwaysCoalesced && coalesceWithWaiting(slot))
+			{
+				return true;
+			}
+
+			if (lane.isFull())
+			{
+				switch (overflowPolicy)
+				{
+					case BLOCK:
+						if (!mayBlock)
+						{
+							return dropped(slot);
+						}
+						long nanos = blockTimeoutNanos;
+						try
+						{
+							while (lane.isFull())
+							{
+								if (nanos <= 0)
+								{
+									return dropped(slot);
+								}
+								nanos = lane.notFull.awaitNanos(nanos);
+							}
+						}
+						catch (InterruptedException e)
+						{
+							Thread.currentThread().interrupt();
+							return dropped(slot);
+						}
+						// The lock was released while waiting: an event of the same key may
+						// have been enqueued meanwhile.
+						if (alwaysCoalesced && coalesceWithWaiting(slot))
+						{
+							return true;
+						}
+						break;
+
+					case DROP_OLDEST:
+						Slot oldest = lane.slots.poll();
+						forget(oldest);
+						dropped(oldest);
+						break;
+
+					case COALESCE:
+						if (key != null && coalesceWithWaiting(slot))
+						{
+							return true;
+						}
+						return dropped(slot);
+
+					case DROP_NEWEST:
+					default:
+						return dropped(slot);
+				}
+			}
+
+			lane.slots.add(slot);
+			if (key != null)
+			{
+				coalescableSlots.put(key, slot);
+			}
+			int size = controlLane.slots.size() + normalLane.slots.size();
+			if (size > highWaterMark)
+			{
+				highWaterMark = size;
+			}
+			notEmpty.signal();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+
+
+
+
+	@Override
+	void drainTo(List<AbstractEvent> events, LongList acceptedTimes, int maxEntries)
+		throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			while (controlLane.slots.isEmpty() && normalLane.slots.isEmpty())
+			{
+				notEmpty.await();
+			}
+
+			int count = drain(controlLane, events, acceptedTimes, maxEntries);
+			drain(normalLane, events, acceptedTimes, maxEntries - count);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+
+
+
+
+	@Override
+	boolean poll(List<AbstractEvent> events, LongList acceptedTimes, int maxEntries)
+	{
+		lock.lock();
+		try
+		{
+			int count = drain(controlLane, events, acceptedTimes, maxEntries);
+			return count + drain(normalLane, events, acceptedTimes, maxEntries - count) > 0;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+
+
+
+
+	@Override
+	boolean hasWaitingEntries()
+	{
+		lock.lock();
+		try
+		{
+			return !controlLane.slots.isEmpty() || !normalLane.slots.isEmpty();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+
+
+
+
+	private int drain(
+		Lane lane,
+		List<AbstractEvent> events,
+		LongList acceptedTimes,
+		int maxEntries)
+	{
+		int count = 0;
+		while (count < maxEntries && !lane.slots.isEmpty())
+		{
+			Slot slot = lane.slots.poll();
+			forget(slot);
+			slot.moveEventsTo(events, acceptedTimes);
+			count++;
+		}
+
+		if (count > 0)
+		{
+			lane.notFull.signalAll();
+		}
+		return count;
+	}
+
+
+
+
+
+
+	@Override
+	int size(EventPriority priority)
+	{
+		lock.lock();
+		try
+		{
+			return lane(priority).slots.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+
+
+
+
+	@Override
+	int getCapacity(EventPriority priority)
+	{
+		return lane(priority).capacity;
+	}
+
+
+
+
+
+
+	@Override
+	long getDroppedEventCount(EventPriority priority)
+	{
+		return lane(priority).droppedEvents.get();
+	}
+
+
+
+
+
+
+	@Override
+	long getCoalescedEventCount()
+	{
+		return coalescedEvents.get();
+	}
+
+
+
+
+
+
+	@Override
+	int getHighWaterMark()
+	{
+		return highWaterMark;
+	}
+
+
+
+
+
+
+	private Lane lane(EventPriority priority)
+	{
+		return (priority == EventPriority.CONTROL) ? controlLane : normalLane;
+	}
+
+
+
+
+
+
+	/**
+	 * Coalesce the event of a slot with the waiting event of the same key, if any. Must be called
+	 * with the lock held.
+	 * 
+	 * @return true if the event was coalesced, false if no event of its key is waiting.
+	 */
+	private boolean coalesceWithWaiting(Slot slot)
+	{
+		Slot waiting = coalescableSlots.get(slot.key);
+		if (waiting == null)
+		{
+			return false;
+		}
+
+		coalesce(waiting, slot.event);
+		return true;
+	}
+
+
+
+
+
+
+	private void coalesce(Slot waiting, AbstractEvent incoming)
+	{
+		AbstractEvent older = waiting.event;
+		if (incoming instanceof CoalescableEvent)
+		{
+			waiting.event = ((CoalescableEvent) incoming).coalesceWith(older);
+		}
+		else
+		{
+			waiting.event = incoming;
+		}
+		coalescedEvents.incrementAndGet();
+
+		if (waiting.event != older)
+		{
+			EventReferences.release(older);
+		}
+		if (waiting.event != incoming)
+		{
+			EventReferences.release(incoming);
+		}
+	}
+
+
+
+
+
+
+	private boolean isAlwaysCoalesced(Class<?> eventClass)
+	{
+		for (Class<?> c : coalescedEventClasses)
+		{
+			if (c.isAssignableFrom(eventClass))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+
+
+
+
+
+	private CoalescingKey coalescingKey(AbstractEvent event)
+	{
+		if (event instanceof AbstractPhysicalEnvironmentModelEvent
+			&& (overflowPolicy == OverflowPolicy.COALESCE || isAlwaysCoalesced(event.getClass())))
+		{
+			String sourceItemUID = ((AbstractPhysicalEnvironmentModelEvent) event)
+				.getSourceItemUID();
+			if (sourceItemUID != null)
+			{
+				return new CoalescingKey(event.getClass(), sourceItemUID);
+			}
+		}
+
+		return null;
+	}
+
+
+
+
+
+
+	private void forget(Slot slot)
+	{
+		if (slot.key != null && coalescableSlots.get(slot.key) == slot)
+		{
+			coalescableSlots.remove(slot.key);
+		}
+	}
+
+
+
+
+
+
+	private boolean dropped(Slot slot)
+	{
+		Lane lane = slot.lane;
+		int lost = (slot.batch == null) ? 1 : slot.batch.size();
+		long count = lane.droppedEvents.addAndGet(lost);
+		long previous = count - lost;
+		if (previous == 0 || count / DROP_LOG_PERIOD != previous / DROP_LOG_PERIOD)
+		{
+			logger.warn(
+				"{}: {} queue is full ({} entries), {} was dropped ({} {} events dropped so far).",
+				name,
+				lane.priority,
+				lane.capacity,
+				(slot.batch == null) ? slot.event.getClass().getName() : "a batch of events",
+				count,
+				lane.priority);
+		}
+
+		if (slot.batch == null)
+		{
+			EventReferences.release(slot.event);
+		}
+		else
+		{
+			EventReferences.releaseAll(slot.batch);
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,596 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventGateOptions.OverflowPolicy;
+import org.ubikit.event.EventGateOptions.WaitStrategy;
+import org.ubikit.event.EventPriority;
+
+
+
+/**
+ * Preallocated ring buffers of the events waiting for being delivered by an event gate, one per
+ * priority class, for multiple producers and a single consumer, the gate deliverer.
+ * 
+ * Producers claim the next sequence number of a ring with a compare-and-set on its claim counter,
+ * store their entry in the matching slot, then publish it by writing the sequence number in the
+ * slot availability array. The deliverer reads entries in sequence order as long as they are
+ * published, then releases their slots by advancing the consumed counter. Neither side takes a
+ * lock, and no object is allocated per event.
+ * 
+ * When a ring is full, the incoming entry is dropped, or with the BLOCK overflow policy, the
+ * producer backs off until room is available, up to the block timeout.
+ */
+final class EventRingBuffer extends EventBuffer
+{
+	private static final int DROP_LOG_PERIOD = 100;
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 100;
+	private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+	private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final String name; // USAGE : for logging purpose only.
+	private final boolean blockWhenFull;
+	private final long blockTimeoutNanos;
+	private final WaitStrategy waitStrategy;
+
+	private final Ring controlRing;
+	private final Ring normalRing;
+
+	/**
+	 * Deliverer thread parked waiting for events, with the BLOCKING wait strategy. Producers
+	 * unpark it after publishing.
+	 */
+	private volatile Thread parkedConsumer;
+
+	private final AtomicInteger highWaterMark;
+
+	final Logger logger = LoggerFactory.getLogger(EventRingBuffer.class);
+
+	/**
+	 * Ring of the waiting entries of a priority class.
+	 */
+	private static final class Ring
+	{
+		private final EventPriority priority;
+		private final int mask;
+		private final Object[] entries; // AbstractEvent or List<AbstractEvent>
+		private final long[] acceptedTimes; // System.nanoTime() at which entries were offered.
+		private final AtomicLongArray published;
+		private final AtomicLong claimed;
+		private final AtomicLong consumed;
+		private final AtomicLong droppedEvents;
+
+
+
+
+
+
+		private Ring(EventPriority priority, int capacity)
+		{
+			int size = 1;
+			while (size < capacity)
+			{
+				size <<= 1;
+			}
+
+			this.priority = priority;
+			mask = size - 1;
+			entries = new Object[size];
+			acceptedTimes = new long[size];
+			published = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++)
+			{
+				published.set(i, -1);
+			}
+			claimed = new AtomicLong(-1);
+			consumed = new AtomicLong(-1);
+			droppedEvents = new AtomicLong();
+		}
+
+
+
+
+
+
+		private boolean isPublished(long sequence)
+		{
+			return published.get((int) sequence & mask) == sequence;
+		}
+
+
+
+
+
+
+		/**
+		 * Move up to maxEntries published entries to the given list and release their slots.
+		 * 
+		 * @return the number of drained entries.
+		 */
+		private int drainTo(List<AbstractEvent> events, LongList acceptedTimes, int maxEntries)
+		{
+			long sequence = consumed.get() + 1;
+			int count = 0;
+			while (count < maxEntries && isPublished(sequence))
+			{
+				int index = (int) sequence & mask;
+				moveEventsTo(entries[index], this.acceptedTimes[index], events, acceptedTimes);
+				entries[index] = null;
+				sequence++;
+				count++;
+			}
+
+			if (count > 0)
+			{
+				consumed.lazySet(sequence - 1); // Releases drained slots to producers.
+			}
+			return count;
+		}
+	}
+
+
+
+
+
+
+	EventRingBuffer(String name, EventGateOptions options)
+	{
+		OverflowPolicy overflowPolicy = options.getOverflowPolicy();
+		if (overflowPolicy != OverflowPolicy.BLOCK
+			&& overflowPolicy != OverflowPolicy.DROP_NEWEST) throw new IllegalArgumentException(
+			"a ring buffer only supports the BLOCK and DROP_NEWEST overflow policies.");
+		if (!options.getCoalescedEventClasses().isEmpty()) throw new IllegalArgumentException(
+			"a ring buffer does not support event coalescing.");
+
+		this.name = name;
+		blockWhenFull = (overflowPolicy == OverflowPolicy.BLOCK);
+		blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.getBlockTimeoutMillis());
+		waitStrategy = options.getWaitStrategy();
+		controlRing = new Ring(EventPriority.CONTROL, options.getControlCapacity());
+		normalRing = new Ring(EventPriority.NORMAL, options.getCapacity());
+		highWaterMark = new AtomicInteger();
+	}
+
+
+
+
+
+
+	@Override
+	boolean offer(AbstractEvent event)
+	{
+		return publish(ring(event.getPriority()), event, 1, blockWhenFull);
+	}
+
+
+
+
+
+
+	@Override
+	boolean tryOffer(AbstractEvent event)
+	{
+		return publish(ring(event.getPriority()), event, 1, false);
+	}
+
+
+
+
+
+
+	@Override
+	boolean offerBatch(List<AbstractEvent> batch)
+	{
+		return publish(normalRing, batch, batch.size(), blockWhenFull);
+	}
+
+
+
+
+
+
+	private boolean publish(Ring ring, Object entry, int eventCount, boolean mayBlock)
+	{
+		long acceptedTime = System.nanoTime();
+		long sequence = claim(ring, mayBlock);
+		if (sequence < 0)
+		{
+			return dropped(ring, entry, eventCount);
+		}
+
+		ring.entries[(int) sequence & ring.mask] = entry;
+		ring.acceptedTimes[(int) sequence & ring.mask] = acceptedTime;
+		// A full volatile write, so that a deliverer registering itself for parking either sees
+		// this entry or is seen below.
+		ring.published.set((int) sequence & ring.mask, sequence);
+
+		Thread consumer = parkedConsumer;
+		if (consumer != null)
+		{
+			LockSupport.unpark(consumer);
+		}
+		return true;
+	}
+
+
+
+
+
+
+	/**
+	 * Claim the next sequence number of a ring, waiting for room if the ring is full and mayBlock
+	 * is true.
+	 * 
+	 * @param mayBlock
+	 *            true to wait for room, up to the block timeout, if the ring is full.
+	 * @return the claimed sequence number, or -1 if no room was available in time.
+	 */
+	private long claim(Ring ring, boolean mayBlock)
+	{
+		long deadline = 0;
+		int tries = 0;
+		while (true)
+		{
+			long current = ring.claimed.get();
+			long next = current + 1;
+			if (next - ring.consumed.get() > ring.entries.length)
+			{
+				if (!mayBlock)
+				{
+					return -1;
+				}
+				if (tries == 0)
+				{
+					deadline = System.nanoTime() + blockTimeoutNanos;
+				}
+				else if (System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted())
+				{
+					return -1;
+				}
+				backOff(tries++);
+			}
+			else if (ring.claimed.compareAndSet(current, next))
+			{
+				updateHighWaterMark();
+				return next;
+			}
+		}
+	}
+
+
+
+
+
+
+	@Override
+	void drainTo(List<AbstractEvent> events, LongList acceptedTimes, int maxEntries)
+		throws InterruptedException
+	{
+		awaitPublished();
+
+		int count = controlRing.drainTo(events, acceptedTimes, maxEntries);
+		normalRing.drainTo(events, acceptedTimes, maxEntries - count);
+	}
+
+
+
+
+
+
+	@Override
+	boolean poll(List<AbstractEvent> events, LongList acceptedTimes, int maxEntries)
+	{
+		int count = controlRing.drainTo(events, acceptedTimes, maxEntries);
+		return count + normalRing.drainTo(events, acceptedTimes, maxEntries - count) > 0;
+	}
+
+
+
+
+
+
+	@Override
+	boolean hasWaitingEntries()
+	{
+		return hasPublished();
+	}
+
+
+
+
+
+
+	@SuppressWarnings("unchecked")
+	private static void moveEventsTo(
+		Object entry,
+		long acceptedTime,
+		List<AbstractEvent> events,
+		LongList acceptedTimes)
+	{
+		if (entry instanceof AbstractEvent)
+		{
+			events.add((AbstractEvent) entry);
+			acceptedTimes.add(acceptedTime);
+		}
+		else
+		{
+			List<AbstractEvent> batch = (List<AbstractEvent>) entry;
+			events.addAll(batch);
+			acceptedTimes.add(acceptedTime, batch.size());
+		}
+	}
+
+
+
+
+
+
+	private boolean hasPublished()
+	{
+		return controlRing.isPublished(controlRing.consumed.get() + 1)
+			|| normalRing.isPublished(normalRing.consumed.get() + 1);
+	}
+
+
+
+
+
+
+	private void awaitPublished() throws InterruptedException
+	{
+		int tries = 0;
+		while (!hasPublished())
+		{
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+
+			if (waitStrategy == WaitStrategy.BLOCKING)
+			{
+				parkedConsumer = Thread.currentThread();
+				// Re-check once registered, not to miss an unpark.
+				if (!hasPublished())
+				{
+					LockSupport.park(this);
+				}
+				parkedConsumer = null;
+			}
+			else
+			{
+				idle(tries++);
+			}
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Wait a little for room in a full ring. A full ring means the deliverer lags behind, so
+	 * producers always end up parking instead of competing with it for processors, whatever the
+	 * wait strategy.
+	 */
+	private static void backOff(int tries)
+	{
+		if (tries < SPIN_TRIES)
+		{
+			return;
+		}
+		else if (tries < SPIN_TRIES + YIELD_TRIES)
+		{
+			Thread.yield();
+		}
+		else
+		{
+			LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Wait a little for incoming events, according to the wait strategy.
+	 */
+	private void idle(int tries)
+	{
+		switch (waitStrategy)
+		{
+			case BUSY_SPIN:
+				break;
+
+			case YIELDING:
+				if (tries >= SPIN_TRIES)
+				{
+					Thread.yield();
+				}
+				break;
+
+			case SLEEPING:
+			default:
+				if (tries >= SPIN_TRIES + YIELD_TRIES)
+				{
+					LockSupport.parkNanos(SLEEP_NANOS);
+				}
+				else if (tries >= SPIN_TRIES)
+				{
+					Thread.yield();
+				}
+				break;
+		}
+	}
+
+
+
+
+
+
+	@Override
+	int size(EventPriority priority)
+	{
+		Ring ring = ring(priority);
+		return (int) (ring.claimed.get() - ring.consumed.get());
+	}
+
+
+
+
+
+
+	@Override
+	int getCapacity(EventPriority priority)
+	{
+		return ring(priority).entries.length;
+	}
+
+
+
+
+
+
+	@Override
+	long getDroppedEventCount(EventPriority priority)
+	{
+		return ring(priority).droppedEvents.get();
+	}
+
+
+
+
+
+
+	@Override
+	long getCoalescedEventCount()
+	{
+		return 0;
+	}
+
+
+
+
+
+
+	@Override
+	int getHighWaterMark()
+	{
+		return highWaterMark.get();
+	}
+
+
+
+
+
+
+	private void updateHighWaterMark()
+	{
+		int size = size();
+		int current;
+		while (size > (current = highWaterMark.get())
+			&& !highWaterMark.compareAndSet(current, size))
+		{}
+	}
+
+
+
+
+
+
+	private Ring ring(EventPriority priority)
+	{
+		return (priority == EventPriority.CONTROL) ? controlRing : normalRing;
+	}
+
+
+
+
+
+
+	@SuppressWarnings("unchecked")
+	private boolean dropped(Ring ring, Object entry, int eventCount)
+	{
+		long count = ring.droppedEvents.addAndGet(eventCount);
+		long previous = count - eventCount;
+		if (previous == 0 || count / DROP_LOG_PERIOD != previous / DROP_LOG_PERIOD)
+		{
+			logger.warn(
+				"{}: {} ring is full ({} entries), {} was dropped ({} {} events dropped so far).",
+				name,
+				ring.priority,
+				ring.entries.length,
+				(entry instanceof AbstractEvent) ? entry.getClass().getName() : "a batch of events",
+				count,
+				ring.priority);
+		}
+
+		if (entry instanceof AbstractEvent)
+		{
+			EventReferences.release((AbstractEvent) entry);
+		}
+		else
+		{
+			EventReferences.releaseAll((List<AbstractEvent>) entry);
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,497 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubikit.event.ScheduledPost;
+
+
+
+/**
+ * Hashed timer wheel, driven by a single thread. Timeouts are hashed by deadline into a circular
+ * array of buckets, each tick covering a fixed duration. Timeouts that are more than a rotation
+ * away count the rotations left before their expiration.
+ * 
+ * Arming and cancelling a timeout are constant time and lock-free, so that a very large number of
+ * timeouts can be armed and cancelled. New timeouts are queued, then hashed by the timer thread
+ * at its next tick. Cancelled timeouts are unlinked by the timer thread when it goes through their
+ * bucket. The precision of deadlines is the tick duration. The timer thread parks when no timeout
+ * is armed.
+ * 
+ * Expired tasks run on the timer thread, and must therefore be short.
+ */
+final class HashedWheelTimer
+{
+	private static final int INIT = 0;
+	private static final int EXPIRED = 1;
+	private static final int CANCELLED = 2;
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	/**
+	 * Task run when a timeout expires, on the timer thread.
+	 */
+	interface Task
+	{
+		void run();
+
+		/**
+		 * Called on the timer thread once the timeout will never expire again: after a one-shot
+		 * expiration or after a cancellation.
+		 */
+		void done();
+	}
+
+	/**
+	 * Armed timeout. Its links and rounds are only used by the timer thread.
+	 */
+	final class Timeout implements ScheduledPost
+	{
+		private final Task task;
+		private final long period; // in nanoseconds, 0 for a one-shot timeout.
+		private final AtomicInteger state;
+		private long deadline; // in nanoseconds, relative to the start of the timer.
+		private long remainingRounds;
+		private Timeout next;
+		private Timeout previous;
+		private Bucket bucket;
+
+
+
+
+
+
+		private Timeout(Task task, long deadline, long period)
+		{
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+			state = new AtomicInteger(INIT);
+		}
+
+
+
+
+
+
+		@Override
+		public boolean cancel()
+		{
+			return state.compareAndSet(INIT, CANCELLED);
+		}
+
+
+
+
+
+
+		@Override
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts of a tick.
+	 */
+	private static final class Bucket
+	{
+		private Timeout head;
+		private Timeout tail;
+	}
+
+	private final long tickDuration; // in nanoseconds.
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> newTimeouts;
+	private final List<Timeout> rearmedTimeouts; // Only used by the timer thread.
+	private final AtomicLong armedTimeouts;
+	private final Thread worker;
+	private final long startTime;
+	private long tick; // Only used by the timer thread.
+	private volatile boolean idle; // true while the timer thread parks for lack of timeouts.
+	private volatile boolean stopped;
+
+	final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+
+
+
+
+
+	/**
+	 * Create and start a timer.
+	 * 
+	 * @param name
+	 *            the name of the timer thread.
+	 * @param tickDuration
+	 *            the duration of a tick.
+	 * @param unit
+	 *            the unit of tickDuration.
+	 * @param ticksPerWheel
+	 *            the number of buckets, rounded up to a power of two.
+	 */
+	HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel)
+	{
+		this.tickDuration = Math.max(1, unit.toNanos(tickDuration));
+		int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+		{
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+		rearmedTimeouts = new ArrayList<Timeout>();
+		armedTimeouts = new AtomicLong();
+		startTime = System.nanoTime();
+		tick = 0;
+		idle = false;
+		stopped = false;
+		worker = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				work();
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+
+
+
+
+
+	/**
+	 * Arm a timeout.
+	 * 
+	 * @param task
+	 *            the task to run when the timeout expires.
+	 * @param delay
+	 *            the delay before the first expiration, negative delays meaning none.
+	 * @param period
+	 *            the period of next expirations, or 0 for a one-shot timeout.
+	 * @param unit
+	 *            the unit of delay and period.
+	 * @return the armed timeout.
+	 * @throws IllegalStateException
+	 *             if the timer is stopped.
+	 */
+	Timeout schedule(Task task, long delay, long period, TimeUnit unit)
+	{
+		if (stopped) throw new IllegalStateException("The timer is stopped.");
+
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime
+			+ unit.toNanos(Math.max(0, delay)), unit.toNanos(period));
+		armedTimeouts.incrementAndGet();
+		newTimeouts.add(timeout);
+		if (idle)
+		{
+			LockSupport.unpark(worker);
+		}
+
+		return timeout;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the number of armed timeouts, including cancelled ones not yet unlinked.
+	 */
+	long getArmedTimeoutCount()
+	{
+		return armedTimeouts.get();
+	}
+
+
+
+
+
+
+	/**
+	 * Stop the timer. Armed timeouts never expire.
+	 */
+	void stop()
+	{
+		stopped = true;
+		worker.interrupt();
+	}
+
+
+
+
+
+
+	private void work()
+	{
+		while (!stopped)
+		{
+			if (armedTimeouts.get() == 0)
+			{
+				idle = true;
+				if (armedTimeouts.get() == 0)
+				{
+					LockSupport.park(this);
+				}
+				idle = false;
+
+				// All buckets are empty: ticks elapsed meanwhile can be skipped.
+				tick = Math.max(tick, (System.nanoTime() - startTime) / tickDuration);
+				continue;
+			}
+
+			long deadline = tickDuration * (tick + 1);
+			long sleep;
+			while ((sleep = deadline - (System.nanoTime() - startTime)) > 0 && !stopped)
+			{
+				LockSupport.parkNanos(this, sleep);
+			}
+
+			transferNewTimeouts();
+			expire(wheel[(int) (tick & mask)], deadline);
+			tick++;
+
+			// Periodic timeouts are rearmed once their bucket was gone through.
+			for (int i = 0; i < rearmedTimeouts.size(); i++)
+			{
+				add(rearmedTimeouts.get(i), tick);
+			}
+			rearmedTimeouts.clear();
+		}
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("{} has terminated.", worker.getName());
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Hash the timeouts armed since the last tick into their bucket.
+	 */
+	private void transferNewTimeouts()
+	{
+		Timeout timeout;
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK && (timeout = newTimeouts.poll()) != null; i++)
+		{
+			if (timeout.state.get() == CANCELLED)
+			{
+				done(timeout);
+				continue;
+			}
+			add(timeout, tick);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Hash a timeout into its bucket.
+	 * 
+	 * @param nextTick
+	 *            the next tick the timer thread will go through. Late timeouts go into its
+	 *            bucket.
+	 */
+	private void add(Timeout timeout, long nextTick)
+	{
+		long ticks = timeout.deadline / tickDuration;
+		timeout.remainingRounds = Math.max(0, (ticks - nextTick) / wheel.length);
+		Bucket bucket = wheel[(int) (Math.max(ticks, nextTick) & mask)];
+		timeout.bucket = bucket;
+		timeout.previous = bucket.tail;
+		timeout.next = null;
+		if (bucket.tail == null)
+		{
+			bucket.head = timeout;
+		}
+		else
+		{
+			bucket.tail.next = timeout;
+		}
+		bucket.tail = timeout;
+	}
+
+
+
+
+
+
+	private void remove(Timeout timeout)
+	{
+		Bucket bucket = timeout.bucket;
+		if (timeout.previous == null)
+		{
+			bucket.head = timeout.next;
+		}
+		else
+		{
+			timeout.previous.next = timeout.next;
+		}
+
+		if (timeout.next == null)
+		{
+			bucket.tail = timeout.previous;
+		}
+		else
+		{
+			timeout.next.previous = timeout.previous;
+		}
+
+		timeout.next = null;
+		timeout.previous = null;
+		timeout.bucket = null;
+	}
+
+
+
+
+
+
+	/**
+	 * Expire the timeouts of a bucket whose deadline is reached, and unlink cancelled ones.
+	 */
+	private void expire(Bucket bucket, long deadline)
+	{
+		Timeout timeout = bucket.head;
+		while (timeout != null)
+		{
+			Timeout next = timeout.next;
+			if (timeout.state.get() == CANCELLED)
+			{
+				remove(timeout);
+				done(timeout);
+			}
+			else if (timeout.remainingRounds > 0)
+			{
+				timeout.remainingRounds--;
+			}
+			else if (timeout.deadline <= deadline)
+			{
+				remove(timeout);
+				run(timeout, deadline);
+			}
+			timeout = next;
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Run the task of an expired timeout, then rearm it if it is periodic. Periods missed because
+	 * the timer thread was late are skipped.
+	 */
+	private void run(Timeout timeout, long tickDeadline)
+	{
+		if (timeout.period == 0 && !timeout.state.compareAndSet(INIT, EXPIRED))
+		{
+			done(timeout); // Cancelled meanwhile.
+			return;
+		}
+
+		try
+		{
+			timeout.task.run();
+		}
+		catch (RuntimeException e)
+		{
+			logger.error("{}: ### Exception occurs when a timeout expired", worker.getName(), e);
+		}
+
+		if (timeout.period == 0 || timeout.state.get() == CANCELLED)
+		{
+			done(timeout);
+		}
+		else
+		{
+			timeout.deadline = Math.max(timeout.deadline + timeout.period, tickDeadline);
+			rearmedTimeouts.add(timeout);
+		}
+	}
+
+
+
+
+
+
+	private void done(Timeout timeout)
+	{
+		armedTimeouts.decrementAndGet();
+		try
+		{
+			timeout.task.done();
+		}
+		catch (RuntimeException e)
+		{
+			logger.error("{}: ### Exception occurs when a timeout was done", worker.getName(), e);
+		}
+	}
+}
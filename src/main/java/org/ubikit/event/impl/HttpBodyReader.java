@@ -0,0 +1,395 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+
+
+/**
+ * Reads the bodies of the requests an HTTP event gate receives. Bodies are bounded in size, and
+ * read into buffers that are reused from one request to the next, so that receiving an event
+ * only allocates the event itself once the buffers have grown to the usual body size.
+ */
+final class HttpBodyReader
+{
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+	private static final int FREE_BODY_CAPACITY = 8;
+
+	private final int maxBodySize;
+	private final Body[] freeBodies; // Guarded by this.
+	private int freeBodyCount; // Guarded by this.
+
+	/**
+	 * Thrown when a body exceeds the maximum body size.
+	 */
+	static final class TooLargeException extends IOException
+	{
+		private static final long serialVersionUID = 2962208405366524714L;
+
+		private TooLargeException(int maxBodySize)
+		{
+			super("the request body exceeds " + maxBodySize + " bytes.");
+		}
+	}
+
+	/**
+	 * Input stream that fails once more than the maximum body size was read.
+	 */
+	final class BoundedInputStream extends FilterInputStream
+	{
+		private int remaining;
+		private boolean exceeded;
+
+		private BoundedInputStream(InputStream input)
+		{
+			super(input);
+			remaining = maxBodySize;
+			exceeded = false;
+		}
+
+
+
+
+
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b != -1)
+			{
+				consumed(1);
+			}
+			return b;
+		}
+
+
+
+
+
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			// Read one byte more than allowed, so that a body of exactly the maximum size passes.
+			int count = super.read(buffer, offset, (int) Math.min(length, remaining + 1L));
+			if (count > 0)
+			{
+				consumed(count);
+			}
+			return count;
+		}
+
+
+
+
+
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long count = super.skip(Math.min(n, remaining + 1L));
+			consumed((int) count);
+			return count;
+		}
+
+
+
+
+
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+
+
+
+
+
+		/**
+		 * @return true if the body exceeded the maximum body size, even if the resulting
+		 *         exception was caught by the reader of this stream.
+		 */
+		boolean isExceeded()
+		{
+			return exceeded;
+		}
+
+
+
+
+
+
+		private void consumed(int count) throws TooLargeException
+		{
+			remaining -= count;
+			if (remaining < 0)
+			{
+				exceeded = true;
+				throw new TooLargeException(maxBodySize);
+			}
+		}
+	}
+
+	/**
+	 * A body read into a buffer. It must be released once used.
+	 */
+	final class Body
+	{
+		private byte[] data;
+		private int length;
+
+		private Body()
+		{
+			data = new byte[INITIAL_BUFFER_SIZE];
+			length = 0;
+		}
+
+
+
+
+
+
+		/**
+		 * @return the buffer holding the body, from index 0. It is only valid until the body is
+		 *         released.
+		 */
+		byte[] getData()
+		{
+			return data;
+		}
+
+
+
+
+
+
+		int getLength()
+		{
+			return length;
+		}
+
+
+
+
+
+
+		String toString(Charset charset)
+		{
+			return new String(data, 0, length, charset);
+		}
+
+
+
+
+
+
+		void release()
+		{
+			HttpBodyReader.this.release(this);
+		}
+
+
+
+
+
+
+		private void readFrom(InputStream input, int contentLength) throws IOException
+		{
+			if (contentLength >= data.length)
+			{
+				// One byte more, so that the end of the body is reached without growing.
+				data = new byte[contentLength + 1];
+			}
+
+			length = 0;
+			int count;
+			while ((count = input.read(data, length, data.length - length)) != -1)
+			{
+				length += count;
+				if (length == data.length)
+				{
+					byte[] newData = new byte[Math.min(data.length * 2, maxBodySize + 1)];
+					System.arraycopy(data, 0, newData, 0, length);
+					data = newData;
+				}
+			}
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * @param maxBodySize
+	 *            the size of the largest body accepted, in bytes.
+	 */
+	HttpBodyReader(int maxBodySize)
+	{
+		// Leaves room for the extra byte read to detect bodies that are too large.
+		this.maxBodySize = Math.min(maxBodySize, Integer.MAX_VALUE - 16);
+		freeBodies = new Body[FREE_BODY_CAPACITY];
+		freeBodyCount = 0;
+	}
+
+
+
+
+
+
+	/**
+	 * @param contentLength
+	 *            the length of a body as announced by the request, or -1 if it is unknown.
+	 * @throws TooLargeException
+	 *             if the announced length exceeds the maximum body size.
+	 */
+	void checkLength(int contentLength) throws TooLargeException
+	{
+		if (contentLength > maxBodySize)
+		{
+			throw new TooLargeException(maxBodySize);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * @param input
+	 *            the input stream of a body.
+	 * @return a stream that fails with a TooLargeException once more than the maximum body size
+	 *         was read from it.
+	 */
+	BoundedInputStream bound(InputStream input)
+	{
+		return new BoundedInputStream(input);
+	}
+
+
+
+
+
+
+	/**
+	 * Read a whole body.
+	 * 
+	 * @param input
+	 *            the input stream of the body.
+	 * @param contentLength
+	 *            the length of the body as announced by the request, or -1 if it is unknown.
+	 * @return the body, to be released once used.
+	 * @throws TooLargeException
+	 *             if the body exceeds the maximum body size.
+	 * @throws IOException
+	 *             if the body cannot be read.
+	 */
+	Body read(InputStream input, int contentLength) throws IOException
+	{
+		checkLength(contentLength);
+
+		Body body = null;
+		synchronized (this)
+		{
+			if (freeBodyCount > 0)
+			{
+				body = freeBodies[--freeBodyCount];
+				freeBodies[freeBodyCount] = null;
+			}
+		}
+		if (body == null)
+		{
+			body = new Body();
+		}
+
+		try
+		{
+			body.readFrom(bound(input), contentLength);
+		}
+		catch (IOException e)
+		{
+			body.release();
+			throw e;
+		}
+		return body;
+	}
+
+
+
+
+
+
+	/**
+	 * Keep a body for reuse, unless its buffer grew too large to be retained or enough bodies
+	 * are already free.
+	 */
+	private void release(Body body)
+	{
+		if (body.data.length > MAX_RETAINED_BUFFER_SIZE)
+		{
+			return;
+		}
+
+		synchronized (this)
+		{
+			if (freeBodyCount < freeBodies.length)
+			{
+				freeBodies[freeBodyCount++] = body;
+			}
+		}
+	}
+}
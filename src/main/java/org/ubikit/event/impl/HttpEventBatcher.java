@@ -0,0 +1,407 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.HttpEventGate;
+import org.ubikit.event.ScheduledPost;
+
+
+
+/**
+ * Gathers the events an HTTP event gate posts to the same URL into batches, and sends each
+ * batch in a single request when it is full or when its linger time has elapsed. Events are
+ * added already serialized, so that they may be modified or recycled once added. The gate only
+ * adds events to URLs whose distant gate advertised the batch media type.
+ * 
+ * A batch body is a JSON array of {"type": class name, "event": event} objects. If the distant
+ * gate answers a batch with a 415 response code, it no longer accepts batches: the events of the
+ * batch are then posted one by one as JSON, in order.
+ */
+final class HttpEventBatcher
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CONTENT_TYPE = HttpEventGate.eventBatchMediaType
+		+ ";charset=utf-8";
+
+	private final String name; // USAGE : for debugging purpose only.
+	private final HttpEventClient client;
+	private final int maxEvents;
+	private final long lingerMillis;
+	private final Map<String, Batch> batches; // pending batches by URL, guarded by this.
+
+	final Logger logger = LoggerFactory.getLogger(HttpEventBatcher.class);
+
+	/**
+	 * A batch of events waiting for being sent to a URL. Once removed from the pending batches,
+	 * it is no longer modified.
+	 */
+	private final class Batch implements Callable<Integer>
+	{
+		private final URL url;
+		private final StringBuilder body;
+		private final List<String> types; // of the events, kept for posting them one by one.
+		private final List<String> jsons;
+		private final FutureTask<Integer> future;
+		private int size;
+		private ScheduledPost lingerTimeout; // or null
+		private IOException rejection; // or null
+
+		private Batch(URL url)
+		{
+			this.url = url;
+			body = new StringBuilder("[");
+			types = new ArrayList<String>();
+			jsons = new ArrayList<String>();
+			future = new FutureTask<Integer>(this);
+			size = 0;
+			lingerTimeout = null;
+			rejection = null;
+		}
+
+
+
+
+
+
+		@Override
+		public Integer call() throws IOException
+		{
+			if (rejection != null)
+			{
+				throw rejection;
+			}
+
+			try
+			{
+				int code = client.post(url, CONTENT_TYPE, body.append(']').toString().getBytes(
+					UTF8));
+				if (code == HttpURLConnection.HTTP_UNSUPPORTED_TYPE)
+				{
+					logger.info(
+						"{}: {} no longer accepts event batches, posting {} events one by one.",
+						name,
+						url,
+						size);
+					code = postOneByOne();
+				}
+				if (code != HttpURLConnection.HTTP_OK)
+				{
+					logger.warn(
+						"{}: The distant event gate answered a batch of {} events with a {}"
+							+ " response code.",
+						name,
+						size,
+						code);
+				}
+				return code;
+			}
+			catch (IOException e)
+			{
+				logger.warn("{}: A batch of {} events could not be posted.", name, size, e);
+				throw e;
+			}
+		}
+
+
+
+
+
+
+		/**
+		 * Post the events of the batch one by one, stopping at the first failure to keep them in
+		 * order.
+		 * 
+		 * @return the response code of the last request.
+		 */
+		private int postOneByOne() throws IOException
+		{
+			int code = HttpURLConnection.HTTP_OK;
+			for (int i = 0; i < size && code == HttpURLConnection.HTTP_OK; i++)
+			{
+				code = client.post(url, getEventContentType(types.get(i)), jsons.get(i).getBytes(
+					UTF8));
+			}
+			return code;
+		}
+	}
+
+
+
+
+
+
+	HttpEventBatcher(String name, HttpEventClient client, EventGateOptions options)
+	{
+		this.name = name;
+		this.client = client;
+		maxEvents = options.getHttpBatchMaxEvents();
+		lingerMillis = options.getHttpBatchLingerMillis();
+		batches = new HashMap<String, Batch>();
+	}
+
+
+
+
+
+
+	/**
+	 * Append an event to a batch body.
+	 * 
+	 * @param body
+	 *            a batch body, that is the opening bracket and the events already appended.
+	 * @param first
+	 *            true if the event is the first one of the batch.
+	 * @param type
+	 *            the class name of the event.
+	 * @param json
+	 *            the JSON representation of the event.
+	 */
+	static void appendEvent(StringBuilder body, boolean first, String type, String json)
+	{
+		if (!first)
+		{
+			body.append(',');
+		}
+		body.append("{\"type\":\"").append(type).append("\",\"event\":").append(json).append('}');
+	}
+
+
+
+
+
+
+	/**
+	 * @return the content type of batch requests.
+	 */
+	static String getContentType()
+	{
+		return CONTENT_TYPE;
+	}
+
+
+
+
+
+
+	/**
+	 * @param type
+	 *            the class name of an event.
+	 * @return the content type of the request that posts that event alone as JSON.
+	 */
+	static String getEventContentType(String type)
+	{
+		return "application/vnd." + type + ";charset=utf-8";
+	}
+
+
+
+
+
+
+	/**
+	 * Add an event to the pending batch of a URL, creating that batch if needed.
+	 * 
+	 * @param url
+	 *            the URL of the distant event gate.
+	 * @param type
+	 *            the class name of the event.
+	 * @param json
+	 *            the JSON representation of the event.
+	 * @return the future HTTP response code of the batch the event was added to.
+	 */
+	Future<Integer> add(URL url, String type, String json)
+	{
+		Batch batch;
+		boolean full;
+		synchronized (this)
+		{
+			String key = url.toString(); // URL.equals() may resolve host names.
+			batch = batches.get(key);
+			if (batch == null)
+			{
+				batch = new Batch(url);
+				batches.put(key, batch);
+				if (maxEvents > 1 && lingerMillis > 0)
+				{
+					batch.lingerTimeout = scheduleLinger(key, batch);
+				}
+			}
+
+			appendEvent(batch.body, batch.size == 0, type, json);
+			batch.types.add(type);
+			batch.jsons.add(json);
+			batch.size++;
+			full = batch.size >= maxEvents || batch.lingerTimeout == null;
+			if (full)
+			{
+				batches.remove(key);
+			}
+		}
+
+		if (full)
+		{
+			if (batch.lingerTimeout != null)
+			{
+				batch.lingerTimeout.cancel();
+			}
+			send(batch);
+		}
+		return batch.future;
+	}
+
+
+
+
+
+
+	/**
+	 * Send all the pending batches at once.
+	 */
+	void flush()
+	{
+		List<Batch> pending;
+		synchronized (this)
+		{
+			pending = new ArrayList<Batch>(batches.values());
+			batches.clear();
+		}
+
+		for (Batch batch : pending)
+		{
+			if (batch.lingerTimeout != null)
+			{
+				batch.lingerTimeout.cancel();
+			}
+			send(batch);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Arm the timeout that sends a batch when its linger time has elapsed.
+	 * 
+	 * @return the armed timeout, or null if the shared timer is stopped.
+	 */
+	private ScheduledPost scheduleLinger(final String key, final Batch batch)
+	{
+		try
+		{
+			return EventGateExecutors.getSharedTimer().schedule(new HashedWheelTimer.Task()
+			{
+				@Override
+				public void run()
+				{
+					synchronized (HttpEventBatcher.this)
+					{
+						if (batches.get(key) != batch)
+						{
+							return;
+						}
+						batches.remove(key);
+					}
+					send(batch);
+				}
+
+
+
+
+
+
+				@Override
+				public void done()
+				{}
+			}, lingerMillis, 0, TimeUnit.MILLISECONDS);
+		}
+		catch (IllegalStateException e)
+		{
+			return null;
+		}
+	}
+
+
+
+
+
+
+	private void send(Batch batch)
+	{
+		try
+		{
+			client.execute(batch.url, batch.future);
+		}
+		catch (RejectedExecutionException e)
+		{
+			batch.rejection = new IOException("a batch of "
+				+ batch.size
+				+ " events to "
+				+ batch.url
+				+ " was rejected: too many requests are waiting, or the gate is terminated.");
+			logger.warn("{}: {}", name, batch.rejection.getMessage());
+			batch.future.run();
+		}
+	}
+}
@@ -0,0 +1,520 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.HttpEventGate.ResponseListener;
+
+
+
+/**
+ * HTTP client of an HTTP event gate. Each request fully reads and closes the response instead of
+ * disconnecting, so that the HTTP client of the JVM keeps the connection alive for the next
+ * request to the same host.
+ * 
+ * Asynchronous requests are sent by a small thread pool per destination host, whose threads are
+ * only alive while requests are flowing. A slow host therefore cannot delay requests to the
+ * others.
+ */
+final class HttpEventClient
+{
+	private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+	private static final int DRAIN_BUFFER_SIZE = 1024;
+
+	/**
+	 * Response header by which an HTTP event gate lists the media types it accepts besides
+	 * JSON.
+	 */
+	static final String ACCEPT_POST = "Accept-Post";
+
+	private final String name; // USAGE : for debugging purpose only.
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+	private final int maxConnections;
+	private final int maxPendingRequests;
+	private final ConcurrentMap<String, ThreadPoolExecutor> destinations;
+	private final ConcurrentMap<String, String> acceptedMediaTypes; // Accept-Post by URL.
+
+	private volatile boolean closed;
+
+	final Logger logger = LoggerFactory.getLogger(HttpEventClient.class);
+
+	/**
+	 * An asynchronous request.
+	 */
+	private final class Request implements Callable<Integer>
+	{
+		private final URL url;
+		private final String contentType;
+		private final byte[] body;
+		private final String fallbackContentType; // or null
+		private final byte[] fallbackBody; // or null
+		private final ResponseListener listener; // or null
+
+		private Request(
+			URL url,
+			String contentType,
+			byte[] body,
+			String fallbackContentType,
+			byte[] fallbackBody,
+			ResponseListener listener)
+		{
+			this.url = url;
+			this.contentType = contentType;
+			this.body = body;
+			this.fallbackContentType = fallbackContentType;
+			this.fallbackBody = fallbackBody;
+			this.listener = listener;
+		}
+
+
+
+
+
+
+		@Override
+		public Integer call() throws IOException
+		{
+			int code;
+			try
+			{
+				code = post(url, contentType, body);
+				if (code == HttpURLConnection.HTTP_UNSUPPORTED_TYPE && fallbackBody != null)
+				{
+					logger.info(
+						"{}: {} no longer accepts {}, falling back to {}.",
+						name,
+						url,
+						contentType,
+						fallbackContentType);
+					code = post(url, fallbackContentType, fallbackBody);
+				}
+			}
+			catch (IOException e)
+			{
+				failed(e);
+				throw e;
+			}
+
+			if (listener != null)
+			{
+				try
+				{
+					listener.onResponse(url, code);
+				}
+				catch (RuntimeException e)
+				{
+					logger.error("{}: a response listener failed.", name, e);
+				}
+			}
+			return code;
+		}
+
+
+
+
+
+
+		/**
+		 * Notify the listener that the request failed.
+		 */
+		private void failed(IOException cause)
+		{
+			if (listener != null)
+			{
+				try
+				{
+					listener.onFailure(url, cause);
+				}
+				catch (RuntimeException e)
+				{
+					logger.error("{}: a response listener failed.", name, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The outcome of a request that could not even be sent.
+	 */
+	private static final class Failure implements Callable<Integer>
+	{
+		private final IOException cause;
+
+		private Failure(IOException cause)
+		{
+			this.cause = cause;
+		}
+
+
+
+
+
+
+		@Override
+		public Integer call() throws IOException
+		{
+			throw cause;
+		}
+	}
+
+
+
+
+
+
+	HttpEventClient(String name, EventGateOptions options)
+	{
+		this.name = name;
+		connectTimeoutMillis = (int) options.getHttpConnectTimeoutMillis();
+		readTimeoutMillis = (int) options.getHttpReadTimeoutMillis();
+		maxConnections = options.getHttpMaxConnections();
+		maxPendingRequests = options.getHttpMaxPendingRequests();
+		destinations = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+		acceptedMediaTypes = new ConcurrentHashMap<String, String>();
+		closed = false;
+	}
+
+
+
+
+
+
+	/**
+	 * Send a POST request and wait for its response. The media types the distant gate accepts,
+	 * if it lists them, are recorded for the next requests.
+	 * 
+	 * @param url
+	 *            the URL to post to.
+	 * @param contentType
+	 *            the content type of the body.
+	 * @param body
+	 *            the body of the request.
+	 * @return the HTTP response code.
+	 * @throws IOException
+	 *             if the connection failed or timed out.
+	 */
+	int post(URL url, String contentType, byte[] body) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		try
+		{
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", contentType);
+			connection.setDoOutput(true);
+			connection.setUseCaches(false);
+			connection.setConnectTimeout(connectTimeoutMillis);
+			connection.setReadTimeout(readTimeoutMillis);
+
+			OutputStream output = connection.getOutputStream();
+			try
+			{
+				output.write(body);
+			}
+			finally
+			{
+				output.close();
+			}
+
+			int code = connection.getResponseCode();
+			String accepted = connection.getHeaderField(ACCEPT_POST);
+			if (accepted != null)
+			{
+				acceptedMediaTypes.put(url.toString(), accepted);
+			}
+			else
+			{
+				acceptedMediaTypes.remove(url.toString());
+			}
+			drain((code < HttpURLConnection.HTTP_BAD_REQUEST)
+				? connection.getInputStream()
+				: connection.getErrorStream());
+			return code;
+		}
+		catch (IOException e)
+		{
+			// The connection is in an unknown state: it must not be reused.
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * @param url
+	 *            the URL of a distant event gate.
+	 * @param mediaType
+	 *            a media type, without parameters.
+	 * @return true if the last response from that URL listed the media type as accepted. Until a
+	 *         response is received, only JSON is deemed accepted.
+	 */
+	boolean accepts(URL url, String mediaType)
+	{
+		String accepted = acceptedMediaTypes.get(url.toString());
+		if (accepted == null)
+		{
+			return false;
+		}
+
+		for (String acceptedMediaType : accepted.split(","))
+		{
+			if (acceptedMediaType.trim().equalsIgnoreCase(mediaType))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+
+
+
+
+	/**
+	 * Send a POST request from the thread pool of its destination host.
+	 * 
+	 * @param url
+	 *            the URL to post to.
+	 * @param contentType
+	 *            the content type of the body.
+	 * @param body
+	 *            the body of the request.
+	 * @param listener
+	 *            the listener to notify on completion, or null.
+	 * @return the future HTTP response code. It fails at once if too many requests wait for the
+	 *         destination host, or if the client is closed.
+	 */
+	Future<Integer> postAsync(URL url, String contentType, byte[] body, ResponseListener listener)
+	{
+		return postAsync(url, contentType, body, null, null, listener);
+	}
+
+
+
+
+
+
+	/**
+	 * Same as postAsync(URL, String, byte[], ResponseListener), posting another body if the
+	 * distant gate answers the first one with a 415 response code.
+	 * 
+	 * @param fallbackContentType
+	 *            the content type of the other body, or null.
+	 * @param fallbackBody
+	 *            the other body, or null to not post another body.
+	 */
+	Future<Integer> postAsync(
+		URL url,
+		String contentType,
+		byte[] body,
+		String fallbackContentType,
+		byte[] fallbackBody,
+		ResponseListener listener)
+	{
+		Request request = new Request(
+			url,
+			contentType,
+			body,
+			fallbackContentType,
+			fallbackBody,
+			listener);
+		FutureTask<Integer> task = new FutureTask<Integer>(request);
+		try
+		{
+			execute(url, task);
+		}
+		catch (RejectedExecutionException e)
+		{
+			IOException cause = new IOException((closed)
+				? "the HTTP event gate is terminated."
+				: "too many requests are waiting for " + getDestinationKey(url) + ".");
+			request.failed(cause);
+			task = new FutureTask<Integer>(new Failure(cause));
+			task.run();
+		}
+
+		return task;
+	}
+
+
+
+
+
+
+	/**
+	 * Run a task from the thread pool of the destination host of a URL.
+	 * 
+	 * @param url
+	 *            a URL.
+	 * @param task
+	 *            the task to run, that sends a request to that URL.
+	 * @throws RejectedExecutionException
+	 *             if too many requests wait for the destination host, or if the client is closed.
+	 */
+	void execute(URL url, Runnable task)
+	{
+		if (closed)
+		{
+			throw new RejectedExecutionException();
+		}
+		getDestination(url).execute(task);
+	}
+
+
+
+
+
+
+	/**
+	 * Stop accepting asynchronous requests. Waiting requests are still sent.
+	 */
+	void close()
+	{
+		closed = true;
+		for (ThreadPoolExecutor executor : destinations.values())
+		{
+			executor.shutdown();
+		}
+		destinations.clear();
+	}
+
+
+
+
+
+
+	private ThreadPoolExecutor getDestination(URL url)
+	{
+		String key = getDestinationKey(url);
+		ThreadPoolExecutor executor = destinations.get(key);
+		if (executor == null)
+		{
+			ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(
+				maxConnections,
+				maxConnections,
+				IDLE_THREAD_TIMEOUT_SECONDS,
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(maxPendingRequests),
+				new EventGateExecutors.NamedThreadFactory("ubikit-http-" + key));
+			newExecutor.allowCoreThreadTimeOut(true);
+
+			executor = destinations.putIfAbsent(key, newExecutor);
+			if (executor == null)
+			{
+				executor = newExecutor;
+				if (closed)
+				{
+					executor.shutdown();
+				}
+			}
+		}
+
+		return executor;
+	}
+
+
+
+
+
+
+	private static String getDestinationKey(URL url)
+	{
+		int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+		return url.getHost() + ":" + port;
+	}
+
+
+
+
+
+
+	/**
+	 * Read a response body to its end and close it, which hands the connection back to the
+	 * keep-alive cache.
+	 */
+	private static void drain(InputStream input) throws IOException
+	{
+		if (input == null)
+		{
+			return;
+		}
+
+		try
+		{
+			byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+			while (input.read(buffer) != -1)
+			{
+				// Discarded.
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+}
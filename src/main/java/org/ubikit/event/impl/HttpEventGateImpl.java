@@ -45,16 +45,18 @@
 
 package org.ubikit.event.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -65,9 +67,13 @@ import org.osgi.service.http.HttpService;
 import org.osgi.service.http.NamespaceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
 import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventCodec;
+import org.ubikit.event.EventGateOptions;
 import org.ubikit.event.EventInstanciator;
 import org.ubikit.event.HttpEventGate;
+import org.ubikit.event.StreamingEventInstanciator;
 import org.ubikit.system.impl.Network;
 
 import com.google.gson.Gson;
@@ -78,6 +84,14 @@ public class HttpEventGateImpl extends EventGateImpl implements HttpEventGate
 	private final EventInstanciator eventInstanciator;
 	private final Gson gson = new Gson();
 	private final HttpService httpService;
+	private final HttpEventClient client;
+	private final HttpEventBatcher batcher;
+	private final EventCodec codec; // null if events are only sent as JSON.
+	private final String codecContentType; // null if codec is null.
+	private final String acceptedMediaTypes;
+	private final HttpBodyReader bodyReader;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	
 	final Logger logger = LoggerFactory.getLogger(HttpEventGateImpl.class);
 	
@@ -88,25 +102,68 @@ public class HttpEventGateImpl extends EventGateImpl implements HttpEventGate
 		@Override
 		protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException 
 		{
+			resp.setHeader(HttpEventClient.ACCEPT_POST, acceptedMediaTypes);
+			
+			String contentType = req.getContentType();
+			if(contentType != null && contentType.startsWith(HttpEventGate.eventBatchMediaType))
+			{
+				doPostBatch(req, resp);
+				return;
+			}
+			
+			String mediaType = (contentType != null) ? contentType.split(";", 2)[0].trim() : "";
+			if(codec != null && mediaType.equalsIgnoreCase(codec.getMediaType()))
+			{
+				doPostEncoded(req, resp);
+				return;
+			}
+			else if(mediaType.indexOf('+') >= 0) // Class names do not contain '+': not a JSON event.
+			{
+				sendError(resp, HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Unsupported media type");
+				return;
+			}
+			
 			String eventClassName = req.getContentType().replace("application/vnd.", "").replace(";charset=utf-8", "");
 			
-			StringBuffer sb = new StringBuffer();
-			String line = null;
-			try {
-				BufferedReader reader = req.getReader();
-				while ((line = reader.readLine()) != null) {
-					logger.debug(line);
-					sb.append(line);
+			HttpBodyReader.BoundedInputStream input = bodyReader.bound(req.getInputStream());
+			AbstractEvent event;
+			try
+			{
+				bodyReader.checkLength(req.getContentLength());
+				if(eventInstanciator instanceof StreamingEventInstanciator)
+				{
+					Reader reader = new InputStreamReader(input, getCharset(req));
+					event = ((StreamingEventInstanciator)eventInstanciator).instanciateEvent(eventClassName, reader);
 				}
-			} 
+				else
+				{
+					HttpBodyReader.Body body = bodyReader.read(input, req.getContentLength());
+					try
+					{
+						event = eventInstanciator.instanciateEvent(eventClassName, body.toString(getCharset(req)));
+					}
+					finally
+					{
+						body.release();
+					}
+				}
+			}
+			catch (HttpBodyReader.TooLargeException e)
+			{
+				sendError(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Event data too large");
+				return;
+			}
 			catch (IOException e) 
 			{
 				sendError(resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot get event data");
 				return;
 			}
 			
-			AbstractEvent event = eventInstanciator.instanciateEvent(eventClassName, sb.toString());
-			if(event != null)
+			if(input.isExceeded()) // The instanciator caught the exception.
+			{
+				sendError(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Event data too large");
+			}
+			else if(event != null)
 			{
 				logger.info("Incoming message from {}: {}",event.getSenderNetworkAddress(), eventClassName);
 				HttpEventGateImpl.this.postLocalEvent(event);
@@ -117,6 +174,140 @@ public class HttpEventGateImpl extends EventGateImpl implements HttpEventGate
 			}
 		}
 		
+		/**
+		 * Decode an event with the codec of the gate and post it locally. The sender network
+		 * address is given by the sender parameter of the content type.
+		 */
+		private void doPostEncoded(HttpServletRequest req, HttpServletResponse resp) throws IOException
+		{
+			HttpBodyReader.Body body;
+			try
+			{
+				body = bodyReader.read(req.getInputStream(), req.getContentLength());
+			}
+			catch (HttpBodyReader.TooLargeException e)
+			{
+				sendError(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Event data too large");
+				return;
+			}
+			catch (IOException e)
+			{
+				sendError(resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot get event data");
+				return;
+			}
+			
+			AbstractEvent event;
+			try
+			{
+				event = codec.decode(body.getData(), 0, body.getLength());
+			}
+			catch (IOException e)
+			{
+				logger.warn("{}: The received event cannot be decoded: {}", getName(), e.getMessage());
+				sendError(resp, HttpServletResponse.SC_BAD_REQUEST, "Malformed event");
+				return;
+			}
+			catch (RuntimeException e) // A codec that does not check its data, or a failing event constructor.
+			{
+				logger.warn("{}: The received event cannot be decoded: {}", getName(), e.toString());
+				sendError(resp, HttpServletResponse.SC_BAD_REQUEST, "Malformed event");
+				return;
+			}
+			finally
+			{
+				body.release();
+			}
+			
+			if(event == null)
+			{
+				logger.warn("{}: The received event cannot be decoded.", getName());
+				sendError(resp, HttpServletResponse.SC_BAD_REQUEST, "Malformed event");
+				return;
+			}
+			
+			((AbstractEventImpl)event).setSenderNetworkAddress(getSender(req.getContentType()));
+			logger.info("Incoming message from {}: {}",event.getSenderNetworkAddress(), event.getClass().getName());
+			HttpEventGateImpl.this.postLocalEvent(event);
+		}
+		
+		/**
+		 * Decode a JSON array of events and post them locally as a single batch. Events that
+		 * cannot be instanciated are skipped. The array is read as a stream: see EventBatchReader.
+		 */
+		private void doPostBatch(HttpServletRequest req, HttpServletResponse resp) throws IOException
+		{
+			HttpBodyReader.BoundedInputStream input = bodyReader.bound(req.getInputStream());
+			List<AbstractEvent> events = new ArrayList<AbstractEvent>();
+			int skipped;
+			try
+			{
+				bodyReader.checkLength(req.getContentLength());
+				Reader reader = new InputStreamReader(input, getCharset(req));
+				skipped = new EventBatchReader(reader).readEvents(eventInstanciator, events);
+			}
+			catch (HttpBodyReader.TooLargeException e)
+			{
+				sendError(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Event batch too large");
+				return;
+			}
+			catch (EventBatchReader.MalformedBatchException e)
+			{
+				logger.warn("{}: The received event batch is malformed: {}", getName(), e.getMessage());
+				sendError(resp, HttpServletResponse.SC_BAD_REQUEST, "Malformed event batch");
+				return;
+			}
+			catch (IOException e)
+			{
+				sendError(resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot get event batch data");
+				return;
+			}
+			catch (RuntimeException e) // Thrown by an instanciator on malformed event data.
+			{
+				if(input.isExceeded())
+				{
+					sendError(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Event batch too large");
+				}
+				else
+				{
+					sendError(resp, HttpServletResponse.SC_BAD_REQUEST, "Malformed event batch");
+				}
+				return;
+			}
+			
+			if(input.isExceeded()) // An instanciator caught the exception.
+			{
+				sendError(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Event batch too large");
+				return;
+			}
+			
+			if(skipped > 0)
+			{
+				logger.warn("{}: {} events of a received batch cannot be instanciated", getName(), skipped);
+			}
+			
+			if(!events.isEmpty())
+			{
+				logger.info("Incoming batch of {} events from {}", events.size(), events.get(0).getSenderNetworkAddress());
+				HttpEventGateImpl.this.postLocalEvents(events);
+			}
+		}
+		
+		/**
+		 * @return the charset of the request body, UTF-8 if it is not given or not supported.
+		 */
+		private Charset getCharset(HttpServletRequest req)
+		{
+			String encoding = req.getCharacterEncoding();
+			try
+			{
+				return (encoding != null) ? Charset.forName(encoding) : UTF8;
+			}
+			catch (IllegalArgumentException e) // IllegalCharsetNameException, UnsupportedCharsetException.
+			{
+				return UTF8;
+			}
+		}
+		
 		private void sendError(HttpServletResponse resp, int statusCode, String message) throws IOException
 		{
 			resp.setStatus(statusCode);
@@ -127,7 +318,16 @@ public class HttpEventGateImpl extends EventGateImpl implements HttpEventGate
 	
 	public HttpEventGateImpl(HttpService httpService, EventInstanciator eventInstanciator, String name, Mode mode) throws NamespaceException
 	{
-		super(name);
+		this(httpService, eventInstanciator, name, mode, new EventGateOptions());
+	}
+	
+	/**
+	 * @param options settings of the gate, including the timeouts and the concurrency of the
+	 * requests it sends to distant gates.
+	 */
+	public HttpEventGateImpl(HttpService httpService, EventInstanciator eventInstanciator, String name, Mode mode, EventGateOptions options) throws NamespaceException
+	{
+		super(name, options);
 		
 		if(httpService == null) throw new IllegalArgumentException("httpService cannot be null.");
 		if(eventInstanciator == null) throw new IllegalArgumentException("eventInstanciator cannot be null.");
@@ -136,6 +336,11 @@ public class HttpEventGateImpl extends EventGateImpl implements HttpEventGate
 		
 		this.eventInstanciator = eventInstanciator;
 		this.httpService = httpService;
+		this.client = new HttpEventClient(name, options);
+		this.batcher = new HttpEventBatcher(name, client, options);
+		this.codec = options.getHttpEventCodec();
+		this.bodyReader = new HttpBodyReader(options.getHttpMaxBodySize());
+		this.acceptedMediaTypes = (codec != null) ? codec.getMediaType()+", "+HttpEventGate.eventBatchMediaType : HttpEventGate.eventBatchMediaType;
 		
 		String hostName = null;
 		switch(mode)
@@ -167,6 +372,7 @@ public class HttpEventGateImpl extends EventGateImpl implements HttpEventGate
 		hostName += ":"+Network.getHttpPort();
 		
 		this.hostName = hostName;
+		this.codecContentType = (codec != null) ? codec.getMediaType()+";sender=\""+hostName+"\"" : null;
 		
 		try 
 		{
@@ -181,48 +387,161 @@ public class HttpEventGateImpl extends EventGateImpl implements HttpEventGate
 	public void terminate()
 	{
 		httpService.unregister(HttpEventGate.eventGateBaseURL+getName());
+		batcher.flush();
+		client.close();
 	}
 	
 	@Override
 	public int postHttpEvent(URL eventGateURL, AbstractEvent event) throws IOException 
 	{
-		HttpURLConnection connection = null;
-		((AbstractEventImpl)event).setSenderNetworkAddress(hostName);
-		
-		try
+		int code;
+		if(isEncodable(eventGateURL, event))
 		{
-			connection = (HttpURLConnection) eventGateURL.openConnection();
-			connection.setRequestMethod("POST");
-			connection.setRequestProperty("Content-Type", "application/vnd."+event.getClass().getName()+";charset=utf-8");
-			connection.setDoOutput(true);
-			connection.setUseCaches(false);
-			
-			OutputStream output = null;
-			try 
+			code = client.post(eventGateURL, codecContentType, codec.encode(event));
+			if(code == HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE)
 			{
-				output = connection.getOutputStream();
-				output.write(gson.toJson(event).getBytes("UTF-8"));
-			} 
-			finally 
-			{
-				if (output != null) 
-					try { output.close(); } catch (IOException e) {}
+				logger.info("{}: {} no longer accepts {}, falling back to JSON.", getName(), eventGateURL, codec.getMediaType());
+				code = client.post(eventGateURL, getContentType(event), serialize(event));
 			}
-			
-			// Get response code.
-			int code = connection.getResponseCode();
-			
-			if (code != 200) 
-			{
-				logger.warn("{}: The distant event gate answered with a {} response code.", getName(), code);
-			}
-			
-			return code;
 		}
-		finally
+		else
 		{
-			if (connection != null)
-				connection.disconnect();
+			code = client.post(eventGateURL, getContentType(event), serialize(event));
 		}
+		
+		if (code != 200) 
+		{
+			logger.warn("{}: The distant event gate answered with a {} response code.", getName(), code);
+		}
+		
+		return code;
+	}
+	
+	@Override
+	public Future<Integer> postHttpEventAsync(URL eventGateURL, AbstractEvent event)
+	{
+		return postHttpEventAsync(eventGateURL, event, null);
+	}
+	
+	@Override
+	public Future<Integer> postHttpEventAsync(URL eventGateURL, AbstractEvent event, ResponseListener listener)
+	{
+		if(isEncodable(eventGateURL, event))
+		{
+			// Serialized at once as well, in case the distant gate no longer accepts the codec.
+			return client.postAsync(eventGateURL, codecContentType, codec.encode(event), getContentType(event), serialize(event), listener);
+		}
+		
+		return client.postAsync(eventGateURL, getContentType(event), serialize(event), listener);
+	}
+	
+	@Override
+	public int postHttpEvents(URL eventGateURL, List<AbstractEvent> events) throws IOException
+	{
+		if(events.isEmpty()) throw new IllegalArgumentException("events cannot be empty.");
+		
+		if(!isBatchable(eventGateURL))
+		{
+			return postOneByOne(eventGateURL, events);
+		}
+		
+		StringBuilder body = new StringBuilder("[");
+		for(AbstractEvent event : events)
+		{
+			HttpEventBatcher.appendEvent(body, body.length() == 1, event.getClass().getName(), toJson(event));
+		}
+		body.append(']');
+		
+		int code = client.post(eventGateURL, HttpEventBatcher.getContentType(), body.toString().getBytes(UTF8));
+		if(code == HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE)
+		{
+			logger.info("{}: {} no longer accepts event batches, posting {} events one by one.", getName(), eventGateURL, events.size());
+			return postOneByOne(eventGateURL, events);
+		}
+		if (code != 200) 
+		{
+			logger.warn("{}: The distant event gate answered with a {} response code.", getName(), code);
+		}
+		
+		return code;
+	}
+	
+	/**
+	 * Post events one by one, stopping at the first failure to keep them in order.
+	 * @return the response code of the last request.
+	 */
+	private int postOneByOne(URL eventGateURL, List<AbstractEvent> events) throws IOException
+	{
+		int code = 200;
+		for(AbstractEvent event : events)
+		{
+			code = postHttpEvent(eventGateURL, event);
+			if(code != 200) break;
+		}
+		return code;
+	}
+	
+	@Override
+	public Future<Integer> postBatchedHttpEvent(URL eventGateURL, AbstractEvent event)
+	{
+		if(!isBatchable(eventGateURL))
+		{
+			return postHttpEventAsync(eventGateURL, event);
+		}
+		return batcher.add(eventGateURL, event.getClass().getName(), toJson(event));
+	}
+	
+	/**
+	 * @return true if the event is to be sent with the codec of the gate, that is if the distant
+	 * gate accepts the media type of the codec and if the codec can encode the event.
+	 */
+	private boolean isEncodable(URL eventGateURL, AbstractEvent event)
+	{
+		return codec != null && client.accepts(eventGateURL, codec.getMediaType()) && codec.canEncode(event);
+	}
+	
+	/**
+	 * @return true if events are to be sent to the distant gate in batches, that is if it
+	 * advertised the batch media type. Until a response is received from it, it is deemed not to.
+	 */
+	private boolean isBatchable(URL eventGateURL)
+	{
+		return client.accepts(eventGateURL, HttpEventGate.eventBatchMediaType);
+	}
+	
+	private byte[] serialize(AbstractEvent event)
+	{
+		return toJson(event).getBytes(UTF8);
+	}
+	
+	private String toJson(AbstractEvent event)
+	{
+		((AbstractEventImpl)event).setSenderNetworkAddress(hostName);
+		if(event instanceof AbstractPhysicalEnvironmentModelEvent) {
+			// Creates the date field, that peers prior to the timestamp field read.
+			((AbstractPhysicalEnvironmentModelEvent)event).getDate();
+		}
+		return gson.toJson(event);
+	}
+	
+	/**
+	 * @return the value of the sender parameter of a content type, or null if there is none.
+	 */
+	private static String getSender(String contentType)
+	{
+		int start = contentType.indexOf("sender=\"");
+		if(start == -1)
+		{
+			return null;
+		}
+		
+		start += "sender=\"".length();
+		int end = contentType.indexOf('"', start);
+		return (end != -1) ? contentType.substring(start, end) : null;
+	}
+	
+	private static String getContentType(AbstractEvent event)
+	{
+		return HttpEventBatcher.getEventContentType(event.getClass().getName());
 	}
 }
@@ -0,0 +1,505 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.BatchEventListener;
+import org.ubikit.event.EventListener;
+import org.ubikit.event.SubscriptionFilter;
+
+
+
+/**
+ * Immutable set of the listeners of an event gate, indexed by event class.
+ * 
+ * By convention, an event class declares a nested <code>Listener</code> interface and its
+ * <code>deliverTo()</code> method casts the given listener to that interface. For each event
+ * class, a snapshot resolves that interface once and keeps the subset of listeners that actually
+ * implement it. Delivery then only walks matching listeners and never relies on a
+ * ClassCastException to skip the others.
+ * 
+ * When no such interface can be resolved for an event class, all listeners are kept for that
+ * class and the gate falls back to the legacy behavior.
+ * 
+ * Batch listeners are kept apart: they receive every event and are never indexed.
+ * 
+ * Listeners may come with a subscription filter. Filters are checked at delivery time, and the
+ * snapshot derives from them which events the gate as a whole is interested in.
+ * 
+ * A snapshot is never modified: adding or removing a listener builds a new snapshot, that an
+ * event gate publishes atomically. Iterating over a snapshot therefore never requires any lock.
+ * The per event class index is filled lazily, which is safe because computing an entry from an
+ * immutable listener array always gives the same result.
+ */
+final class ListenerSnapshot
+{
+	private static final String LISTENER_INTERFACE_NAME = "Listener";
+	private static final EventListener[] NO_LISTENERS = new EventListener[0];
+	private static final BatchEventListener[] NO_BATCH_LISTENERS = new BatchEventListener[0];
+
+	private final EventListener[] listeners;
+	private final BatchEventListener[] batchListeners;
+	private final ConcurrentMap<Class<?>, Entry> entries;
+	private final Map<EventListener, SubscriptionFilter> filters; // Never modified.
+
+	/**
+	 * Listeners that must receive events of a given class.
+	 */
+	static final class Entry
+	{
+		private final Class<?> listenerType;
+		private final EventListener[] listeners;
+
+
+
+
+
+
+		private Entry(Class<?> listenerType, EventListener[] listeners)
+		{
+			this.listenerType = listenerType;
+			this.listeners = listeners;
+		}
+
+
+
+
+
+
+		/**
+		 * Return true if listeners of this entry were selected according to the Listener
+		 * interface of the event class, false if the legacy 'try everybody' behavior applies.
+		 * 
+		 * @return true if listeners are known to implement the event listener interface.
+		 */
+		boolean isTyped()
+		{
+			return listenerType != null;
+		}
+
+
+
+
+
+
+		EventListener[] getListeners()
+		{
+			return listeners;
+		}
+
+
+
+
+
+
+		private boolean accepts(EventListener listener)
+		{
+			return listenerType == null || listenerType.isInstance(listener);
+		}
+	}
+
+
+
+
+
+
+	private ListenerSnapshot(
+		EventListener[] listeners,
+		BatchEventListener[] batchListeners,
+		ConcurrentMap<Class<?>, Entry> entries,
+		Map<EventListener, SubscriptionFilter> filters)
+	{
+		this.listeners = listeners;
+		this.batchListeners = batchListeners;
+		this.entries = entries;
+		this.filters = filters;
+	}
+
+
+
+
+
+
+	/**
+	 * Build a snapshot that contains no listener. Each gate starts with its own empty snapshot
+	 * since the per event class index is filled lazily.
+	 * 
+	 * @return an empty snapshot.
+	 */
+	static ListenerSnapshot empty()
+	{
+		return new ListenerSnapshot(
+			NO_LISTENERS,
+			NO_BATCH_LISTENERS,
+			new ConcurrentHashMap<Class<?>, Entry>(),
+			Collections.<EventListener, SubscriptionFilter> emptyMap());
+	}
+
+
+
+
+
+
+	int size()
+	{
+		return listeners.length + batchListeners.length;
+	}
+
+
+
+
+
+
+	boolean contains(EventListener listener)
+	{
+		EventListener[] array = (listener instanceof BatchEventListener) ? batchListeners
+			: listeners;
+		for (EventListener l : array)
+		{
+			if (l.equals(listener))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+
+
+
+
+
+	BatchEventListener[] getBatchListeners()
+	{
+		return batchListeners;
+	}
+
+
+
+
+
+
+	boolean hasFilters()
+	{
+		return !filters.isEmpty();
+	}
+
+
+
+
+
+
+	/**
+	 * @return the subscription filter of the given listener, or null if it receives all events.
+	 */
+	SubscriptionFilter getFilter(EventListener listener)
+	{
+		return filters.get(listener);
+	}
+
+
+
+
+
+
+	/**
+	 * Tell if at least one listener may want the given event. A gate without listeners accepts
+	 * all events, since listeners may be added before the event is delivered.
+	 * 
+	 * @param event
+	 *            an incoming event.
+	 * @return false if no listener wants the event.
+	 */
+	boolean accepts(AbstractEvent event)
+	{
+		if (filters.isEmpty() || size() > filters.size())
+		{
+			return true;
+		}
+
+		for (SubscriptionFilter filter : filters.values())
+		{
+			if (filter.accepts(event))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+
+
+
+
+
+	/**
+	 * Return the dispatch entry of an event class. The entry is built the first time an event of
+	 * that class is delivered, then carried over to the snapshots derived from this one.
+	 * 
+	 * @param eventClass
+	 *            the class of the event to deliver.
+	 * @return the dispatch entry for the given event class.
+	 */
+	Entry lookup(Class<? extends AbstractEvent> eventClass)
+	{
+		Entry entry = entries.get(eventClass);
+		if (entry == null)
+		{
+			Class<?> listenerType = resolveListenerType(eventClass);
+			EventListener[] matching = new EventListener[listeners.length];
+			int count = 0;
+			for (EventListener listener : listeners)
+			{
+				if (listenerType == null || listenerType.isInstance(listener))
+				{
+					matching[count++] = listener;
+				}
+			}
+
+			entry = new Entry(listenerType, Arrays.copyOf(matching, count));
+			Entry previous = entries.putIfAbsent(eventClass, entry);
+			if (previous != null)
+			{
+				entry = previous;
+			}
+		}
+
+		return entry;
+	}
+
+
+
+
+
+
+	/**
+	 * Build a snapshot that contains the listeners of this one plus the given listener, appended
+	 * at the end of the delivery order.
+	 * 
+	 * @param listener
+	 *            the listener to add.
+	 * @param filter
+	 *            the subscription filter of the listener, or null if it receives all events.
+	 * @return a new snapshot.
+	 */
+	ListenerSnapshot with(EventListener listener, SubscriptionFilter filter)
+	{
+		Map<EventListener, SubscriptionFilter> newFilters = filters;
+		if (filter != null || filters.containsKey(listener))
+		{
+			newFilters = new HashMap<EventListener, SubscriptionFilter>(filters);
+			if (filter != null)
+			{
+				newFilters.put(listener, filter);
+			}
+			else
+			{
+				newFilters.remove(listener);
+			}
+		}
+
+		if (listener instanceof BatchEventListener)
+		{
+			BatchEventListener[] newBatchListeners = Arrays.copyOf(
+				batchListeners,
+				batchListeners.length + 1);
+			newBatchListeners[batchListeners.length] = (BatchEventListener) listener;
+			return new ListenerSnapshot(listeners, newBatchListeners, entries, newFilters);
+		}
+
+		EventListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+		newListeners[listeners.length] = listener;
+
+		ConcurrentMap<Class<?>, Entry> newEntries = new ConcurrentHashMap<Class<?>, Entry>();
+		for (Map.Entry<Class<?>, Entry> e : entries.entrySet())
+		{
+			Entry entry = e.getValue();
+			if (entry.accepts(listener))
+			{
+				EventListener[] l = Arrays.copyOf(entry.listeners, entry.listeners.length + 1);
+				l[entry.listeners.length] = listener;
+				entry = new Entry(entry.listenerType, l);
+			}
+			newEntries.put(e.getKey(), entry);
+		}
+
+		return new ListenerSnapshot(newListeners, batchListeners, newEntries, newFilters);
+	}
+
+
+
+
+
+
+	/**
+	 * Build a snapshot that contains the listeners of this one minus the first occurrence of the
+	 * given listener.
+	 * 
+	 * @param listener
+	 *            the listener to remove.
+	 * @return a new snapshot, or this snapshot if it does not contain the given listener.
+	 */
+	ListenerSnapshot without(EventListener listener)
+	{
+		if (listener instanceof BatchEventListener)
+		{
+			BatchEventListener[] newBatchListeners = remove(batchListeners, listener);
+			if (newBatchListeners == batchListeners)
+			{
+				return this;
+			}
+			return new ListenerSnapshot(listeners, newBatchListeners, entries, filters).forget(
+				listener);
+		}
+
+		EventListener[] newListeners = remove(listeners, listener);
+		if (newListeners == listeners)
+		{
+			return this;
+		}
+
+		ConcurrentMap<Class<?>, Entry> newEntries = new ConcurrentHashMap<Class<?>, Entry>();
+		for (Map.Entry<Class<?>, Entry> e : entries.entrySet())
+		{
+			Entry entry = e.getValue();
+			EventListener[] l = remove(entry.listeners, listener);
+			if (l != entry.listeners)
+			{
+				entry = new Entry(entry.listenerType, l);
+			}
+			newEntries.put(e.getKey(), entry);
+		}
+
+		return new ListenerSnapshot(newListeners, batchListeners, newEntries, filters)
+			.forget(listener);
+	}
+
+
+
+
+
+
+	/**
+	 * Drop the filter of a listener that is no longer in this snapshot.
+	 */
+	private ListenerSnapshot forget(EventListener listener)
+	{
+		if (!filters.containsKey(listener) || contains(listener))
+		{
+			return this;
+		}
+
+		Map<EventListener, SubscriptionFilter> newFilters = new HashMap<EventListener, SubscriptionFilter>(
+			filters);
+		newFilters.remove(listener);
+		return new ListenerSnapshot(listeners, batchListeners, entries, newFilters);
+	}
+
+
+
+
+
+
+	private static <T extends EventListener> T[] remove(T[] array, EventListener listener)
+	{
+		for (int i = 0; i < array.length; i++)
+		{
+			if (array[i].equals(listener))
+			{
+				T[] res = Arrays.copyOf(array, array.length - 1);
+				System.arraycopy(array, i + 1, res, i, array.length - i - 1);
+				return res;
+			}
+		}
+
+		return array;
+	}
+
+
+
+
+
+
+	/**
+	 * Resolve the listener interface an event class delivers to. The class that declares the
+	 * effective deliverTo() method is looked up for a nested interface named 'Listener' that
+	 * extends EventListener.
+	 * 
+	 * @param eventClass
+	 *            an event class
+	 * @return the listener interface, or null if it cannot be resolved.
+	 */
+	static Class<?> resolveListenerType(Class<? extends AbstractEvent> eventClass)
+	{
+		try
+		{
+			Method deliverTo = eventClass.getMethod("deliverTo", EventListener.class);
+			for (Class<?> nested : deliverTo.getDeclaringClass().getDeclaredClasses())
+			{
+				if (nested.isInterface()
+					&& LISTENER_INTERFACE_NAME.equals(nested.getSimpleName())
+					&& EventListener.class.isAssignableFrom(nested))
+				{
+					return nested;
+				}
+			}
+		}
+		catch (NoSuchMethodException | SecurityException e)
+		{}
+
+		return null;
+	}
+}
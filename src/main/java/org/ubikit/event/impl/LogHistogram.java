@@ -0,0 +1,284 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.ubikit.system.LatencyHistogram;
+
+
+
+/**
+ * Lock-free histogram of durations in microseconds, in the spirit of HdrHistogram. Values below
+ * 16 have their own bucket. Above, each power of two range is split into 8 linear sub-buckets,
+ * which bounds the relative error to 12.5%. Recording a value is a few atomic increments and
+ * never allocates.
+ */
+public final class LogHistogram
+{
+	private static final int LINEAR_BUCKETS = 16;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int FIRST_EXPONENT = 4; // log2(LINEAR_BUCKETS)
+	private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong min;
+	private final AtomicLong max;
+
+
+
+
+
+
+	public LogHistogram()
+	{
+		buckets = new AtomicLongArray(BUCKET_COUNT);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		min = new AtomicLong(Long.MAX_VALUE);
+		max = new AtomicLong();
+	}
+
+
+
+
+
+
+	/**
+	 * Record a duration.
+	 * 
+	 * @param nanos
+	 *            a duration in nanoseconds. Negative durations are recorded as 0.
+	 */
+	public void recordNanos(long nanos)
+	{
+		record((nanos > 0) ? nanos / 1000 : 0);
+	}
+
+
+
+
+
+
+	public void record(long micros)
+	{
+		buckets.incrementAndGet(bucketIndex(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+
+		long current;
+		while (micros > (current = max.get()) && !max.compareAndSet(current, micros))
+		{}
+		while (micros < (current = min.get()) && !min.compareAndSet(current, micros))
+		{}
+	}
+
+
+
+
+
+
+	/**
+	 * Copy the current state of this histogram. Values recorded meanwhile may be partly taken
+	 * into account.
+	 * 
+	 * @return an immutable copy of this histogram.
+	 */
+	public LatencyHistogram snapshot()
+	{
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+
+		long minValue = min.get();
+		return new Snapshot(
+			counts,
+			total,
+			sum.get(),
+			(minValue == Long.MAX_VALUE) ? 0 : minValue,
+			max.get());
+	}
+
+
+
+
+
+
+	private static int bucketIndex(long value)
+	{
+		if (value < LINEAR_BUCKETS)
+		{
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the highest value that falls in the given bucket.
+	 */
+	private static long bucketUpperBound(int index)
+	{
+		if (index < LINEAR_BUCKETS)
+		{
+			return index;
+		}
+
+		int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+		long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+
+	private static final class Snapshot implements LatencyHistogram
+	{
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long min;
+		private final long max;
+
+
+
+
+
+
+		private Snapshot(long[] counts, long count, long sum, long min, long max)
+		{
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+		}
+
+
+
+
+
+
+		@Override
+		public long getCount()
+		{
+			return count;
+		}
+
+
+
+
+
+
+		@Override
+		public long getMinValue()
+		{
+			return min;
+		}
+
+
+
+
+
+
+		@Override
+		public long getMaxValue()
+		{
+			return max;
+		}
+
+
+
+
+
+
+		@Override
+		public double getMean()
+		{
+			return (count == 0) ? 0 : (double) sum / count;
+		}
+
+
+
+
+
+
+		@Override
+		public long getValueAtPercentile(double percentile)
+		{
+			if (count == 0)
+			{
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count);
+			long cumulated = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				cumulated += counts[i];
+				if (cumulated >= rank && cumulated > 0)
+				{
+					return Math.min(bucketUpperBound(i), max);
+				}
+			}
+
+			return max;
+		}
+	}
+}
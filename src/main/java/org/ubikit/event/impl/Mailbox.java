@@ -0,0 +1,415 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ubikit.event.AbstractEvent;
+
+
+
+/**
+ * A bounded queue of events drained by an executor, one drain task at a time. Events of a mailbox
+ * are therefore processed in order, while distinct mailboxes are processed in parallel.
+ * 
+ * A drain task processes at most QUANTUM events, then gives the executor thread back and
+ * reschedules itself if events are still waiting. A busy mailbox cannot starve the others.
+ * 
+ * A mailbox retains the recyclable events it holds, and releases them once processed or
+ * discarded. It counts the events it hands to its listeners as delivered by its gate, and records
+ * their delivery lag.
+ */
+abstract class Mailbox implements Runnable
+{
+	private static final int QUANTUM = 32;
+
+	private final BlockingQueue<Entry> entries;
+	private volatile Executor executor;
+	private final EventGateMetrics metrics;
+	private final AtomicBoolean scheduled;
+	private final AtomicLong droppedEvents;
+	private final List<Entry> chunk;
+	private final List<AbstractEvent> chunkEvents;
+
+	private volatile boolean closed;
+
+	/**
+	 * An event held by mailboxes, along with the time its gate accepted it. Mailboxes the same
+	 * event is offered to share its entry: the event is counted as delivered once, by the first
+	 * mailbox that hands it over.
+	 */
+	static final class Entry
+	{
+		private static final AtomicIntegerFieldUpdater<Entry> CLAIMED =
+			AtomicIntegerFieldUpdater.newUpdater(Entry.class, "claimed");
+
+		private final AbstractEvent event;
+		private final long acceptedTime;
+		private volatile int claimed; // 1 once counted as delivered.
+
+
+
+
+
+
+		/**
+		 * @param acceptedTime
+		 *            the System.nanoTime() at which the gate accepted the event.
+		 */
+		Entry(AbstractEvent event, long acceptedTime)
+		{
+			this.event = event;
+			this.acceptedTime = acceptedTime;
+			this.claimed = 0;
+		}
+
+
+
+
+
+
+		/**
+		 * @return an entry of an event the gate already counted as delivered.
+		 */
+		static Entry delivered(AbstractEvent event)
+		{
+			Entry entry = new Entry(event, 0);
+			entry.claimed = 1;
+			return entry;
+		}
+
+
+
+
+
+
+		AbstractEvent getEvent()
+		{
+			return event;
+		}
+
+
+
+
+
+
+		/**
+		 * @return true if the caller is the first to hand the event over.
+		 */
+		private boolean claim()
+		{
+			return claimed == 0 && CLAIMED.compareAndSet(this, 0, 1);
+		}
+	}
+
+
+
+
+
+
+	Mailbox(int capacity, Executor executor, EventGateMetrics metrics)
+	{
+		this.entries = new ArrayBlockingQueue<Entry>(capacity);
+		this.executor = executor;
+		this.metrics = metrics;
+		this.scheduled = new AtomicBoolean(false);
+		this.droppedEvents = new AtomicLong();
+		this.chunk = new ArrayList<Entry>(QUANTUM);
+		this.chunkEvents = new ArrayList<AbstractEvent>(QUANTUM);
+		this.closed = false;
+	}
+
+
+
+
+
+
+	/**
+	 * Enqueue an event without waiting.
+	 * 
+	 * @param entry
+	 *            the entry of the event to enqueue.
+	 * @return true if the event was enqueued, false if the mailbox is full or closed.
+	 */
+	boolean offer(Entry entry)
+	{
+		EventReferences.retain(entry.event);
+		if (closed || !entries.offer(entry))
+		{
+			EventReferences.release(entry.event);
+			droppedEvents.incrementAndGet();
+			return false;
+		}
+
+		schedule();
+		return true;
+	}
+
+
+
+
+
+
+	/**
+	 * Enqueue an event, waiting for room if the mailbox is full.
+	 * 
+	 * @param entry
+	 *            the entry of the event to enqueue.
+	 * @param timeoutNanos
+	 *            how long to wait for room, in nanoseconds.
+	 * @return true if the event was enqueued, false if the timeout expired or if the mailbox is
+	 *         closed.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	boolean offer(Entry entry, long timeoutNanos) throws InterruptedException
+	{
+		if (closed)
+		{
+			droppedEvents.incrementAndGet();
+			return false;
+		}
+
+		EventReferences.retain(entry.event);
+		boolean enqueued = false;
+		try
+		{
+			enqueued = entries.offer(entry, timeoutNanos, TimeUnit.NANOSECONDS);
+		}
+		finally
+		{
+			if (!enqueued)
+			{
+				EventReferences.release(entry.event);
+				droppedEvents.incrementAndGet();
+			}
+		}
+
+		if (enqueued)
+		{
+			schedule();
+		}
+		return enqueued;
+	}
+
+
+
+
+
+
+	/**
+	 * Have the next drain tasks run by another executor. Events stay in order, since drain tasks
+	 * never overlap.
+	 * 
+	 * @param executor
+	 *            the new executor of this mailbox.
+	 */
+	void moveTo(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+
+
+
+
+
+	int depth()
+	{
+		return entries.size();
+	}
+
+
+
+
+
+
+	long getDroppedEventCount()
+	{
+		return droppedEvents.get();
+	}
+
+
+
+
+
+
+	/**
+	 * Discard waiting events. They are counted as dropped.
+	 */
+	void discard()
+	{
+		List<Entry> discarded = new ArrayList<Entry>();
+		entries.drainTo(discarded);
+		droppedEvents.addAndGet(discarded.size());
+		for (Entry entry : discarded)
+		{
+			EventReferences.release(entry.event);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Discard waiting events and refuse new ones.
+	 */
+	void close()
+	{
+		closed = true;
+		discard();
+	}
+
+
+
+
+
+
+	@Override
+	public void run()
+	{
+		drainChunk();
+		if (!entries.isEmpty())
+		{
+			schedule();
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Process a chunk of events, in mailbox order. This method is never called concurrently for a
+	 * given mailbox.
+	 * 
+	 * @param events
+	 *            the events to process. The list is only valid during the call.
+	 */
+	abstract void process(List<AbstractEvent> events);
+
+
+
+
+
+
+	private void schedule()
+	{
+		while (scheduled.compareAndSet(false, true))
+		{
+			try
+			{
+				executor.execute(this);
+				return;
+			}
+			catch (RejectedExecutionException e)
+			{
+				// The executor is saturated or shut down: drain on the caller rather than losing
+				// events. The mailbox is still scheduled, so no other drain runs meanwhile.
+				drainChunk();
+				if (entries.isEmpty())
+				{
+					return;
+				}
+			}
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Process up to QUANTUM waiting events, then let the mailbox be scheduled again. Events
+	 * handed over for the first time are counted as delivered once processed.
+	 */
+	private void drainChunk()
+	{
+		try
+		{
+			entries.drainTo(chunk, QUANTUM);
+			if (!closed && !chunk.isEmpty())
+			{
+				long now = System.nanoTime();
+				int delivered = 0;
+				for (Entry entry : chunk)
+				{
+					chunkEvents.add(entry.event);
+					if (entry.claim())
+					{
+						metrics.deliveryLag(now - entry.acceptedTime);
+						delivered++;
+					}
+				}
+				process(chunkEvents);
+				metrics.deliveredEvents(delivered);
+			}
+		}
+		finally
+		{
+			for (Entry entry : chunk)
+			{
+				EventReferences.release(entry.event);
+			}
+			chunk.clear();
+			chunkEvents.clear();
+			scheduled.set(false);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.stream;
+
+/**
+ * Common aggregators.
+ */
+public final class Aggregators
+{
+	/**
+	 * Mutable accumulator of the summary aggregator.
+	 */
+	private static final class SummaryAccumulator
+	{
+		private long count;
+		private double sum;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+	}
+
+
+
+
+
+
+	private Aggregators()
+	{}
+
+
+
+
+
+
+	/**
+	 * @return an aggregator that counts values.
+	 */
+	public static <T> Aggregator<T, long[], Long> count()
+	{
+		return new Aggregator<T, long[], Long>()
+		{
+			@Override
+			public long[] create()
+			{
+				return new long[1];
+			}
+
+
+
+			@Override
+			public long[] add(long[] accumulator, T value)
+			{
+				accumulator[0]++;
+				return accumulator;
+			}
+
+
+
+			@Override
+			public long[] merge(long[] accumulator, long[] other)
+			{
+				accumulator[0] += other[0];
+				return accumulator;
+			}
+
+
+
+			@Override
+			public Long result(long[] accumulator)
+			{
+				return accumulator[0];
+			}
+		};
+	}
+
+
+
+
+
+
+	/**
+	 * Return an aggregator that computes summary statistics, such as the mean, of a numeric
+	 * property of values. Values for which the property is null are ignored.
+	 * 
+	 * @param property
+	 *            the function that extracts the property from values.
+	 * @return a summary aggregator.
+	 * @throws IllegalArgumentException
+	 *             if property is null.
+	 */
+	public static <T> Aggregator<T, ?, Summary> summary(
+		final StreamFunction<? super T, ? extends Number> property)
+	{
+		if (property == null) throw new IllegalArgumentException("property cannot be null.");
+
+		return new Aggregator<T, SummaryAccumulator, Summary>()
+		{
+			@Override
+			public SummaryAccumulator create()
+			{
+				return new SummaryAccumulator();
+			}
+
+
+
+			@Override
+			public SummaryAccumulator add(SummaryAccumulator accumulator, T value)
+			{
+				Number number = property.apply(value);
+				if (number != null)
+				{
+					double v = number.doubleValue();
+					accumulator.count++;
+					accumulator.sum += v;
+					accumulator.min = Math.min(accumulator.min, v);
+					accumulator.max = Math.max(accumulator.max, v);
+				}
+				return accumulator;
+			}
+
+
+
+			@Override
+			public SummaryAccumulator merge(SummaryAccumulator accumulator, SummaryAccumulator other)
+			{
+				accumulator.count += other.count;
+				accumulator.sum += other.sum;
+				accumulator.min = Math.min(accumulator.min, other.min);
+				accumulator.max = Math.max(accumulator.max, other.max);
+				return accumulator;
+			}
+
+
+
+			@Override
+			public Summary result(SummaryAccumulator accumulator)
+			{
+				return new Summary(
+					accumulator.count,
+					accumulator.sum,
+					accumulator.min,
+					accumulator.max);
+			}
+		};
+	}
+}
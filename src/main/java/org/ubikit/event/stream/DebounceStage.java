@@ -0,0 +1,189 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.stream;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.ubikit.event.RecyclableEvent;
+
+
+
+/**
+ * Debounce operator. Pending values are kept per key in the order of their last update, which
+ * is also the order of their deadlines, so that a single timer is needed: it expires at the
+ * earliest deadline.
+ * 
+ * @param <T>
+ *            the type of values.
+ */
+final class DebounceStage<T> implements StreamListener<T>, TimedStage
+{
+	/**
+	 * Last value of a key and the time it can be emitted at.
+	 */
+	private static final class Pending<T>
+	{
+		private final T value;
+		private final long deadline;
+
+		private Pending(T value, long deadline)
+		{
+			this.value = value;
+			this.deadline = deadline;
+		}
+	}
+
+	private final EventStream<T> input;
+	private final EventStream<T> output;
+	private final long quietPeriod;
+	private final Map<Object, Pending<T>> pending;
+	private boolean scheduled;
+
+
+
+
+
+
+	DebounceStage(EventStream<T> input, EventStream<T> output, long quietPeriod)
+	{
+		this.input = input;
+		this.output = output;
+		this.quietPeriod = quietPeriod;
+		pending = new LinkedHashMap<Object, Pending<T>>();
+		scheduled = false;
+	}
+
+
+
+
+
+
+	@Override
+	public void onNext(T value)
+	{
+		if (value instanceof RecyclableEvent)
+		{
+			((RecyclableEvent) value).retain(); // Kept beyond its delivery.
+		}
+
+		Object key = input.keyOf(value);
+		Pending<T> previous = pending.remove(key);
+		if (previous != null)
+		{
+			release(previous.value);
+		}
+		pending.put(key, new Pending<T>(value, System.currentTimeMillis() + quietPeriod));
+
+		if (!scheduled)
+		{
+			scheduled = true;
+			input.getSource().schedule(this, quietPeriod);
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void onTimer(long now)
+	{
+		scheduled = false;
+		Iterator<Pending<T>> it = pending.values().iterator();
+		while (it.hasNext())
+		{
+			Pending<T> next = it.next();
+			if (next.deadline > now)
+			{
+				scheduled = true;
+				input.getSource().schedule(this, next.deadline - now);
+				return;
+			}
+
+			it.remove();
+			try
+			{
+				output.emit(next.value);
+			}
+			finally
+			{
+				release(next.value);
+			}
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void discard()
+	{
+		for (Pending<T> next : pending.values())
+		{
+			release(next.value);
+		}
+		pending.clear();
+		scheduled = false;
+	}
+
+
+
+
+
+
+	private static void release(Object value)
+	{
+		if (value instanceof RecyclableEvent)
+		{
+			((RecyclableEvent) value).release();
+		}
+	}
+}
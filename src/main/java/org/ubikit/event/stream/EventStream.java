@@ -0,0 +1,546 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.stream;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventGate;
+import org.ubikit.event.RecyclableEvent;
+
+
+
+/**
+ * Composable operators over the events of a class received by an event gate. Operators are
+ * chained from a stream created by from(), each returning a new stream:
+ * 
+ * <pre>
+ * EventStream.from(gate, TemperatureEvent.class)
+ * 	.debounce(2, TimeUnit.SECONDS)
+ * 	.slidingWindow(10, 1, TimeUnit.MINUTES, Aggregators.summary(temperature))
+ * 	.subscribe(listener);
+ * </pre>
+ * 
+ * Operators run incrementally on the delivery thread of the gate, as events are delivered. Time
+ * based operators share a single timer service: their timers expire as local events posted to
+ * the gate, so that they also run on its delivery thread. Time is the time of delivery, not the
+ * timestamp of events.
+ * 
+ * Per key operators (debounce, throttle, distinctUntilChanged and windows) keep a state for each
+ * key of the stream. By default, the key of an event is the UID of its source item, and the key
+ * of a window result is the key it was computed for. keyBy() sets another key.
+ * 
+ * The stream listens to the gate until close() is called on any of its streams. Recyclable
+ * events are only valid during the onNext() call of stream listeners, unless they retain them.
+ * 
+ * @param <T>
+ *            the type of values of this stream.
+ */
+public final class EventStream<T>
+{
+	private final StreamSource<?> source;
+	private final StreamFunction<? super T, ?> keySelector; // null means the default key.
+	private final Class<?> valueClass; // a superclass of all values, or null if unknown.
+	private final List<StreamListener<? super T>> listeners;
+
+
+
+
+
+
+	EventStream(
+		StreamSource<?> source,
+		StreamFunction<? super T, ?> keySelector,
+		Class<?> valueClass)
+	{
+		this.source = source;
+		this.keySelector = keySelector;
+		this.valueClass = valueClass;
+		listeners = new CopyOnWriteArrayList<StreamListener<? super T>>();
+	}
+
+
+
+
+
+
+	/**
+	 * Create a stream of the events of a class, and subclasses, that a gate receives. The
+	 * stream listens to the gate at once.
+	 * 
+	 * @param gate
+	 *            the gate.
+	 * @param eventClass
+	 *            the class of events.
+	 * @return a new stream.
+	 * @throws IllegalArgumentException
+	 *             if gate or eventClass is null.
+	 */
+	public static <E extends AbstractEvent> EventStream<E> from(EventGate gate, Class<E> eventClass)
+	{
+		if (gate == null) throw new IllegalArgumentException("gate cannot be null.");
+		if (eventClass == null) throw new IllegalArgumentException("eventClass cannot be null.");
+
+		StreamSource<E> source = new StreamSource<E>(gate, eventClass);
+		source.open();
+		return source.getRoot();
+	}
+
+
+
+
+
+
+	/**
+	 * Stop listening to the gate. Pending timers of operators are cancelled and their state is
+	 * never emitted. This closes all the streams derived from the same from() call.
+	 */
+	public void close()
+	{
+		source.close();
+	}
+
+
+
+
+
+
+	/**
+	 * @param predicate
+	 *            the condition values must meet.
+	 * @return a stream of the values of this stream that meet the condition.
+	 * @throws IllegalArgumentException
+	 *             if predicate is null.
+	 */
+	public EventStream<T> filter(final StreamPredicate<? super T> predicate)
+	{
+		if (predicate == null) throw new IllegalArgumentException("predicate cannot be null.");
+
+		final EventStream<T> output = new EventStream<T>(source, keySelector, valueClass);
+		listeners.add(new StreamListener<T>()
+		{
+			@Override
+			public void onNext(T value)
+			{
+				if (predicate.accepts(value))
+				{
+					output.emit(value);
+				}
+			}
+		});
+		return output;
+	}
+
+
+
+
+
+
+	/**
+	 * @param function
+	 *            the function to apply to values.
+	 * @return a stream of the non null results of the function applied to the values of this
+	 *         stream. Its key is the default key of results.
+	 * @throws IllegalArgumentException
+	 *             if function is null.
+	 */
+	public <R> EventStream<R> map(final StreamFunction<? super T, ? extends R> function)
+	{
+		if (function == null) throw new IllegalArgumentException("function cannot be null.");
+
+		final EventStream<R> output = new EventStream<R>(source, null, null);
+		listeners.add(new StreamListener<T>()
+		{
+			@Override
+			public void onNext(T value)
+			{
+				R result = function.apply(value);
+				if (result != null)
+				{
+					output.emit(result);
+				}
+			}
+		});
+		return output;
+	}
+
+
+
+
+
+
+	/**
+	 * @param keySelector
+	 *            the function that gives the key of values.
+	 * @return a stream of the values of this stream, whose per key operators use the given key.
+	 * @throws IllegalArgumentException
+	 *             if keySelector is null.
+	 */
+	public EventStream<T> keyBy(StreamFunction<? super T, ?> keySelector)
+	{
+		if (keySelector == null) throw new IllegalArgumentException("keySelector cannot be null.");
+
+		return forward(new EventStream<T>(source, keySelector, valueClass));
+	}
+
+
+
+
+
+
+	/**
+	 * Debounce values per key: a value is emitted once no other value of the same key came for
+	 * the given quiet period. Only the last value of a burst is emitted.
+	 * 
+	 * @param quietPeriod
+	 *            the quiet period.
+	 * @param unit
+	 *            the unit of quietPeriod.
+	 * @return a stream of debounced values.
+	 * @throws IllegalArgumentException
+	 *             if quietPeriod is not positive or if unit is null.
+	 */
+	public EventStream<T> debounce(long quietPeriod, TimeUnit unit)
+	{
+		long millis = toMillis(quietPeriod, unit, "quietPeriod");
+		EventStream<T> output = new EventStream<T>(source, keySelector, valueClass);
+		listeners.add(new DebounceStage<T>(this, output, millis));
+		return output;
+	}
+
+
+
+
+
+
+	/**
+	 * Throttle values per key: a value is emitted if no other value of the same key was emitted
+	 * for the given period. Other values are dropped.
+	 * 
+	 * @param period
+	 *            the minimum period between two values of a key.
+	 * @param unit
+	 *            the unit of period.
+	 * @return a stream of throttled values.
+	 * @throws IllegalArgumentException
+	 *             if period is not positive or if unit is null.
+	 */
+	public EventStream<T> throttle(long period, TimeUnit unit)
+	{
+		long millis = toMillis(period, unit, "period");
+		EventStream<T> output = new EventStream<T>(source, keySelector, valueClass);
+		listeners.add(new ThrottleStage<T>(this, output, millis));
+		return output;
+	}
+
+
+
+
+
+
+	/**
+	 * @return a stream of the values of this stream that are not equal to the previous value of
+	 *         the same key.
+	 * @throws IllegalArgumentException
+	 *             if values of this stream may be recyclable events.
+	 */
+	public EventStream<T> distinctUntilChanged()
+	{
+		return distinctUntilChanged(null);
+	}
+
+
+
+
+
+
+	/**
+	 * Recyclable events are reused once released, so they cannot be compared with the previous
+	 * value themselves: a stream whose values may be recyclable events needs a property. When
+	 * the class of values is unknown, as after map(), a recyclable value without a property is
+	 * rejected when it flows through the returned stream, with an IllegalStateException.
+	 * 
+	 * @param property
+	 *            the function that extracts the compared property from values, or null to
+	 *            compare values themselves.
+	 * @return a stream of the values of this stream whose property is not equal to the one of
+	 *         the previous value of the same key.
+	 * @throws IllegalArgumentException
+	 *             if property is null and values of this stream may be recyclable events.
+	 */
+	public EventStream<T> distinctUntilChanged(StreamFunction<? super T, ?> property)
+	{
+		if (property == null && mayCarryRecyclableEvents()) throw new IllegalArgumentException(
+			"property cannot be null for a stream that may carry recyclable events.");
+
+		EventStream<T> output = new EventStream<T>(source, keySelector, valueClass);
+		listeners.add(new DistinctStage<T>(this, output, property));
+		return output;
+	}
+
+
+
+
+
+
+	/**
+	 * Aggregate values per key over consecutive, non overlapping, time windows. Windows are
+	 * aligned on multiples of their size since the epoch. The result of a window is emitted when
+	 * it ends, if it received values.
+	 * 
+	 * @param size
+	 *            the duration of windows.
+	 * @param unit
+	 *            the unit of size.
+	 * @param aggregator
+	 *            the aggregation to compute.
+	 * @return a stream of window results.
+	 * @throws IllegalArgumentException
+	 *             if size is not positive or if unit or aggregator is null.
+	 */
+	public <A, R> EventStream<WindowResult<R>> tumblingWindow(
+		long size,
+		TimeUnit unit,
+		Aggregator<? super T, A, R> aggregator)
+	{
+		return slidingWindow(size, size, unit, aggregator);
+	}
+
+
+
+
+
+
+	/**
+	 * Aggregate values per key over overlapping time windows that end every slide period. Each
+	 * window is made of size / slide panes that are aggregated as values come, and merged when
+	 * the window ends. The result of a window is emitted when it ends, if it received values.
+	 * 
+	 * @param size
+	 *            the duration of windows.
+	 * @param slide
+	 *            the period between window ends. size must be a multiple of it.
+	 * @param unit
+	 *            the unit of size and slide.
+	 * @param aggregator
+	 *            the aggregation to compute.
+	 * @return a stream of window results.
+	 * @throws IllegalArgumentException
+	 *             if size or slide is not positive, if size is not a multiple of slide, or if
+	 *             unit or aggregator is null.
+	 */
+	public <A, R> EventStream<WindowResult<R>> slidingWindow(
+		long size,
+		long slide,
+		TimeUnit unit,
+		Aggregator<? super T, A, R> aggregator)
+	{
+		long sizeMillis = toMillis(size, unit, "size");
+		long slideMillis = toMillis(slide, unit, "slide");
+		if (sizeMillis % slideMillis != 0) throw new IllegalArgumentException(
+			"size must be a multiple of slide.");
+		if (aggregator == null) throw new IllegalArgumentException("aggregator cannot be null.");
+
+		EventStream<WindowResult<R>> output = new EventStream<WindowResult<R>>(
+			source,
+			null,
+			WindowResult.class);
+		listeners.add(new WindowStage<T, A, R>(this, output, sizeMillis, slideMillis, aggregator));
+		return output;
+	}
+
+
+
+
+
+
+	/**
+	 * Add a listener to the values of this stream.
+	 * 
+	 * @param listener
+	 *            the listener.
+	 * @return this stream.
+	 * @throws IllegalArgumentException
+	 *             if listener is null.
+	 */
+	public EventStream<T> subscribe(StreamListener<? super T> listener)
+	{
+		if (listener == null) throw new IllegalArgumentException("listener cannot be null.");
+
+		listeners.add(listener);
+		return this;
+	}
+
+
+
+
+
+
+	/**
+	 * Post the values of this stream, which must be events, to the partners of a gate.
+	 * 
+	 * @param gate
+	 *            the gate to post values with.
+	 * @return this stream.
+	 * @throws IllegalArgumentException
+	 *             if gate is null.
+	 */
+	public EventStream<T> postTo(final EventGate gate)
+	{
+		if (gate == null) throw new IllegalArgumentException("gate cannot be null.");
+
+		return subscribe(new StreamListener<T>()
+		{
+			@Override
+			public void onNext(T value)
+			{
+				gate.postEvent((AbstractEvent) value);
+			}
+		});
+	}
+
+
+
+
+
+
+	StreamSource<?> getSource()
+	{
+		return source;
+	}
+
+
+
+
+
+
+	/**
+	 * @return true if the class of values of this stream is known, and if values may be
+	 *         recyclable events.
+	 */
+	private boolean mayCarryRecyclableEvents()
+	{
+		return valueClass != null
+			&& (valueClass.isAssignableFrom(RecyclableEvent.class)
+				|| RecyclableEvent.class.isAssignableFrom(valueClass));
+	}
+
+
+
+
+
+
+	/**
+	 * @return the key of a value for per key operators.
+	 */
+	Object keyOf(T value)
+	{
+		if (keySelector != null)
+		{
+			return keySelector.apply(value);
+		}
+		else if (value instanceof AbstractPhysicalEnvironmentModelEvent)
+		{
+			return ((AbstractPhysicalEnvironmentModelEvent) value).getSourceItemUID();
+		}
+		else if (value instanceof WindowResult)
+		{
+			return ((WindowResult<?>) value).getKey();
+		}
+
+		return null;
+	}
+
+
+
+
+
+
+	/**
+	 * Give a value to the listeners of this stream.
+	 */
+	void emit(T value)
+	{
+		for (StreamListener<? super T> listener : listeners)
+		{
+			listener.onNext(value);
+		}
+	}
+
+
+
+
+
+
+	private EventStream<T> forward(final EventStream<T> output)
+	{
+		listeners.add(new StreamListener<T>()
+		{
+			@Override
+			public void onNext(T value)
+			{
+				output.emit(value);
+			}
+		});
+		return output;
+	}
+
+
+
+
+
+
+	private static long toMillis(long duration, TimeUnit unit, String name)
+	{
+		if (unit == null) throw new IllegalArgumentException("unit cannot be null.");
+		if (duration <= 0) throw new IllegalArgumentException(name + " must be positive.");
+
+		return Math.max(1, unit.toMillis(duration));
+	}
+}
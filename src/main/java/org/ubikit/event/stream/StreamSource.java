@@ -0,0 +1,227 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.stream;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.BatchEventListener;
+import org.ubikit.event.EventGate;
+import org.ubikit.event.SubscriptionFilter;
+
+
+
+/**
+ * Root of a stream: the batch listener that feeds the events of a class received by a gate, and
+ * the expirations of operator timers, to the stream operators. Timers are scheduled local events
+ * of the gate, posted again until they are received so that a tick dropped by a full gate only
+ * delays its operator.
+ * 
+ * Operators are only called with the lock of the source held, so that they never run
+ * concurrently, even with gates that deliver from several threads.
+ * 
+ * @param <E>
+ *            the type of the events of the stream.
+ */
+final class StreamSource<E extends AbstractEvent> implements BatchEventListener
+{
+	private static final long TICK_RETRY_MILLIS = 100;
+
+	private final EventGate gate;
+	private final Class<E> eventClass;
+	private final EventStream<E> root;
+	private final Map<TimedStage, StreamTick> armedTicks; // guarded by this.
+	private final Set<TimedStage> timedStages; // that ever scheduled a timer, guarded by this.
+	private volatile boolean closed;
+
+	final Logger logger = LoggerFactory.getLogger(StreamSource.class);
+
+
+
+
+
+
+	StreamSource(EventGate gate, Class<E> eventClass)
+	{
+		this.gate = gate;
+		this.eventClass = eventClass;
+		root = new EventStream<E>(this, null, eventClass);
+		armedTicks = new HashMap<TimedStage, StreamTick>();
+		timedStages = new HashSet<TimedStage>();
+		closed = false;
+	}
+
+
+
+
+
+
+	EventStream<E> getRoot()
+	{
+		return root;
+	}
+
+
+
+
+
+
+	void open()
+	{
+		gate.addListener(this, new SubscriptionFilter().addEventClass(eventClass).addEventClass(
+			StreamTick.class));
+	}
+
+
+
+
+
+
+	void close()
+	{
+		closed = true;
+		synchronized (this)
+		{
+			for (StreamTick tick : armedTicks.values())
+			{
+				tick.cancel();
+			}
+			armedTicks.clear();
+			for (TimedStage stage : timedStages)
+			{
+				stage.discard();
+			}
+			timedStages.clear();
+		}
+		gate.removeListener(this);
+	}
+
+
+
+
+
+
+	/**
+	 * Schedule the expiration of a timer of a timed operator, replacing its pending timer if any.
+	 * The tick is posted after the delay, then every TICK_RETRY_MILLIS until it is received.
+	 * 
+	 * @param stage
+	 *            the operator.
+	 * @param delay
+	 *            the delay before expiration, in milliseconds.
+	 */
+	synchronized void schedule(TimedStage stage, long delay)
+	{
+		if (closed)
+		{
+			return;
+		}
+
+		timedStages.add(stage);
+		StreamTick tick = new StreamTick(this, stage);
+		tick.setPost(gate.scheduleLocalPeriodic(
+			tick,
+			delay,
+			TICK_RETRY_MILLIS,
+			TimeUnit.MILLISECONDS));
+		StreamTick previous = armedTicks.put(stage, tick);
+		if (previous != null)
+		{
+			previous.cancel();
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public synchronized void onEvents(List<AbstractEvent> events)
+	{
+		for (AbstractEvent event : events)
+		{
+			if (closed)
+			{
+				return;
+			}
+
+			try
+			{
+				if (event instanceof StreamTick)
+				{
+					StreamTick tick = (StreamTick) event;
+					// Ticks posted again after being received, or replaced, are stale.
+					if (tick.getSource() == this && armedTicks.get(tick.getStage()) == tick)
+					{
+						armedTicks.remove(tick.getStage());
+						tick.cancel();
+						tick.getStage().onTimer(System.currentTimeMillis());
+					}
+				}
+				else if (eventClass.isInstance(event))
+				{
+					root.emit(eventClass.cast(event));
+				}
+			}
+			catch (RuntimeException e)
+			{
+				logger.error(
+					"### Exception occurs when a stream of {} processed {}",
+					eventClass.getName(),
+					event.getClass().getName(),
+					e);
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.stream;
+
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventListener;
+import org.ubikit.event.ScheduledPost;
+
+
+
+/**
+ * Timer expiration of a timed stream operator, posted as a local event to the gate of its stream
+ * so that the operator runs on the delivery thread of that gate. Regular listeners ignore it.
+ * Its fields are transient so that gate journals record nothing of it.
+ * 
+ * A full gate may drop a tick like any other event. A tick is therefore posted again
+ * periodically until the stream source receives it and cancels its posting.
+ */
+final class StreamTick extends AbstractEvent
+{
+	private final transient StreamSource<?> source;
+	private final transient TimedStage stage;
+	private transient ScheduledPost post; // null until scheduled.
+
+
+
+
+
+
+	StreamTick(StreamSource<?> source, TimedStage stage)
+	{
+		this.source = source;
+		this.stage = stage;
+	}
+
+
+
+
+
+
+	StreamSource<?> getSource()
+	{
+		return source;
+	}
+
+
+
+
+
+
+	TimedStage getStage()
+	{
+		return stage;
+	}
+
+
+
+
+
+
+	void setPost(ScheduledPost post)
+	{
+		this.post = post;
+	}
+
+
+
+
+
+
+	/**
+	 * Stop posting this tick.
+	 */
+	void cancel()
+	{
+		if (post != null)
+		{
+			post.cancel();
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void deliverTo(EventListener eventListener)
+	{
+		// Only meaningful to the stream source that scheduled it.
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.stream;
+
+/**
+ * Result of the aggregation of a time window, for one key of the stream. Immutable.
+ * 
+ * @param <R>
+ *            the type of results.
+ */
+public final class WindowResult<R>
+{
+	private final Object key;
+	private final long start;
+	private final long end;
+	private final long count;
+	private final R result;
+
+
+
+
+
+
+	WindowResult(Object key, long start, long end, long count, R result)
+	{
+		this.key = key;
+		this.start = start;
+		this.end = end;
+		this.count = count;
+		this.result = result;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the key of the aggregated values, by default the UID of their source item, or null
+	 *         if they have no key.
+	 */
+	public Object getKey()
+	{
+		return key;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the start time of the window, in milliseconds since the epoch, inclusive.
+	 */
+	public long getStart()
+	{
+		return start;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the end time of the window, in milliseconds since the epoch, exclusive.
+	 */
+	public long getEnd()
+	{
+		return end;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the number of values aggregated in the window.
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+
+
+
+
+
+	public R getResult()
+	{
+		return result;
+	}
+
+
+
+
+
+
+	@Override
+	public String toString()
+	{
+		return "WindowResult [key=" + key + ", start=" + start + ", end=" + end + ", count="
+			+ count + ", result=" + result + "]";
+	}
+}
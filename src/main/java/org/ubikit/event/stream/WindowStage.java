@@ -0,0 +1,271 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.stream;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+
+/**
+ * Time window operator, for tumbling (size equal to slide) and sliding windows. Values are
+ * aggregated per key into panes of slide duration, aligned on multiples of the slide since the
+ * epoch. When a window ends, the panes it spans are merged. A single timer expires at each
+ * window end, as long as some key has panes that belong to a window yet to end.
+ * 
+ * @param <T>
+ *            the type of values.
+ * @param <A>
+ *            the type of accumulators.
+ * @param <R>
+ *            the type of results.
+ */
+final class WindowStage<T, A, R> implements StreamListener<T>, TimedStage
+{
+	/**
+	 * Circular array of the panes of a key.
+	 */
+	private final class Panes
+	{
+		private final Object[] accumulators;
+		private final long[] starts;
+		private final long[] counts;
+
+		private Panes()
+		{
+			accumulators = new Object[paneCount];
+			starts = new long[paneCount];
+			counts = new long[paneCount];
+			Arrays.fill(starts, Long.MIN_VALUE);
+		}
+	}
+
+	private final EventStream<T> input;
+	private final EventStream<WindowResult<R>> output;
+	private final long size;
+	private final long slide;
+	private final int paneCount;
+	private final Aggregator<? super T, A, R> aggregator;
+	private final Map<Object, Panes> windows;
+	private long emittedEnd; // end of the last emitted windows.
+	private boolean scheduled;
+
+
+
+
+
+
+	WindowStage(
+		EventStream<T> input,
+		EventStream<WindowResult<R>> output,
+		long size,
+		long slide,
+		Aggregator<? super T, A, R> aggregator)
+	{
+		this.input = input;
+		this.output = output;
+		this.size = size;
+		this.slide = slide;
+		paneCount = (int) (size / slide);
+		this.aggregator = aggregator;
+		windows = new HashMap<Object, Panes>();
+		emittedEnd = Long.MIN_VALUE;
+		scheduled = false;
+	}
+
+
+
+
+
+
+	@Override
+	public void onNext(T value)
+	{
+		long now = System.currentTimeMillis();
+		long paneStart = now - now % slide;
+		if (windows.isEmpty())
+		{
+			emittedEnd = paneStart;
+		}
+		else if (now >= emittedEnd + slide)
+		{
+			// The timer is late: windows that ended must be emitted before their panes are reused.
+			emit(now);
+		}
+
+		Object key = input.keyOf(value);
+		Panes panes = windows.get(key);
+		if (panes == null)
+		{
+			panes = new Panes();
+			windows.put(key, panes);
+		}
+
+		int index = (int) ((paneStart / slide) % paneCount);
+		if (panes.starts[index] != paneStart)
+		{
+			panes.accumulators[index] = aggregator.create();
+			panes.starts[index] = paneStart;
+			panes.counts[index] = 0;
+		}
+		panes.accumulators[index] = aggregator.add(accumulator(panes, index), value);
+		panes.counts[index]++;
+
+		if (!scheduled)
+		{
+			scheduled = true;
+			input.getSource().schedule(this, paneStart + slide - now);
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void onTimer(long now)
+	{
+		emit(now);
+		if (windows.isEmpty())
+		{
+			scheduled = false;
+		}
+		else
+		{
+			input.getSource().schedule(this, emittedEnd + slide - now);
+		}
+	}
+
+
+
+
+
+
+	@Override
+	public void discard()
+	{
+		windows.clear();
+		scheduled = false;
+	}
+
+
+
+
+
+
+	/**
+	 * Emit the windows that ended since the last emission, up to the given time.
+	 */
+	private void emit(long now)
+	{
+		long latest = now - now % slide;
+		for (long end = Math.max(emittedEnd + slide, latest - size); end <= latest; end += slide)
+		{
+			emit(end, end - size);
+		}
+		emittedEnd = Math.max(emittedEnd, latest);
+	}
+
+
+
+
+
+
+	/**
+	 * Emit the results of the windows of all keys that span a period, then forget keys that
+	 * have no pane in the following windows.
+	 */
+	private void emit(long end, long start)
+	{
+		Iterator<Map.Entry<Object, Panes>> it = windows.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<Object, Panes> entry = it.next();
+			Panes panes = entry.getValue();
+			A merged = aggregator.create();
+			long count = 0;
+			boolean alive = false;
+			for (int i = 0; i < paneCount; i++)
+			{
+				if (panes.starts[i] >= start && panes.starts[i] < end && panes.counts[i] > 0)
+				{
+					merged = aggregator.merge(merged, accumulator(panes, i));
+					count += panes.counts[i];
+				}
+				alive |= panes.starts[i] >= start + slide;
+			}
+
+			if (!alive)
+			{
+				it.remove();
+			}
+
+			if (count > 0)
+			{
+				output.emit(new WindowResult<R>(
+					entry.getKey(),
+					start,
+					end,
+					count,
+					aggregator.result(merged)));
+			}
+		}
+	}
+
+
+
+
+
+
+	@SuppressWarnings("unchecked")
+	private A accumulator(Panes panes, int index)
+	{
+		return (A) panes.accumulators[index];
+	}
+}
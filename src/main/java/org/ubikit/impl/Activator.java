@@ -49,6 +49,7 @@ import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.ubikit.event.impl.EventGateExecutors;
 
 
 
@@ -86,5 +87,6 @@ public final class Activator implements BundleActivator
 	public void stop(BundleContext bundleContext) throws Exception
 	{
 		logger.info("Bundle stops.");
+		EventGateExecutors.shutdown();
 	}
 }
@@ -52,6 +52,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.ubikit.PhysicalEnvironmentModelManager;
+import org.ubikit.event.EventGateOptions;
 import org.ubikit.event.impl.EventGateImpl;
 import org.ubikit.service.PhysicalEnvironmentModelService;
 import org.ubikit.service.RootPhysicalEnvironmentModelService;
@@ -71,10 +72,15 @@ public class PhysicalEnvironmentModelManagerImpl implements PhysicalEnvironmentM
 	}
 	
 	public PhysicalEnvironmentModelManagerImpl(String [] requiredModelUIDs, String egName) // egName == event gate name. USAGE: Only for debbugging purpose
+	{
+		this(requiredModelUIDs, egName, new EventGateOptions());
+	}
+	
+	public PhysicalEnvironmentModelManagerImpl(String [] requiredModelUIDs, String egName, EventGateOptions egOptions)
 	{
 		bindAllRootPem = false;
 		allRequiredDependenciesResolved = false;
-		eventGate = new EventGateImpl(egName);
+		eventGate = new EventGateImpl(egName, egOptions);
 		proxies = Collections.synchronizedMap(new HashMap<String, PhysicalEnvironmentModelService>());
 		
 		if(requiredModelUIDs.length != 0)
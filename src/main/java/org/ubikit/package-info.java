@@ -43,5 +43,5 @@
  *
  */
 
-@aQute.bnd.annotation.Version("1.5.0")
+@aQute.bnd.annotation.Version("1.6.0")
 package org.ubikit;
\ No newline at end of file
@@ -47,6 +47,7 @@ package org.ubikit.pem.event;
 
 import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
 import org.ubikit.event.EventListener;
+import org.ubikit.event.EventPriority;
 
 public class EnterPairingModeEvent extends AbstractPhysicalEnvironmentModelEvent 
 {
@@ -65,4 +66,10 @@ public class EnterPairingModeEvent extends AbstractPhysicalEnvironmentModelEvent
 	{
 		((EnterPairingModeEvent.Listener)eventListener).onEvent(this);
 	}
+	
+	@Override
+	protected EventPriority getDefaultPriority()
+	{
+		return EventPriority.CONTROL;
+	}
 }
\ No newline at end of file
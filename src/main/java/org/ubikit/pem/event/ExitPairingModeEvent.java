@@ -47,6 +47,7 @@ package org.ubikit.pem.event;
 
 import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
 import org.ubikit.event.EventListener;
+import org.ubikit.event.EventPriority;
 
 public class ExitPairingModeEvent extends AbstractPhysicalEnvironmentModelEvent 
 {
@@ -65,4 +66,10 @@ public class ExitPairingModeEvent extends AbstractPhysicalEnvironmentModelEvent
 	{
 		((ExitPairingModeEvent.Listener)eventListener).onEvent(this);
 	}
+	
+	@Override
+	protected EventPriority getDefaultPriority()
+	{
+		return EventPriority.CONTROL;
+	}
 }
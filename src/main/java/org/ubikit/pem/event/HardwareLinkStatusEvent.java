@@ -47,6 +47,7 @@ package org.ubikit.pem.event;
 
 import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
 import org.ubikit.event.EventListener;
+import org.ubikit.event.EventPriority;
 import org.ubikit.service.PhysicalEnvironmentModelService.HardwareLinkStatus;
 
 public class HardwareLinkStatusEvent extends AbstractPhysicalEnvironmentModelEvent 
@@ -81,4 +82,10 @@ public class HardwareLinkStatusEvent extends AbstractPhysicalEnvironmentModelEve
 	{
 		((HardwareLinkStatusEvent.Listener)eventListener).onEvent(this);
 	}
+	
+	@Override
+	protected EventPriority getDefaultPriority()
+	{
+		return EventPriority.CONTROL;
+	}
 }
\ No newline at end of file
@@ -47,6 +47,7 @@ package org.ubikit.pem.event;
 
 import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
 import org.ubikit.event.EventListener;
+import org.ubikit.event.EventPriority;
 
 public class ItemDroppedEvent extends AbstractPhysicalEnvironmentModelEvent 
 {
@@ -68,6 +69,12 @@ public class ItemDroppedEvent extends AbstractPhysicalEnvironmentModelEvent
 	{
 		((ItemDroppedEvent.Listener)eventListener).onEvent(this);
 	}
+	
+	@Override
+	protected EventPriority getDefaultPriority()
+	{
+		return EventPriority.CONTROL;
+	}
 
 	public String getPemUID()
 	{
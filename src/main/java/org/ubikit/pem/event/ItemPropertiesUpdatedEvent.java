@@ -45,10 +45,16 @@
 
 package org.ubikit.pem.event;
 
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.CoalescableEvent;
 import org.ubikit.event.EventListener;
 
-public class ItemPropertiesUpdatedEvent extends AbstractPhysicalEnvironmentModelEvent 
+public class ItemPropertiesUpdatedEvent extends AbstractPhysicalEnvironmentModelEvent implements CoalescableEvent
 {
 	private String[] propertiesName;
 	
@@ -63,6 +69,12 @@ public class ItemPropertiesUpdatedEvent extends AbstractPhysicalEnvironmentModel
 		this.propertiesName = propertiesName;
 	}
 	
+	private ItemPropertiesUpdatedEvent(ItemPropertiesUpdatedEvent origin, String[] propertiesName) 
+	{
+		super(origin.getSourceItemUID(), origin);
+		this.propertiesName = propertiesName;
+	}
+	
 	public String[] getPropertiesName()
 	{
 		return propertiesName;
@@ -73,4 +85,28 @@ public class ItemPropertiesUpdatedEvent extends AbstractPhysicalEnvironmentModel
 	{
 		((ItemPropertiesUpdatedEvent.Listener)eventListener).onEvent(this);
 	}
+	
+	/**
+	 * Merge the names of the properties updated by a waiting event into this event ones, so that
+	 * listeners still learn about every updated property.
+	 */
+	@Override
+	public AbstractEvent coalesceWith(AbstractEvent olderEvent) 
+	{
+		String[] olderPropertiesName = ((ItemPropertiesUpdatedEvent)olderEvent).getPropertiesName();
+		if(olderPropertiesName == null || olderPropertiesName.length == 0) {
+			return this;
+		}
+		if(propertiesName == null || propertiesName.length == 0) {
+			return new ItemPropertiesUpdatedEvent(this, olderPropertiesName);
+		}
+		
+		if(Arrays.asList(propertiesName).containsAll(Arrays.asList(olderPropertiesName))) {
+			return this;
+		}
+		
+		Set<String> names = new LinkedHashSet<String>(Arrays.asList(olderPropertiesName));
+		names.addAll(Arrays.asList(propertiesName));
+		return new ItemPropertiesUpdatedEvent(this, names.toArray(new String[names.size()]));
+	}
 }
\ No newline at end of file
@@ -43,5 +43,5 @@
  *
  */
 
-@aQute.bnd.annotation.Version("2.2.0")
+@aQute.bnd.annotation.Version("2.3.0")
 package org.ubikit.pem.event;
\ No newline at end of file
@@ -0,0 +1,110 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.system;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivery metrics of an event gate, as measured when they were queried. Counts are cumulated
+ * since the gate was created, and rates are averaged since the previous query, over at least one
+ * second.
+ */
+public interface EventGateStatistics 
+{
+	public String getGateName();
+	
+	/**
+	 * @return the number of entries waiting for being delivered. A batch of events counts as a
+	 * single entry.
+	 */
+	public int getQueueDepth();
+	
+	/**
+	 * @return the highest queue depth reached so far.
+	 */
+	public int getQueueHighWaterMark();
+	
+	public int getQueueCapacity();
+	
+	public long getIncomingEventCount();
+	
+	/**
+	 * @return the number of events handed to listeners. In LISTENER_MAILBOXES and
+	 * PARTITIONED_BY_ITEM delivery modes, an event is counted once the first listener mailbox or
+	 * delivery lane that holds it has processed it.
+	 */
+	public long getDeliveredEventCount();
+	
+	public double getIncomingEventRate();
+	
+	public double getDeliveredEventRate();
+	
+	/**
+	 * @return the number of events dropped because the gate queue, a listener mailbox or a
+	 * delivery lane was full.
+	 */
+	public long getDroppedEventCount();
+	
+	public long getCoalescedEventCount();
+	
+	/**
+	 * @return the time events spent between their acceptance by this gate and their delivery to
+	 * a first listener, whatever their type and origin.
+	 */
+	public LatencyHistogram getDeliveryLag();
+	
+	/**
+	 * @return the time listeners spent handling events, by listener class name.
+	 */
+	public Map<String, LatencyHistogram> getListenerExecutionTimes();
+	
+	/**
+	 * @return the class names of the listeners that were quarantined because they repeatedly
+	 * exceeded the latency budget of the gate.
+	 */
+	public List<String> getQuarantinedListeners();
+}
@@ -0,0 +1,135 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.system;
+
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventListener;
+import org.ubikit.event.EventPriority;
+
+/**
+ * Posted by an event gate when one of its listeners repeatedly exceeded the latency budget set
+ * in the gate options, and was therefore quarantined: it now receives its events on an isolated
+ * executor. The event is posted to the listeners of that gate and to its partners.
+ */
+public class SlowListenerEvent extends AbstractEvent 
+{
+	public interface Listener extends EventListener
+	{
+		public void onEvent(SlowListenerEvent event);
+	}
+
+	private final String gateName;
+	private final String listenerClassName;
+	private final String bundleSymbolicName;
+	private final long budget;
+	private final long latency;
+	
+	/**
+	 * @param gateName the name of the gate the listener is registered to.
+	 * @param listenerClassName the class name of the quarantined listener.
+	 * @param bundleSymbolicName the symbolic name of the bundle the listener class comes from, or
+	 * null if it is unknown.
+	 * @param budget the latency budget of the gate listeners, in microseconds.
+	 * @param latency the time the listener spent handling its last event or batch, in
+	 * microseconds.
+	 */
+	public SlowListenerEvent(String gateName, String listenerClassName, String bundleSymbolicName, long budget, long latency) 
+	{
+		super();
+		this.gateName = gateName;
+		this.listenerClassName = listenerClassName;
+		this.bundleSymbolicName = bundleSymbolicName;
+		this.budget = budget;
+		this.latency = latency;
+	}
+
+	@Override
+	public void deliverTo(EventListener eventListener) 
+	{
+		((SlowListenerEvent.Listener)eventListener).onEvent(this);
+	}
+	
+	@Override
+	protected EventPriority getDefaultPriority()
+	{
+		return EventPriority.CONTROL;
+	}
+
+	public String getGateName()
+	{
+		return gateName;
+	}
+
+	public String getListenerClassName()
+	{
+		return listenerClassName;
+	}
+
+	/**
+	 * @return the symbolic name of the bundle the listener class comes from, or null if it is
+	 * unknown.
+	 */
+	public String getBundleSymbolicName()
+	{
+		return bundleSymbolicName;
+	}
+
+	/**
+	 * @return the latency budget of the gate listeners, in microseconds.
+	 */
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * @return the time the listener spent handling its last event or batch, in microseconds.
+	 */
+	public long getLatency()
+	{
+		return latency;
+	}
+}
\ No newline at end of file
@@ -45,6 +45,8 @@
 
 package org.ubikit.system;
 
+import java.util.Map;
+
 import org.ubikit.system.ExtenstionRegistry;
 import org.ubikit.system.SystemProperties;
 
@@ -53,4 +55,15 @@ public interface SystemInspectionService
 	public SystemProperties getSystemProperties();
 	public ExtenstionRegistry getAppRegistry();
 	public ExtenstionRegistry getPemRegistry(); 
+	
+	/**
+	 * @return delivery metrics of the running event gates, by gate name.
+	 */
+	public Map<String, EventGateStatistics> getEventGateStatistics();
+	
+	/**
+	 * @param gateName the name of an event gate.
+	 * @return delivery metrics of the given gate, or null if no running gate has that name.
+	 */
+	public EventGateStatistics getEventGateStatistics(String gateName);
 }
@@ -49,6 +49,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.SQLException;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -65,10 +66,12 @@ import org.osgi.service.http.HttpService;
 import org.osgi.service.http.NamespaceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.ubikit.event.impl.EventGateRegistry;
 import org.ubikit.impl.DatabaseProxyImpl;
 import org.ubikit.service.AppRegistryService;
 import org.ubikit.service.HSQLDatabaseService;
 import org.ubikit.service.PemRegistryService;
+import org.ubikit.system.EventGateStatistics;
 import org.ubikit.system.ExtensionManagerService;
 import org.ubikit.system.SystemInspectionService;
 import org.ubikit.system.ExtenstionRegistry;
@@ -288,6 +291,28 @@ public final class SystemComponentImpl implements SystemInspectionService, AppRe
 
 
 
+	@Override
+	public Map<String, EventGateStatistics> getEventGateStatistics()
+	{
+		return EventGateRegistry.getStatistics();
+	}
+
+
+
+
+
+
+	@Override
+	public EventGateStatistics getEventGateStatistics(String gateName)
+	{
+		return EventGateRegistry.getStatistics(gateName);
+	}
+
+
+
+
+
+
 	// -----------------------------------------------------------------------------------
 	// -- AppRegistryService Methods
 	// -----------------------------------------------------------------------------------
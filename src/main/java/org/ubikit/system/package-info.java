@@ -43,5 +43,5 @@
  *
  */
 
-@aQute.bnd.annotation.Version("1.0.0")
+@aQute.bnd.annotation.Version("2.0.0")
 package org.ubikit.system;
\ No newline at end of file
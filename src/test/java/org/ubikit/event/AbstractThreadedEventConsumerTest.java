@@ -0,0 +1,172 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+
+/**
+ * Events pushed to threaded consumers by concurrent producers.
+ */
+public class AbstractThreadedEventConsumerTest
+{
+	private static final int PRODUCERS = 4;
+	private static final int EVENTS_PER_PRODUCER = 20000;
+
+	/**
+	 * Records the events it processes, as producer index * EVENTS_PER_PRODUCER + sequence number.
+	 */
+	private static final class Recorder extends AbstractThreadedEventConsumer<Integer>
+	{
+		// Written by the consumer thread, read once it has terminated.
+		private final List<Integer> processed = new ArrayList<Integer>();
+
+		private Recorder(int capacity)
+		{
+			super("recorder", capacity);
+		}
+
+
+
+
+
+
+		@Override
+		public void process(Integer event)
+		{
+			processed.add(event);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Each event of concurrent producers is processed once, in the order of its producer, while
+	 * producers wait for room in a small queue.
+	 */
+	@Test
+	public void concurrentEventsAreProcessedOnceInOrder() throws InterruptedException
+	{
+		final Recorder consumer = new Recorder(16);
+		consumer.start();
+
+		Thread[] producers = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++)
+		{
+			final int base = p * EVENTS_PER_PRODUCER;
+			producers[p] = new Thread() {
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < EVENTS_PER_PRODUCER; i++)
+					{
+						consumer.pushEvent(base + i);
+					}
+				}
+			};
+			producers[p].start();
+		}
+		for (Thread producer : producers)
+		{
+			producer.join(30000);
+			assertFalse("producer stuck", producer.isAlive());
+		}
+
+		consumer.shutdown();
+		assertTrue(consumer.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(PRODUCERS * EVENTS_PER_PRODUCER, consumer.processed.size());
+		assertEquals(PRODUCERS * EVENTS_PER_PRODUCER, consumer.getProcessedEventCount());
+		assertTrue(consumer.getQueueHighWaterMark() <= 16);
+
+		int[] next = new int[PRODUCERS];
+		for (int event : consumer.processed)
+		{
+			int producer = event / EVENTS_PER_PRODUCER;
+			assertEquals(next[producer]++, event % EVENTS_PER_PRODUCER);
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * tryPush() reports a full queue instead of waiting, and a shut down consumer processes the
+	 * events it accepted before terminating.
+	 */
+	@Test
+	public void tryPushReportsBackPressure() throws InterruptedException
+	{
+		Recorder consumer = new Recorder(2); // Not started: events wait.
+		assertTrue(consumer.tryPush(1));
+		assertTrue(consumer.tryPush(2));
+		assertFalse(consumer.tryPush(3));
+		assertEquals(1, consumer.getRejectedEventCount());
+		assertEquals(2, consumer.getQueueDepth());
+
+		consumer.shutdown();
+		assertFalse(consumer.tryPush(4));
+		assertEquals(1, consumer.getRejectedEventCount()); // Not rejected for lack of room.
+
+		consumer.start();
+		assertTrue(consumer.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(2, consumer.processed.size());
+		assertEquals(0, consumer.getQueueDepth());
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventInstanciator;
+import org.ubikit.event.EventTypeRegistry;
+import org.ubikit.event.StreamingEventInstanciator;
+
+import com.google.gson.Gson;
+
+
+
+/**
+ * Streaming decoding of the event batches HTTP event gates receive.
+ */
+public class EventBatchReaderTest
+{
+	private static final String TYPE = TestEvent.class.getName();
+
+	private final Gson gson = new Gson();
+
+	/**
+	 * Records whether events were handed over as streams or as strings.
+	 */
+	private static final class RecordingInstanciator implements StreamingEventInstanciator
+	{
+		private final EventTypeRegistry registry = new EventTypeRegistry().register(TestEvent.class);
+		private int streamed;
+		private final List<String> strings = new ArrayList<String>();
+
+
+
+
+
+
+		@Override
+		public AbstractEvent instanciateEvent(String className, Reader data) throws IOException
+		{
+			streamed++;
+			return registry.instanciateEvent(className, data);
+		}
+
+
+
+
+
+
+		@Override
+		public AbstractEvent instanciateEvent(String className, String dataAsJSON)
+		{
+			strings.add(dataAsJSON);
+			return registry.instanciateEvent(className, dataAsJSON);
+		}
+	}
+
+
+
+
+
+
+	private String entry(String sourceItemUID)
+	{
+		return "{\"type\":\"" + TYPE + "\",\"event\":" + gson.toJson(new TestEvent(sourceItemUID)) + "}";
+	}
+
+
+
+
+
+
+	private List<AbstractEvent> read(String batch, EventInstanciator instanciator)
+		throws IOException
+	{
+		List<AbstractEvent> events = new ArrayList<AbstractEvent>();
+		assertEquals(0, new EventBatchReader(new StringReader(batch)).readEvents(instanciator, events));
+		return events;
+	}
+
+
+
+
+
+
+	private static String uid(AbstractEvent event)
+	{
+		return ((AbstractPhysicalEnvironmentModelEvent) event).getSourceItemUID();
+	}
+
+
+
+
+
+
+	/**
+	 * Each event is handed to a streaming instanciator as a stream that ends with the event, even
+	 * when its strings hold brackets and escaped quotes.
+	 */
+	@Test
+	public void eventsAreStreamed() throws IOException
+	{
+		RecordingInstanciator instanciator = new RecordingInstanciator();
+		List<AbstractEvent> events = read(
+			" [ " + entry("a") + " , " + entry("b}\"]{") + "," + entry("c") + " ] ",
+			instanciator);
+
+		assertEquals(3, events.size());
+		assertEquals("a", uid(events.get(0)));
+		assertEquals("b}\"]{", uid(events.get(1)));
+		assertEquals("c", uid(events.get(2)));
+		assertEquals(3, instanciator.streamed);
+		assertTrue(instanciator.strings.isEmpty());
+	}
+
+
+
+
+
+
+	/**
+	 * An event that comes before its type, among unknown members, is decoded once its type is
+	 * known.
+	 */
+	@Test
+	public void eventMayPrecedeItsType() throws IOException
+	{
+		String json = gson.toJson(new TestEvent("a"));
+		RecordingInstanciator instanciator = new RecordingInstanciator();
+		List<AbstractEvent> events = read(
+			"[{\"event\": " + json + ", \"other\": [1, {\"x\": \"}\"}], \"type\": \"" + TYPE + "\"}]",
+			instanciator);
+
+		assertEquals(1, events.size());
+		assertEquals("a", uid(events.get(0)));
+		assertEquals(json, instanciator.strings.get(0));
+	}
+
+
+
+
+
+
+	/**
+	 * Other instanciators get the exact JSON of each event.
+	 */
+	@Test
+	public void eventsAreCopiedForOtherInstanciators() throws IOException
+	{
+		final List<String> strings = new ArrayList<String>();
+		final EventTypeRegistry registry = new EventTypeRegistry().register(TestEvent.class);
+		List<AbstractEvent> events = read("[" + entry("a") + "," + entry("b") + "]", new EventInstanciator() {
+			@Override
+			public AbstractEvent instanciateEvent(String className, String dataAsJSON)
+			{
+				strings.add(dataAsJSON);
+				return registry.instanciateEvent(className, dataAsJSON);
+			}
+		});
+
+		assertEquals(2, events.size());
+		assertEquals(gson.toJson(new TestEvent("b")).length(), strings.get(1).length());
+	}
+
+
+
+
+
+
+	/**
+	 * Entries that cannot be instanciated are skipped and counted.
+	 */
+	@Test
+	public void uninstanciableEntriesAreSkipped() throws IOException
+	{
+		List<AbstractEvent> events = new ArrayList<AbstractEvent>();
+		int skipped = new EventBatchReader(new StringReader("[{}, {\"type\": 1, \"event\": {}}, "
+			+ entry("a")
+			+ "]")).readEvents(new RecordingInstanciator(), events);
+
+		assertEquals(2, skipped);
+		assertEquals(1, events.size());
+	}
+
+
+
+
+
+
+	/**
+	 * Events of types a registry does not hold are skipped, wherever their type comes.
+	 */
+	@Test
+	public void unregisteredTypesAreSkipped() throws IOException
+	{
+		String json = gson.toJson(new TestEvent("b"));
+		List<AbstractEvent> events = new ArrayList<AbstractEvent>();
+		int skipped = new EventBatchReader(new StringReader("[{\"type\": \"Unknown\", \"event\": " + json
+			+ "}, {\"event\": " + json + ", \"type\": \"Unknown\"}, "
+			+ entry("a")
+			+ "]")).readEvents(new EventTypeRegistry().register(TestEvent.class), events);
+
+		assertEquals(2, skipped);
+		assertEquals(1, events.size());
+		assertEquals("a", uid(events.get(0)));
+	}
+
+
+
+
+
+
+	@Test(expected = EventBatchReader.MalformedBatchException.class)
+	public void truncatedBatchIsMalformed() throws IOException
+	{
+		String batch = "[" + entry("a");
+		read(batch.substring(0, batch.length() - 5), new RecordingInstanciator());
+	}
+
+
+
+
+
+
+	@Test(expected = EventBatchReader.MalformedBatchException.class)
+	public void nonArrayIsMalformed() throws IOException
+	{
+		read(entry("a"), new RecordingInstanciator());
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.ubikit.AbstractPhysicalEnvironmentModelEvent;
+import org.ubikit.event.BinaryEventCodec;
+import org.ubikit.event.EventListener;
+
+import com.google.gson.Gson;
+
+
+
+/**
+ * Compares the size and the encoding and decoding times of an event sent by HTTP event gates,
+ * with the binary codec and with the JSON of the gates. This is not a unit test: run its main
+ * method with the test classpath, that is with the Gson version of the pom.
+ */
+public final class EventCodecBenchmark
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int WARMUP_ITERATIONS = 100000;
+	private static final int ITERATIONS = 300000;
+	private static final int ROUNDS = 5;
+
+	/**
+	 * A typical sensor measure.
+	 */
+	public static final class MeasureEvent extends AbstractPhysicalEnvironmentModelEvent
+	{
+		private final double value;
+		private final int battery;
+
+		public MeasureEvent(String sourceItemUID, long timestamp, double value, int battery)
+		{
+			super(sourceItemUID, timestamp);
+			this.value = value;
+			this.battery = battery;
+		}
+
+
+
+
+
+
+		@Override
+		public void deliverTo(EventListener listener)
+		{}
+	}
+
+	private static final BinaryEventCodec.Marshaller<MeasureEvent> MARSHALLER =
+		new BinaryEventCodec.Marshaller<MeasureEvent>()
+		{
+			@Override
+			public void write(MeasureEvent event, BinaryEventCodec.Output output)
+			{
+				output.writeString(event.getSourceItemUID());
+				output.writeVarLong(event.getTimestamp());
+				output.writeDouble(event.value);
+				output.writeSignedVarInt(event.battery);
+			}
+
+
+
+
+
+
+			@Override
+			public MeasureEvent read(BinaryEventCodec.Input input) throws IOException
+			{
+				return new MeasureEvent(
+					input.readString(),
+					input.readVarLong(),
+					input.readDouble(),
+					input.readSignedVarInt());
+			}
+		};
+
+	private static long sink; // Keeps results alive.
+
+
+
+
+
+
+	public static void main(String[] args) throws IOException
+	{
+		BinaryEventCodec codec = new BinaryEventCodec().register(1, MeasureEvent.class, MARSHALLER);
+		Gson gson = new Gson();
+		MeasureEvent event = new MeasureEvent(
+			"enocean-0180A3F2",
+			System.currentTimeMillis(),
+			21.5,
+			87);
+		// As sent by HTTP event gates, see HttpEventGateImpl.toJson().
+		((AbstractEventImpl) event).setSenderNetworkAddress("gateway-livingroom.local:8080");
+		event.getDate();
+
+		byte[] binary = codec.encode(event);
+		byte[] json = gson.toJson(event).getBytes(UTF8);
+		System.out.println("bytes per event: binary " + binary.length + ", JSON " + json.length);
+
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			System.out.println("round "
+				+ round
+				+ ", ns per event: binary encode "
+				+ encodeBinary(codec, event, ITERATIONS)
+				+ ", decode "
+				+ decodeBinary(codec, binary, ITERATIONS)
+				+ "; JSON encode "
+				+ encodeJson(gson, event, ITERATIONS)
+				+ ", decode "
+				+ decodeJson(gson, json, ITERATIONS));
+			if (round == 0)
+			{
+				// The first round only warms up the JIT compiler.
+				encodeBinary(codec, event, WARMUP_ITERATIONS);
+				decodeBinary(codec, binary, WARMUP_ITERATIONS);
+				encodeJson(gson, event, WARMUP_ITERATIONS);
+				decodeJson(gson, json, WARMUP_ITERATIONS);
+			}
+		}
+		System.out.println("(" + sink + ")");
+	}
+
+
+
+
+
+
+	/**
+	 * @return the mean time per iteration, in nanoseconds.
+	 */
+	private static long encodeBinary(BinaryEventCodec codec, MeasureEvent event, int iterations)
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			sink += codec.encode(event).length;
+		}
+		return (System.nanoTime() - start) / iterations;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the mean time per iteration, in nanoseconds.
+	 */
+	private static long decodeBinary(BinaryEventCodec codec, byte[] data, int iterations)
+		throws IOException
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			sink += ((MeasureEvent) codec.decode(data, 0, data.length)).battery;
+		}
+		return (System.nanoTime() - start) / iterations;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the mean time per iteration, in nanoseconds.
+	 */
+	private static long encodeJson(Gson gson, MeasureEvent event, int iterations)
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			sink += gson.toJson(event).getBytes(UTF8).length;
+		}
+		return (System.nanoTime() - start) / iterations;
+	}
+
+
+
+
+
+
+	/**
+	 * @return the mean time per iteration, in nanoseconds.
+	 */
+	private static long decodeJson(Gson gson, byte[] data, int iterations)
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			sink += gson.fromJson(new String(data, UTF8), MeasureEvent.class).battery;
+		}
+		return (System.nanoTime() - start) / iterations;
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.SubscriptionFilter;
+
+
+
+/**
+ * Links between event gates, under concurrent topology changes.
+ */
+public class EventGateLinkTest
+{
+	private static final int GATES = 6;
+	private static final int THREADS = 6;
+	private static final long CHURN_MILLIS = 2000;
+
+	private final EventGateImpl[] gates = new EventGateImpl[GATES];
+
+
+
+
+
+
+	private void startGates() throws InterruptedException
+	{
+		for (int i = 0; i < GATES; i++)
+		{
+			gates[i] = new EventGateImpl("gate" + i, new EventGateOptions().setCapacity(100));
+			Thread thread = new Thread(gates[i].getEventDelivererTask());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// Events posted before a deliverer runs are dropped.
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		for (EventGateImpl gate : gates)
+		{
+			while (!gate.isRunning() && System.nanoTime() < deadline)
+			{
+				Thread.sleep(1);
+			}
+			assertTrue(gate.isRunning());
+		}
+	}
+
+
+
+
+
+
+	@After
+	public void stopGates()
+	{
+		for (EventGateImpl gate : gates)
+		{
+			if (gate != null)
+			{
+				gate.unlinkAll();
+				gate.stop();
+			}
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Threads randomly link, unlink and post across gates whose listeners post in turn. Links
+	 * must stay bidirectional and no thread may deadlock.
+	 */
+	@Test
+	public void linksStayBidirectionalUnderChurn() throws InterruptedException
+	{
+		startGates();
+		for (final EventGateImpl gate : gates)
+		{
+			gate.addListener(new TestEvent.Listener() {
+				@Override
+				public void onEvent(TestEvent event)
+				{
+					if (event.getSourceItemUID().length() < 8)
+					{
+						gate.postEvent(new TestEvent(event.getSourceItemUID() + "+"));
+					}
+				}
+			});
+		}
+
+		final long end = System.currentTimeMillis() + CHURN_MILLIS;
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++)
+		{
+			final Random random = new Random(t);
+			threads[t] = new Thread() {
+				@Override
+				public void run()
+				{
+					while (System.currentTimeMillis() < end)
+					{
+						EventGateImpl gate = gates[random.nextInt(GATES)];
+						EventGateImpl partner = gates[random.nextInt(GATES)];
+						switch (random.nextInt(5))
+						{
+							case 0:
+								gate.linkTo(partner);
+								break;
+							case 1:
+								gate.linkTo(partner, new SubscriptionFilter()
+									.addSourceItemUIDPrefix("item-1"));
+								break;
+							case 2:
+								gate.unlink(partner);
+								break;
+							case 3:
+								if (random.nextInt(20) == 0)
+								{
+									gate.unlinkAll();
+								}
+								break;
+							default:
+								gate.postEvent(new TestEvent("item-" + random.nextInt(3)));
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		for (Thread thread : threads)
+		{
+			thread.join(CHURN_MILLIS + 10000);
+			assertFalse("deadlock", thread.isAlive());
+		}
+
+		for (EventGateImpl gate : gates)
+		{
+			for (EventGateImpl partner : gates)
+			{
+				assertEquals(gate + " and " + partner, gate.isLinkedTo(partner), partner
+					.isLinkedTo(gate));
+			}
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * A link filter only applies to the events the gate that set it receives.
+	 */
+	@Test
+	public void linkFilterAppliesToIncomingEventsOnly() throws InterruptedException
+	{
+		startGates();
+		EventGateImpl subscriber = gates[0];
+		EventGateImpl publisher = gates[1];
+		final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+		final CountDownLatch publisherReceived = new CountDownLatch(1);
+		subscriber.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				received.add(event.getSourceItemUID());
+			}
+		});
+		publisher.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				publisherReceived.countDown();
+			}
+		});
+
+		subscriber.linkTo(publisher, new SubscriptionFilter().addSourceItemUID("selected"));
+		publisher.postEvent(new TestEvent("other"));
+		publisher.postEvent(new TestEvent("selected"));
+		subscriber.postEvent(new TestEvent("other"));
+
+		assertTrue(publisherReceived.await(5, TimeUnit.SECONDS));
+		subscriber.postLocalEvent(new TestEvent("last")); // Delivered after the linked events.
+		assertEquals("selected", received.poll(5, TimeUnit.SECONDS));
+		assertEquals("last", received.poll(5, TimeUnit.SECONDS));
+	}
+}
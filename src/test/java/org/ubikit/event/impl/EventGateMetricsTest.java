@@ -0,0 +1,280 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventGateOptions.DeliveryMode;
+import org.ubikit.event.EventGateOptions.DispatchMode;
+import org.ubikit.event.EventListener;
+import org.ubikit.system.EventGateStatistics;
+
+
+
+/**
+ * Delivery counts and delivery lag of event gates.
+ */
+public class EventGateMetricsTest
+{
+	private EventGateImpl gate;
+
+	/**
+	 * An event that is not a physical environment model event, so carries no creation time.
+	 */
+	private static final class PlainEvent extends AbstractEvent
+	{
+		private interface Listener extends EventListener
+		{
+			public void onEvent(PlainEvent event);
+		}
+
+
+
+
+
+
+		@Override
+		public void deliverTo(EventListener listener)
+		{
+			((Listener) listener).onEvent(this);
+		}
+	}
+
+	private static final class Receiver implements TestEvent.Listener, PlainEvent.Listener
+	{
+		private final CountDownLatch received = new CountDownLatch(2);
+
+
+
+
+
+
+		@Override
+		public void onEvent(TestEvent event)
+		{
+			received.countDown();
+		}
+
+
+
+
+
+
+		@Override
+		public void onEvent(PlainEvent event)
+		{
+			received.countDown();
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * Start a gate on the shared dispatcher: it accepts events as soon as this method returns.
+	 */
+	private EventGateImpl startGate(String name, EventGateOptions options)
+	{
+		gate = new EventGateImpl(name, options.setDispatchMode(DispatchMode.SHARED_POOL));
+		gate.getEventDelivererTask().run();
+		return gate;
+	}
+
+
+
+
+
+
+	@After
+	public void stopGate()
+	{
+		if (gate != null)
+		{
+			gate.stop();
+		}
+	}
+
+
+
+
+
+
+	private EventGateStatistics statistics()
+	{
+		return gate.getStatistics(gate.toString());
+	}
+
+
+
+
+
+
+	/**
+	 * Wait until the gate has counted the given number of delivered events.
+	 */
+	private void awaitDeliveredEventCount(long count) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (statistics().getDeliveredEventCount() < count && System.nanoTime() < deadline)
+		{
+			Thread.sleep(1);
+		}
+		assertEquals(count, statistics().getDeliveredEventCount());
+	}
+
+
+
+
+
+
+	/**
+	 * Events dispatched to a delivery lane are only counted as delivered once their listener was
+	 * called.
+	 */
+	@Test
+	public void laneEventsAreCountedOnceDelivered() throws InterruptedException
+	{
+		startGate("lanes", new EventGateOptions().setDeliveryMode(DeliveryMode.PARTITIONED_BY_ITEM));
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch unblock = new CountDownLatch(1);
+		gate.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				entered.countDown();
+				try
+				{
+					unblock.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		try
+		{
+			gate.postLocalEvent(new TestEvent("item"));
+			assertTrue(entered.await(5, TimeUnit.SECONDS));
+			assertEquals(0, statistics().getDeliveredEventCount());
+		}
+		finally
+		{
+			unblock.countDown();
+		}
+		awaitDeliveredEventCount(1);
+	}
+
+
+
+
+
+
+	/**
+	 * An event delivered to several listener mailboxes is counted once.
+	 */
+	@Test
+	public void mailboxEventsAreCountedOnce() throws InterruptedException
+	{
+		startGate("mailboxes", new EventGateOptions()
+			.setDeliveryMode(DeliveryMode.LISTENER_MAILBOXES));
+		final CountDownLatch received = new CountDownLatch(2);
+		for (int i = 0; i < 2; i++)
+		{
+			gate.addListener(new TestEvent.Listener() {
+				@Override
+				public void onEvent(TestEvent event)
+				{
+					received.countDown();
+				}
+			});
+		}
+
+		gate.postLocalEvent(new TestEvent("item"));
+		assertTrue(received.await(5, TimeUnit.SECONDS));
+		awaitDeliveredEventCount(1);
+		assertEquals(1, statistics().getDeliveryLag().getCount());
+	}
+
+
+
+
+
+
+	/**
+	 * The delivery lag is measured from the acceptance of events by the gate, whatever their
+	 * type: an old event is not reported as late.
+	 */
+	@Test
+	public void lagIsMeasuredFromAcceptance() throws InterruptedException
+	{
+		startGate("lag", new EventGateOptions());
+		Receiver receiver = new Receiver();
+		gate.addListener(receiver);
+
+		TestEvent old = new TestEvent("item");
+		Thread.sleep(1000); // Ages the event, does not wait for anything.
+		gate.postLocalEvent(old);
+		gate.postLocalEvent(new PlainEvent());
+		assertTrue(receiver.received.await(5, TimeUnit.SECONDS));
+		awaitDeliveredEventCount(2);
+
+		EventGateStatistics statistics = statistics();
+		assertEquals(2, statistics.getDeliveryLag().getCount());
+		assertTrue(statistics.getDeliveryLag().getMaxValue() < TimeUnit.SECONDS.toMicros(1));
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventGateOptions.DeliveryMode;
+import org.ubikit.event.EventGateOptions.DispatchMode;
+
+
+
+/**
+ * Quarantine of the listeners that overrun their latency budget.
+ */
+public class EventGateQuarantineTest
+{
+	private static final int MAILBOX_CAPACITY = 2;
+
+	private EventGateImpl gate;
+
+	/**
+	 * Listener that overruns its budget, then blocks until it is let go once quarantined.
+	 */
+	private static final class SlowListener implements TestEvent.Listener
+	{
+		private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+		private final CountDownLatch letGo = new CountDownLatch(1);
+		private volatile boolean blocking;
+
+		@Override
+		public void onEvent(TestEvent event)
+		{
+			try
+			{
+				if (blocking)
+				{
+					letGo.await();
+				}
+				else
+				{
+					Thread.sleep(20);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			received.add(event.getSourceItemUID());
+		}
+	}
+
+
+
+
+
+
+	@After
+	public void stopGate()
+	{
+		if (gate != null)
+		{
+			gate.stop();
+		}
+	}
+
+
+
+
+
+
+	@Test
+	public void slowListenerIsQuarantined() throws InterruptedException
+	{
+		checkQuarantine(DeliveryMode.SEQUENTIAL);
+	}
+
+
+
+
+
+
+	@Test
+	public void slowListenerWithMailboxIsQuarantined() throws InterruptedException
+	{
+		checkQuarantine(DeliveryMode.LISTENER_MAILBOXES);
+	}
+
+
+
+
+
+
+	/**
+	 * A listener that overruns its budget twice is quarantined: other listeners then get their
+	 * events while it blocks, and the events its full mailbox drops are counted once.
+	 */
+	private void checkQuarantine(DeliveryMode deliveryMode) throws InterruptedException
+	{
+		gate = new EventGateImpl("quarantine-" + deliveryMode, new EventGateOptions()
+			.setDeliveryMode(deliveryMode)
+			.setMailboxCapacity(MAILBOX_CAPACITY)
+			.setListenerBudget(5, TimeUnit.MILLISECONDS, 2)
+			.setDispatchMode(DispatchMode.SHARED_POOL));
+		gate.getEventDelivererTask().run(); // Accepts events once returned.
+
+		SlowListener slow = new SlowListener();
+		final BlockingQueue<String> fast = new LinkedBlockingQueue<String>();
+		gate.addListener(slow);
+		gate.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				fast.add(event.getSourceItemUID());
+			}
+		});
+
+		for (int i = 0; i < 2; i++)
+		{
+			gate.postLocalEvent(new TestEvent("overrun-" + i));
+			assertEquals("overrun-" + i, slow.received.poll(5, TimeUnit.SECONDS));
+			assertEquals("overrun-" + i, fast.poll(5, TimeUnit.SECONDS));
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!gate.getQuarantinedListeners().contains(slow) && System.nanoTime() < deadline)
+		{
+			Thread.sleep(1);
+		}
+		assertTrue(gate.getQuarantinedListeners().contains(slow));
+
+		slow.blocking = true;
+		int posted = 2 * MAILBOX_CAPACITY + 2;
+		for (int i = 0; i < posted; i++)
+		{
+			gate.postLocalEvent(new TestEvent("late-" + i));
+			assertEquals("late-" + i, fast.poll(5, TimeUnit.SECONDS)); // Not held up.
+		}
+
+		// Each late event is either received once let go, or dropped by the full mailbox.
+		slow.letGo.countDown();
+		deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (slow.received.size() + gate.getMailboxDroppedEventCount() < posted
+			&& System.nanoTime() < deadline)
+		{
+			Thread.sleep(1);
+		}
+		assertEquals(posted, slow.received.size() + gate.getMailboxDroppedEventCount());
+		assertTrue(slow.received.size() <= MAILBOX_CAPACITY + 1); // The blocked one and a mailbox.
+	}
+}
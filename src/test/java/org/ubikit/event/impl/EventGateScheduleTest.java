@@ -0,0 +1,172 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventGateOptions.OverflowPolicy;
+
+
+
+/**
+ * Scheduled postings, which all run on the shared timer thread.
+ */
+public class EventGateScheduleTest
+{
+	private final List<EventGateImpl> gates = new ArrayList<EventGateImpl>();
+
+
+
+
+
+
+	/**
+	 * Start a gate on a thread of its own, since listeners block, and wait until it accepts
+	 * events.
+	 */
+	private EventGateImpl startGate(String name, EventGateOptions options)
+		throws InterruptedException
+	{
+		EventGateImpl gate = new EventGateImpl(name, options);
+		gates.add(gate);
+		Thread thread = new Thread(gate.getEventDelivererTask());
+		thread.setDaemon(true);
+		thread.start();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!gate.isRunning() && System.nanoTime() < deadline)
+		{
+			Thread.sleep(1);
+		}
+		assertTrue(gate.isRunning());
+		return gate;
+	}
+
+
+
+
+
+
+	@After
+	public void stopGates()
+	{
+		for (EventGateImpl gate : gates)
+		{
+			gate.stop();
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * A full gate with the BLOCK overflow policy drops its scheduled events instead of stalling
+	 * the timer, so that the scheduled events of other gates are still posted on time.
+	 */
+	@Test
+	public void fullBlockingGateDoesNotStallTheTimer() throws InterruptedException
+	{
+		final CountDownLatch unblock = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		EventGateImpl full = startGate("full", new EventGateOptions()
+			.setCapacity(1)
+			.setOverflowPolicy(OverflowPolicy.BLOCK)
+			.setBlockTimeout(30, TimeUnit.SECONDS));
+		full.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				blocked.countDown();
+				try
+				{
+					unblock.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		final CountDownLatch received = new CountDownLatch(1);
+		EventGateImpl other = startGate("other", new EventGateOptions());
+		other.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				received.countDown();
+			}
+		});
+
+		try
+		{
+			full.postLocalEvent(new TestEvent("delivering"));
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			full.postLocalEvent(new TestEvent("waiting")); // Fills the queue.
+
+			full.postLocalEventAfter(new TestEvent("scheduled"), 0, TimeUnit.MILLISECONDS);
+			other.postLocalEventAfter(new TestEvent("scheduled"), 50, TimeUnit.MILLISECONDS);
+
+			assertTrue(received.await(5, TimeUnit.SECONDS));
+			assertEquals(1, full.getDroppedEventCount());
+		}
+		finally
+		{
+			unblock.countDown();
+		}
+	}
+}
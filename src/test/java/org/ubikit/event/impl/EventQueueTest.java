@@ -0,0 +1,229 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventGateOptions.OverflowPolicy;
+import org.ubikit.event.EventPriority;
+
+
+
+/**
+ * Coalescing and priority classes of the event queue of gates.
+ */
+public class EventQueueTest
+{
+	private static List<AbstractEvent> poll(EventQueue queue)
+	{
+		List<AbstractEvent> events = new ArrayList<AbstractEvent>();
+		queue.poll(events, new LongList(), Integer.MAX_VALUE);
+		return events;
+	}
+
+
+
+
+
+
+	/**
+	 * A waiting event of a coalesced class is replaced in place by a newer one from the same
+	 * source item, even when the queue has room.
+	 */
+	@Test
+	public void coalescedEventKeepsItsPosition()
+	{
+		EventQueue queue = new EventQueue("queue", new EventGateOptions()
+			.setCapacity(10)
+			.addCoalescedEventClass(TestEvent.class));
+		TestEvent a1 = new TestEvent("a");
+		TestEvent b = new TestEvent("b");
+		TestEvent a2 = new TestEvent("a");
+
+		assertTrue(queue.offer(a1));
+		assertTrue(queue.offer(b));
+		assertTrue(queue.offer(a2));
+
+		List<AbstractEvent> events = poll(queue);
+		assertEquals(2, events.size());
+		assertSame(a2, events.get(0));
+		assertSame(b, events.get(1));
+		assertEquals(1, queue.getCoalescedEventCount());
+		assertEquals(0, queue.getDroppedEventCount());
+	}
+
+
+
+
+
+
+	/**
+	 * Once polled, an event is no longer waiting: a newer event of its source item is enqueued.
+	 */
+	@Test
+	public void deliveredEventIsNotCoalesced()
+	{
+		EventQueue queue = new EventQueue("queue", new EventGateOptions()
+			.setCapacity(10)
+			.addCoalescedEventClass(TestEvent.class));
+		TestEvent a1 = new TestEvent("a");
+		TestEvent a2 = new TestEvent("a");
+
+		assertTrue(queue.offer(a1));
+		assertSame(a1, poll(queue).get(0));
+		assertTrue(queue.offer(a2));
+
+		assertSame(a2, poll(queue).get(0));
+		assertEquals(0, queue.getCoalescedEventCount());
+	}
+
+
+
+
+
+
+	/**
+	 * With the COALESCE overflow policy, events are only coalesced once the queue is full, and
+	 * events of items with no waiting event are then dropped.
+	 */
+	@Test
+	public void coalescePolicyAppliesToFullQueue()
+	{
+		EventQueue queue = new EventQueue("queue", new EventGateOptions()
+			.setCapacity(2)
+			.setOverflowPolicy(OverflowPolicy.COALESCE));
+		TestEvent a1 = new TestEvent("a");
+		TestEvent a2 = new TestEvent("a");
+		TestEvent a3 = new TestEvent("a");
+		TestEvent b = new TestEvent("b");
+
+		assertTrue(queue.offer(a1));
+		assertTrue(queue.offer(a2)); // The queue has room.
+		assertTrue(queue.offer(a3));
+		assertFalse(queue.offer(b));
+
+		List<AbstractEvent> events = poll(queue);
+		assertEquals(2, events.size());
+		assertSame(a1, events.get(0));
+		assertSame(a3, events.get(1));
+		assertEquals(1, queue.getCoalescedEventCount());
+		assertEquals(1, queue.getDroppedEventCount());
+	}
+
+
+
+
+
+
+	private static TestEvent controlEvent(String sourceItemUID)
+	{
+		TestEvent event = new TestEvent(sourceItemUID);
+		event.setPriority(EventPriority.CONTROL);
+		return event;
+	}
+
+
+
+
+
+
+	/**
+	 * CONTROL events are polled before the NORMAL events that were waiting before them.
+	 */
+	@Test
+	public void controlEventsArePolledFirst()
+	{
+		EventQueue queue = new EventQueue("queue", new EventGateOptions().setCapacity(10));
+		TestEvent normal1 = new TestEvent("a");
+		TestEvent normal2 = new TestEvent("b");
+		TestEvent control = controlEvent("c");
+
+		assertTrue(queue.offer(normal1));
+		assertTrue(queue.offer(normal2));
+		assertTrue(queue.offer(control));
+
+		List<AbstractEvent> events = poll(queue);
+		assertEquals(3, events.size());
+		assertSame(control, events.get(0));
+		assertSame(normal1, events.get(1));
+		assertSame(normal2, events.get(2));
+	}
+
+
+
+
+
+
+	/**
+	 * CONTROL events have a queue of their own: they are not dropped when the NORMAL queue is
+	 * full.
+	 */
+	@Test
+	public void fullNormalQueueDoesNotDropControlEvents()
+	{
+		EventQueue queue = new EventQueue("queue", new EventGateOptions()
+			.setCapacity(1)
+			.setControlCapacity(1));
+
+		assertTrue(queue.offer(new TestEvent("a")));
+		assertFalse(queue.offer(new TestEvent("b")));
+		assertTrue(queue.offer(controlEvent("c")));
+		assertFalse(queue.offer(controlEvent("d")));
+
+		assertEquals(1, queue.getDroppedEventCount(EventPriority.NORMAL));
+		assertEquals(1, queue.getDroppedEventCount(EventPriority.CONTROL));
+		assertEquals(2, poll(queue).size());
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.http.HttpService;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventInstanciator;
+import org.ubikit.event.HttpEventGate;
+import org.ubikit.event.HttpEventGate.ResponseListener;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+
+/**
+ * Asynchronous posts of HTTP event gates to a distant gate.
+ */
+public class HttpEventGateAsyncTest
+{
+	/**
+	 * Records the responses and failures of asynchronous posts.
+	 */
+	private static final class Responses implements ResponseListener
+	{
+		private final BlockingQueue<Integer> codes = new LinkedBlockingQueue<Integer>();
+		private final BlockingQueue<IOException> failures = new LinkedBlockingQueue<IOException>();
+
+		@Override
+		public void onResponse(URL eventGateURL, int code)
+		{
+			codes.add(code);
+		}
+
+
+
+
+
+
+		@Override
+		public void onFailure(URL eventGateURL, IOException e)
+		{
+			failures.add(e);
+		}
+	}
+
+	private static final int EVENTS = 20;
+
+	private HttpServer server;
+	private URL url;
+	private HttpEventGateImpl gate;
+	private final BlockingQueue<String> bodies = new LinkedBlockingQueue<String>();
+	private final Set<InetSocketAddress> clients = new HashSet<InetSocketAddress>();
+
+
+
+
+
+
+	@Before
+	public void start() throws Exception
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+		server.createContext("/gate", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				StringBuilder body = new StringBuilder();
+				Reader reader = new InputStreamReader(exchange.getRequestBody(), "UTF-8");
+				char[] buffer = new char[256];
+				int n;
+				while ((n = reader.read(buffer)) != -1)
+				{
+					body.append(buffer, 0, n);
+				}
+				synchronized (clients)
+				{
+					clients.add(exchange.getRemoteAddress());
+				}
+				bodies.add(body.toString());
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/gate");
+
+		gate = new HttpEventGateImpl(
+			stub(HttpService.class),
+			stub(EventInstanciator.class),
+			"async",
+			HttpEventGate.Mode.IPv4,
+			new EventGateOptions().setHttpConcurrency(1, EVENTS));
+	}
+
+
+
+
+
+
+	@After
+	public void stop()
+	{
+		gate.terminate();
+		server.stop(0);
+	}
+
+
+
+
+
+
+	/**
+	 * @return an implementation of an interface whose methods do nothing.
+	 */
+	private static <T> T stub(Class<T> type)
+	{
+		return type.cast(Proxy.newProxyInstance(
+			HttpEventGateAsyncTest.class.getClassLoader(),
+			new Class<?>[] { type },
+			new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args)
+				{
+					return null;
+				}
+			}));
+	}
+
+
+
+
+
+
+	/**
+	 * With a single connection per host, asynchronous posts arrive in order, reuse the same
+	 * kept-alive connection, and each one is answered through its future and the listener.
+	 */
+	@Test
+	public void asyncPostsArriveInOrderOverOneConnection()
+		throws InterruptedException, ExecutionException
+	{
+		Responses responses = new Responses();
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < EVENTS; i++)
+		{
+			futures.add(gate.postHttpEventAsync(url, new TestEvent("item-" + i), responses));
+		}
+
+		for (int i = 0; i < EVENTS; i++)
+		{
+			String body = bodies.poll(5, TimeUnit.SECONDS);
+			assertTrue(body, body.contains("\"item-" + i + "\""));
+		}
+		for (Future<Integer> future : futures)
+		{
+			assertEquals(Integer.valueOf(200), future.get());
+			assertEquals(Integer.valueOf(200), responses.codes.poll(5, TimeUnit.SECONDS));
+		}
+		assertTrue(responses.failures.isEmpty());
+		synchronized (clients)
+		{
+			assertEquals(1, clients.size());
+		}
+	}
+
+
+
+
+
+
+	/**
+	 * A post that cannot reach its distant gate is reported to the listener and through its
+	 * future, instead of being silently lost.
+	 */
+	@Test
+	public void unreachableGateIsReported() throws Exception
+	{
+		server.stop(0);
+		Responses responses = new Responses();
+		Future<Integer> future = gate.postHttpEventAsync(url, new TestEvent("lost"), responses);
+
+		assertNotNull(responses.failures.poll(5, TimeUnit.SECONDS));
+		assertTrue(responses.codes.isEmpty());
+		try
+		{
+			future.get();
+			fail("The post did not fail.");
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+}
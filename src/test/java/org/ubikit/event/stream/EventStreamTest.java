@@ -0,0 +1,325 @@
+/*
+ *
+ * Copyright (c) Immotronic, 2012
+ *
+ * Contributors:
+ *
+ *  	Lionel Balme (lbalme@immotronic.fr)
+ *  	Kevin Planchet (kplanchet@immotronic.fr)
+ *
+ * This file is part of ubikit-core, a component of the UBIKIT project.
+ *
+ * This software is a computer program whose purpose is to host third-
+ * parties applications that make use of sensor and actuator networks.
+ *
+ * This software is governed by the CeCILL-C license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-C
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * As a counterpart to the access to the source code and  rights to copy,
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-C license and that you accept its terms.
+ *
+ * CeCILL-C licence is fully compliant with the GNU Lesser GPL v2 and v3.
+ *
+ */
+
+package org.ubikit.event.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ubikit.event.AbstractEvent;
+import org.ubikit.event.EventGateOptions;
+import org.ubikit.event.EventGateOptions.DispatchMode;
+import org.ubikit.event.EventListener;
+import org.ubikit.event.RecyclableEvent;
+import org.ubikit.event.impl.EventGateImpl;
+import org.ubikit.event.impl.TestEvent;
+
+
+
+/**
+ * Stream operators fed by an event gate.
+ */
+public class EventStreamTest
+{
+	public static final class Telegram extends RecyclableEvent
+	{
+		public interface Listener extends EventListener
+		{
+			public void onEvent(Telegram event);
+		}
+
+
+
+
+
+
+		@Override
+		public void deliverTo(EventListener listener)
+		{
+			((Listener) listener).onEvent(this);
+		}
+
+
+
+
+
+
+		@Override
+		protected void clear()
+		{}
+	}
+
+	private EventGateImpl gate;
+	private EventStream<TestEvent> stream;
+	private final BlockingQueue<String> emitted = new LinkedBlockingQueue<String>();
+
+
+
+
+
+
+	/**
+	 * Start the gate on the shared dispatcher: it accepts events as soon as it returns.
+	 */
+	@Before
+	public void startGate()
+	{
+		gate = new EventGateImpl("stream", new EventGateOptions()
+			.setCapacity(1)
+			.setDispatchMode(DispatchMode.SHARED_POOL));
+		gate.getEventDelivererTask().run();
+	}
+
+
+
+
+
+
+	@After
+	public void stopGate()
+	{
+		if (stream != null)
+		{
+			stream.close();
+		}
+		gate.stop();
+	}
+
+
+
+
+
+
+	/**
+	 * The tick of a debounce timer is dropped by the full gate. It must be posted again once the
+	 * gate has room, instead of leaving the operator waiting forever.
+	 */
+	@Test
+	public void droppedTickIsPostedAgain() throws InterruptedException
+	{
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch unblock = new CountDownLatch(1);
+		gate.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				if (event.getSourceItemUID().equals("block"))
+				{
+					blocked.countDown();
+					try
+					{
+						unblock.await();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		});
+
+		stream = EventStream.from(gate, TestEvent.class).filter(new StreamPredicate<TestEvent>() {
+			@Override
+			public boolean accepts(TestEvent event)
+			{
+				return event.getSourceItemUID().startsWith("item");
+			}
+		}).debounce(50, TimeUnit.MILLISECONDS).subscribe(new StreamListener<TestEvent>() {
+			@Override
+			public void onNext(TestEvent event)
+			{
+				emitted.add(event.getSourceItemUID());
+			}
+		});
+
+		// Registered after the stream, so called once the debounce timer is armed.
+		final CountDownLatch armed = new CountDownLatch(1);
+		gate.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				armed.countDown();
+			}
+		});
+
+		gate.postLocalEvent(new TestEvent("item-1"));
+		assertTrue(armed.await(5, TimeUnit.SECONDS));
+		gate.postLocalEvent(new TestEvent("block"));
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		gate.postLocalEvent(new TestEvent("waiting")); // Fills the queue.
+
+		// The tick expires while the queue is full.
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (gate.getDroppedEventCount() == 0 && System.nanoTime() < deadline)
+		{
+			Thread.sleep(1);
+		}
+		assertTrue(gate.getDroppedEventCount() > 0);
+		unblock.countDown();
+
+		assertEquals("item-1", emitted.poll(5, TimeUnit.SECONDS));
+	}
+
+
+
+
+
+
+	/**
+	 * Recyclable events are reused once released: a stream that may carry them cannot compare
+	 * values themselves.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void distinctRecyclableEventsNeedAProperty()
+	{
+		EventStream.from(gate, AbstractEvent.class).distinctUntilChanged();
+	}
+
+
+
+
+
+
+	/**
+	 * Mapped values are of an unknown class, so they are only checked as they flow: plain values
+	 * are compared themselves.
+	 */
+	@Test
+	public void mappedValuesAreDistinctWithoutProperty() throws InterruptedException
+	{
+		stream = EventStream.from(gate, TestEvent.class);
+		stream.map(new StreamFunction<TestEvent, String>() {
+			@Override
+			public String apply(TestEvent event)
+			{
+				return event.getSourceItemUID();
+			}
+		}).distinctUntilChanged().subscribe(new StreamListener<String>() {
+			@Override
+			public void onNext(String value)
+			{
+				emitted.add(value);
+			}
+		});
+
+		// Registered after the stream, so called once the stream is done with each event.
+		final BlockingQueue<TestEvent> delivered = new LinkedBlockingQueue<TestEvent>();
+		gate.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				delivered.add(event);
+			}
+		});
+
+		for (String uid : new String[] { "a", "a", "b", "a" })
+		{
+			TestEvent event = new TestEvent(uid);
+			gate.postLocalEvent(event); // The gate holds a single event.
+			assertSame(event, delivered.poll(5, TimeUnit.SECONDS));
+		}
+
+		assertEquals("a", emitted.poll(5, TimeUnit.SECONDS));
+		assertEquals("b", emitted.poll(5, TimeUnit.SECONDS));
+		assertEquals("a", emitted.poll(5, TimeUnit.SECONDS));
+	}
+
+
+
+
+
+
+	/**
+	 * Closing a stream releases the recyclable events its debounce operator retains.
+	 */
+	@Test
+	public void closeReleasesDebouncedEvents() throws InterruptedException
+	{
+		EventStream<Telegram> telegrams = EventStream.from(gate, Telegram.class);
+		telegrams.debounce(1, TimeUnit.HOURS).subscribe(new StreamListener<Telegram>() {
+			@Override
+			public void onNext(Telegram event)
+			{}
+		});
+
+		final BlockingQueue<AbstractEvent> delivered = new LinkedBlockingQueue<AbstractEvent>();
+		gate.addListener(new Telegram.Listener() {
+			@Override
+			public void onEvent(Telegram event)
+			{
+				delivered.add(event);
+			}
+		});
+		gate.addListener(new TestEvent.Listener() {
+			@Override
+			public void onEvent(TestEvent event)
+			{
+				delivered.add(event);
+			}
+		});
+
+		Telegram telegram = new Telegram();
+		gate.postLocalEvent(telegram); // The gate holds a single event.
+		telegram.release(); // The reference of the producer.
+		assertSame(telegram, delivered.poll(5, TimeUnit.SECONDS));
+		TestEvent after = new TestEvent("after"); // Delivered once the gate released the telegram.
+		gate.postLocalEvent(after);
+		assertSame(after, delivered.poll(5, TimeUnit.SECONDS));
+		assertFalse(telegram.isReleased());
+
+		telegrams.close();
+		assertTrue(telegram.isReleased());
+	}
+}